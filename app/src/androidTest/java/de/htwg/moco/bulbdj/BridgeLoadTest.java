@@ -0,0 +1,133 @@
+package de.htwg.moco.bulbdj;
+
+import android.graphics.Color;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHHueSDK;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.htwg.moco.bulbdj.bridge.BridgeController;
+import de.htwg.moco.bulbdj.bridge.BridgeHealth;
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.renderers.LEDRenderer;
+import de.htwg.moco.bulbdj.renderers.LightMapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the path from the {@link LEDRenderer} to the {@link BridgeController},
+ * against two {@link MockBridge} instances. Reports the command rate and the response times.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BridgeLoadTest {
+
+    /**
+     * Number of lights of each bridge.
+     */
+    private static final int LIGHTS_PER_BRIDGE = 12;
+
+    /**
+     * Duration of the test in milliseconds.
+     */
+    private static final long DURATION = 5000;
+
+    /**
+     * Time between two frames in milliseconds, about one audio block.
+     */
+    private static final long FRAME = 23;
+
+    @Test
+    public void loadTwoBridges() throws Exception {
+        MockBridge[] mockBridges = {
+                new MockBridge(LIGHTS_PER_BRIDGE).setLatency(30).setRateLimit(25).setFailureRate(0.02F),
+                new MockBridge(LIGHTS_PER_BRIDGE).setLatency(30).setRateLimit(25).setFailureRate(0.02F)};
+
+        PHHueSDK sdk = PHHueSDK.getInstance();
+        for (MockBridge mockBridge : mockBridges) {
+            sdk.addBridge(mockBridge.getBridge());
+        }
+        sdk.setSelectedBridge(mockBridges[0].getBridge());
+
+        final BridgeController controller = BridgeController.getInstance();
+        controller.setConnected(true);
+        final List<String> lights = controller.getAllLights();
+        assertEquals(2, controller.getBridgeCount());
+        assertEquals(LIGHTS_PER_BRIDGE * 2, lights.size());
+        // The routes are built on the connection, not for each frame
+        assertSame(lights, controller.getAllLights());
+
+        final LightMapper mapper = new LightMapper(lights.size(), 3);
+        final int[] frames = {0};
+        LEDRenderer renderer = LEDRenderer.getInstance();
+        renderer.setLEDRendererListener(new LEDRenderer.LEDRendererListener() {
+            @Override
+            public void onUpdate(int[] bulbs) {
+                int[] colors = mapper.map(bulbs);
+                for (int i = 0; i < colors.length; i++) {
+                    if (colors[i] != 0)
+                        controller.setLightColorAndBrightness(lights.get(i), colors[i], Color.alpha(colors[i]));
+                }
+                frames[0]++;
+            }
+
+            @Override
+            public void onStop() {
+            }
+
+            @Override
+            public void onAutoModeChanged(int mode) {
+            }
+        });
+
+        // Kick on every beat, snare on the offbeat, random hats, at 120 bpm
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int frame = 0; System.nanoTime() - start < DURATION * 1000000; frame++) {
+            ArrayList<Object[]> beats = new ArrayList<>();
+            if (frame % 22 == 0)
+                beats.add(new Object[]{BeatDetector.BEAT_TYPE.KICK, 0.5F + random.nextFloat()});
+            if (frame % 22 == 11)
+                beats.add(new Object[]{BeatDetector.BEAT_TYPE.SNARE, random.nextFloat()});
+            if (random.nextInt(4) == 0)
+                beats.add(new Object[]{BeatDetector.BEAT_TYPE.HAT, random.nextFloat()});
+            renderer.updateBeats(beats);
+            Thread.sleep(FRAME);
+        }
+        float seconds = (System.nanoTime() - start) / 1e9F;
+        Thread.sleep(500);
+
+        Log.i("BridgeLoadTest", String.format("%d frames, %d sent, %d skipped",
+                frames[0], controller.getSentCommands(), controller.getSkippedCommands()));
+        for (int i = 0; i < mockBridges.length; i++) {
+            MockBridge mockBridge = mockBridges[i];
+            BridgeHealth health = controller.getHealth(i);
+            Log.i("BridgeLoadTest", String.format(
+                    "bridge %d: %.1f commands/s, %d received, %d failed, response p50 %d ms p90 %d ms p99 %d ms, " +
+                            "interval %d ms, %d throttled",
+                    i + 1, mockBridge.getAccepted() / seconds, mockBridge.getReceived(), mockBridge.getFailed(),
+                    mockBridge.getResponseTime(50), mockBridge.getResponseTime(90), mockBridge.getResponseTime(99),
+                    health.getInterval(), health.getThrottledCommands()));
+
+            // Both bridges are used, and the throttling keeps their queues short
+            assertTrue(mockBridge.getAccepted() > 0);
+            assertTrue(mockBridge.getReceived() - mockBridge.getFailed() <= mockBridge.getAccepted() + 16);
+            assertTrue(mockBridge.getResponseTime(90) < 1000);
+        }
+
+        renderer.setLEDRendererListener(null);
+        for (MockBridge mockBridge : mockBridges) {
+            sdk.removeBridge(mockBridge.getBridge());
+            mockBridge.shutdown();
+        }
+        controller.terminate();
+    }
+}
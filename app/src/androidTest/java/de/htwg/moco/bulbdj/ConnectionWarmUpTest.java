@@ -0,0 +1,93 @@
+package de.htwg.moco.bulbdj;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHHueSDK;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.htwg.moco.bulbdj.bridge.BridgeConnector;
+import de.htwg.moco.bulbdj.bridge.BridgeController;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time from the connection to the first light command accepted by a {@link MockBridge},
+ * whose resource cache is filled late like after a real connection. Compares a cold connection
+ * with a warm connection, which knows the lights from the probe of the {@link BridgeConnector}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConnectionWarmUpTest {
+
+    /**
+     * Number of lights of the bridge.
+     */
+    private static final int LIGHTS = 6;
+
+    /**
+     * Time in milliseconds until the resource cache of the bridge is filled.
+     */
+    private static final long CACHE_DELAY = 1500;
+
+    /**
+     * Time between two frames in milliseconds, about one audio block.
+     */
+    private static final long FRAME = 23;
+
+    @Test
+    public void timeToFirstLight() throws Exception {
+        long cold = measure(false);
+        long warm = measure(true);
+        Log.i("ConnectionWarmUpTest", String.format("time to first light: cold %d ms, warm %d ms", cold, warm));
+
+        // Cold, the lights are unknown until the cache is filled. Warm, the first frame reaches the bridge.
+        assertTrue(cold >= CACHE_DELAY);
+        assertTrue(warm < CACHE_DELAY / 2);
+        BridgeController.getInstance().terminate();
+    }
+
+    /**
+     * Connect to a new bridge and render frames until the bridge accepted a command.
+     * @param warm true if the lights are known before the connection
+     * @return time to the first accepted command in milliseconds
+     */
+    private long measure(boolean warm) throws Exception {
+        MockBridge mockBridge = new MockBridge(LIGHTS).setLatency(30).setCacheDelay(CACHE_DELAY);
+        PHHueSDK sdk = PHHueSDK.getInstance();
+        sdk.addBridge(mockBridge.getBridge());
+        sdk.setSelectedBridge(mockBridge.getBridge());
+
+        BridgeController controller = BridgeController.getInstance();
+        long start = System.nanoTime();
+        if (warm) {
+            // Answer of the probe
+            List<String> lights = BridgeConnector.parseLights("{\"1\":{},\"2\":{},\"3\":{},\"4\":{},\"5\":{},\"6\":{}}");
+            controller.setPrefetchedLights(lights);
+        }
+        controller.setConnected(true);
+
+        // Frames like the main activity renders them
+        int color = 0xFFFF0000;
+        while (mockBridge.getFirstAcceptTime() == 0 && System.nanoTime() - start < CACHE_DELAY * 3000000) {
+            if (!controller.isLightsEmpty()) {
+                List<String> lights = new ArrayList<>(controller.getAllLights());
+                for (String light : lights) {
+                    controller.setLightColorAndBrightness(light, color, 200);
+                }
+                color ^= 0x00FF00FF;
+            }
+            Thread.sleep(FRAME);
+        }
+        long time = (mockBridge.getFirstAcceptTime() - start) / 1000000;
+
+        controller.setConnected(false);
+        sdk.removeBridge(mockBridge.getBridge());
+        mockBridge.shutdown();
+        return time;
+    }
+}
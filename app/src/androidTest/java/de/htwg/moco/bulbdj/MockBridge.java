@@ -0,0 +1,353 @@
+package de.htwg.moco.bulbdj;
+
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.hue.sdk.PHMessageType;
+import com.philips.lighting.hue.sdk.notification.impl.PHNotificationManagerImpl;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stub of a Philips Hue bridge, used to measure the command throughput without a real bridge.
+ *
+ * The stub implements the light endpoints of {@link PHBridge}: the resource cache with the lights
+ * and the light state updates. Like a real bridge it processes the commands one after another at
+ * a limited rate, answers each command after a network latency and rejects commands if its
+ * queue is full. Failures can be injected with a given probability. All other methods do nothing.
+ */
+public class MockBridge implements InvocationHandler {
+
+    /**
+     * Network latency of a response in milliseconds.
+     */
+    private long latency = 20;
+
+    /**
+     * Commands the bridge processes per second.
+     */
+    private int rateLimit = 25;
+
+    /**
+     * Number of commands the bridge queues before it rejects commands.
+     */
+    private int queueLimit = 16;
+
+    /**
+     * Probability of a failed command, from 0 to 1.
+     */
+    private float failureRate = 0;
+
+    /**
+     * Time in milliseconds after the creation until the resource cache reports the lights,
+     * like the first heartbeat of the SDK after a connection.
+     */
+    private long cacheDelay = 0;
+
+    /**
+     * Time the bridge was created, in nanoseconds.
+     */
+    private final long createTime = System.nanoTime();
+
+    /**
+     * Time of the first accepted command in nanoseconds, 0 if none.
+     */
+    private long firstAcceptTime = 0;
+
+    /**
+     * The lights, by identifier.
+     */
+    private final Map<String, PHLight> lights = new LinkedHashMap<>();
+
+    /**
+     * The bridge and its resource cache.
+     */
+    private final PHBridge bridge;
+    private final PHBridgeResourcesCache cache;
+
+    /**
+     * Processing and response thread of the bridge.
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Random source of the failures.
+     */
+    private final Random random = new Random(42);
+
+    /**
+     * Time the bridge is done with its queued commands, in nanoseconds.
+     */
+    private long busyUntil = 0;
+
+    /**
+     * Number of queued commands.
+     */
+    private int queued = 0;
+
+    /**
+     * Count of received, accepted and failed commands.
+     */
+    private int received = 0, accepted = 0, failed = 0;
+
+    /**
+     * Response times of the accepted commands in milliseconds.
+     */
+    private final List<Long> responseTimes = new ArrayList<>();
+
+    /**
+     * Default constructor.
+     * @param lightCount number of lights of the bridge
+     */
+    public MockBridge(int lightCount) {
+        for (int i = 1; i <= lightCount; i++) {
+            String id = String.valueOf(i);
+            lights.put(id, new PHLight("Light " + id, id, "1", "LCT007"));
+        }
+        bridge = (PHBridge) Proxy.newProxyInstance(PHBridge.class.getClassLoader(),
+                new Class<?>[]{PHBridge.class}, this);
+        cache = (PHBridgeResourcesCache) Proxy.newProxyInstance(PHBridgeResourcesCache.class.getClassLoader(),
+                new Class<?>[]{PHBridgeResourcesCache.class}, this);
+    }
+
+    /**
+     * Setter method.
+     * @param latency sets the network latency of a response in milliseconds
+     * @return this bridge
+     */
+    public MockBridge setLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Setter method.
+     * @param rateLimit sets the commands the bridge processes per second
+     * @return this bridge
+     */
+    public MockBridge setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * Setter method.
+     * @param queueLimit sets the number of commands the bridge queues before it rejects commands
+     * @return this bridge
+     */
+    public MockBridge setQueueLimit(int queueLimit) {
+        this.queueLimit = queueLimit;
+        return this;
+    }
+
+    /**
+     * Setter method.
+     * @param failureRate sets the probability of a failed command, from 0 to 1
+     * @return this bridge
+     */
+    public MockBridge setFailureRate(float failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Setter method.
+     * @param cacheDelay sets the time in milliseconds until the resource cache reports the lights
+     * @return this bridge
+     */
+    public MockBridge setCacheDelay(long cacheDelay) {
+        this.cacheDelay = cacheDelay;
+
+        // Like the heartbeat, the SDK listeners are notified once the cache is filled
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                PHNotificationManagerImpl.getNotificationManager().notifyCacheUpdated(
+                        Collections.singletonList(PHMessageType.LIGHTS_CACHE_UPDATED), bridge);
+            }
+        }, cacheDelay, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Getter method.
+     * @return the bridge, to be added to the SDK
+     */
+    public PHBridge getBridge() {
+        return bridge;
+    }
+
+    /**
+     * Getter method.
+     * @return count of received commands
+     */
+    public synchronized int getReceived() {
+        return received;
+    }
+
+    /**
+     * Getter method.
+     * @return count of accepted commands
+     */
+    public synchronized int getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Getter method.
+     * @return count of failed or rejected commands
+     */
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Getter method.
+     * @return time of the first accepted command in nanoseconds, like {@link System#nanoTime()}, 0 if none
+     */
+    public synchronized long getFirstAcceptTime() {
+        return firstAcceptTime;
+    }
+
+    /**
+     * Percentile of the response times of the accepted commands.
+     * @param percentile from 0 to 100
+     * @return response time in milliseconds, 0 if no command was accepted
+     */
+    public synchronized long getResponseTime(int percentile) {
+        if (responseTimes.isEmpty())
+            return 0;
+        Long[] times = responseTimes.toArray(new Long[responseTimes.size()]);
+        Arrays.sort(times);
+        return times[Math.min(times.length - 1, times.length * percentile / 100)];
+    }
+
+    /**
+     * Stop the bridge. Queued commands are not answered.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getResourceCache":
+                return cache;
+            case "getLights":
+                return isCacheFilled() ? lights : new LinkedHashMap<String, PHLight>();
+            case "getAllLights":
+                return isCacheFilled() ? new ArrayList<>(lights.values()) : new ArrayList<PHLight>();
+            case "updateLightState":
+                if (args.length == 3 && args[2] instanceof PHLightListener)
+                    updateLightState(args[0], (PHLightState) args[1], (PHLightListener) args[2]);
+                return null;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "MockBridge";
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Queue a light state command and answer it when it was processed.
+     * @param light the light or its identifier
+     * @param lightState the new state
+     * @param listener the listener of the response
+     */
+    private void updateLightState(Object light, PHLightState lightState, final PHLightListener listener) {
+        final long start = System.nanoTime();
+        final boolean fail, inQueue;
+        long delay;
+        synchronized (this) {
+            received++;
+            String id = light instanceof PHLight ? ((PHLight) light).getIdentifier() : (String) light;
+            if (!lights.containsKey(id) || queued >= queueLimit) {
+                fail = true;
+                inQueue = false;
+                delay = latency;
+            } else {
+                // Serial processing at the rate limit
+                busyUntil = Math.max(busyUntil, start) + 1000000000L / rateLimit;
+                fail = random.nextFloat() < failureRate;
+                delay = (busyUntil - start) / 1000000 + latency;
+                inQueue = true;
+                queued++;
+            }
+            if (fail)
+                failed++;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MockBridge.this) {
+                    if (inQueue)
+                        queued--;
+                    if (!fail) {
+                        if (accepted == 0)
+                            firstAcceptTime = System.nanoTime();
+                        accepted++;
+                        responseTimes.add((System.nanoTime() - start) / 1000000);
+                    }
+                }
+                if (fail)
+                    listener.onError(PHHueError.BRIDGE_NOT_RESPONDING, "Mock failure");
+                else
+                    listener.onSuccess();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Does the resource cache report the lights.
+     * @return true if the cache delay is over
+     */
+    private boolean isCacheFilled() {
+        return System.nanoTime() - createTime >= cacheDelay * 1000000;
+    }
+
+    /**
+     * Default value of a return type.
+     * @param type the return type
+     * @return null, false or 0
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class)
+            return null;
+        if (type == boolean.class)
+            return false;
+        if (type == long.class)
+            return 0L;
+        if (type == float.class)
+            return 0F;
+        if (type == double.class)
+            return 0D;
+        if (type == char.class)
+            return '\0';
+        if (type == byte.class)
+            return (byte) 0;
+        if (type == short.class)
+            return (short) 0;
+        return 0;
+    }
+}
@@ -0,0 +1,77 @@
+package de.htwg.moco.bulbdj;
+
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import de.htwg.moco.bulbdj.activities.MainActivity;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Startup benchmark of the {@link MainActivity}, which will execute on an Android device.
+ * Measures the time until the first frame is drawn and the duration of the background startup.
+ * The first launch is a cold start of the activity and its singletons, the others are warm starts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmarkTest {
+
+    /**
+     * Number of launches.
+     */
+    private static final int LAUNCHES = 5;
+
+    /**
+     * Time in milliseconds the background startup may take.
+     */
+    private static final long TIMEOUT = 10000;
+
+    @Test
+    public void startup() throws Exception {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        long[] firstFrame = new long[LAUNCHES];
+        long[] startup = new long[LAUNCHES];
+
+        for (int i = 0; i < LAUNCHES; i++) {
+            Intent intent = new Intent(Intent.ACTION_MAIN);
+            intent.setClassName(instrumentation.getTargetContext(), MainActivity.class.getName());
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+
+            long start = SystemClock.uptimeMillis();
+            final MainActivity activity = (MainActivity) instrumentation.startActivitySync(intent);
+            instrumentation.waitForIdleSync();
+            firstFrame[i] = SystemClock.uptimeMillis() - start;
+
+            while (!activity.isStartupFinished() && SystemClock.uptimeMillis() - start < TIMEOUT) {
+                Thread.sleep(5);
+            }
+            assertTrue(activity.isStartupFinished());
+            startup[i] = activity.getStartupDuration();
+
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    activity.finish();
+                }
+            });
+            instrumentation.waitForIdleSync();
+        }
+
+        Log.i("StartupBenchmark", String.format("cold start: first frame %d ms, background startup %d ms",
+                firstFrame[0], startup[0]));
+        long[] warmFrames = Arrays.copyOfRange(firstFrame, 1, LAUNCHES);
+        long[] warmStartups = Arrays.copyOfRange(startup, 1, LAUNCHES);
+        Arrays.sort(warmFrames);
+        Arrays.sort(warmStartups);
+        Log.i("StartupBenchmark", String.format("warm start (median of %d): first frame %d ms, background startup %d ms",
+                LAUNCHES - 1, warmFrames[warmFrames.length / 2], warmStartups[warmStartups.length / 2]));
+    }
+}
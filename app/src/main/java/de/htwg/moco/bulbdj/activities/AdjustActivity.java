@@ -5,8 +5,11 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
 import android.widget.SeekBar;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 
@@ -16,6 +19,7 @@ import de.htwg.moco.bulbdj.R;
 import de.htwg.moco.bulbdj.bridge.BridgeController;
 import de.htwg.moco.bulbdj.data.AppProperties;
 import de.htwg.moco.bulbdj.detector.AudioManager;
+import de.htwg.moco.bulbdj.renderers.EffectsEngine;
 import de.htwg.moco.bulbdj.renderers.LEDRenderer;
 
 /**
@@ -23,6 +27,9 @@ import de.htwg.moco.bulbdj.renderers.LEDRenderer;
  * <br>Provided features:
  * <br>Setting delay of beat (frequency of detection)
  * <br>Switch for beat detection mode
+ * <br>Switch for stereo recording
+ * <br>Switch for low latency recording
+ * <br>Selection of light effect
  * <br>Setting sensitivity of microphone
  * <br>Setting brightness of bulbs
  *
@@ -48,6 +55,24 @@ public class AdjustActivity extends AppCompatActivity {
     @BindView(R.id.mode_switch)
     Switch modeSwitch;
 
+    /**
+     * Stereo switch reference.
+     */
+    @BindView(R.id.stereo_switch)
+    Switch stereoSwitch;
+
+    /**
+     * Low latency switch reference.
+     */
+    @BindView(R.id.low_latency_switch)
+    Switch lowLatencySwitch;
+
+    /**
+     * Effect spinner reference.
+     */
+    @BindView(R.id.effect_spinner)
+    Spinner effectSpinner;
+
     /**
      * Sensitivity seek bar reference.
      */
@@ -85,6 +110,11 @@ public class AdjustActivity extends AppCompatActivity {
 
         initModeSwitch();
 
+        initStereoSwitch();
+        initLowLatencySwitch();
+
+        initEffectSpinner();
+
         initBrightnessBar();
     }
 
@@ -171,6 +201,63 @@ public class AdjustActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Methods initializes stereo switch component.
+     * The recording is switched on the next start.
+     */
+    private void initStereoSwitch() {
+        stereoSwitch.setChecked(AppProperties.getInstance().isStereo());
+
+        stereoSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                AppProperties.getInstance().setStereo(isChecked);
+                AppProperties.getInstance().saveProperties();
+                AudioManager.getInstance().setStereo(isChecked);
+            }
+        });
+    }
+
+    /**
+     * Methods initializes low latency switch component.
+     * The recording is switched on the next start.
+     */
+    private void initLowLatencySwitch() {
+        lowLatencySwitch.setChecked(AppProperties.getInstance().isLowLatency());
+
+        lowLatencySwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                AppProperties.getInstance().setLowLatency(isChecked);
+                AppProperties.getInstance().saveProperties();
+                AudioManager.getInstance().setLowLatency(getApplicationContext(), isChecked);
+            }
+        });
+    }
+
+    /**
+     * Methods initializes effect spinner component.
+     * The effect is applied when the main activity loads the settings.
+     */
+    private void initEffectSpinner() {
+        ArrayAdapter spinnerAdapter = new ArrayAdapter(this, R.layout.support_simple_spinner_dropdown_item, getResources().getStringArray(R.array.effects_array));
+        spinnerAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        effectSpinner.setAdapter(spinnerAdapter);
+        effectSpinner.setSelection(EffectsEngine.effectOf(AppProperties.getInstance().getEffect()).ordinal());
+
+        effectSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
+                AppProperties.getInstance().setEffect(i);
+                AppProperties.getInstance().saveProperties();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> adapterView) {
+            }
+        });
+    }
+
     /**
      * Methods sets components when mode switch value changed.
      *
@@ -226,9 +313,7 @@ public class AdjustActivity extends AppCompatActivity {
      */
     private void setLightBrightness(int brightnessValue) {
         if (BridgeController.getInstance().isConnected() && !BridgeController.getInstance().isLightsEmpty()) {
-            for (String idn : BridgeController.getInstance().getAllLights()) {
-                BridgeController.getInstance().setLightBrightness(idn, brightnessValue);
-            }
+            BridgeController.getInstance().setBrightnessOfAllLights(brightnessValue);
         }
     }
 
@@ -4,7 +4,9 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -26,6 +28,8 @@ import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
 import com.philips.lighting.model.PHHueParsingError;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,10 +39,15 @@ import butterknife.OnClick;
 import de.htwg.moco.bulbdj.R;
 import de.htwg.moco.bulbdj.bridge.BridgeController;
 import de.htwg.moco.bulbdj.data.AppProperties;
-import de.htwg.moco.bulbdj.data.ConnectionProperties;
 import de.htwg.moco.bulbdj.detector.AudioManager;
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.detector.Clock;
 import de.htwg.moco.bulbdj.detector.Modes;
+import de.htwg.moco.bulbdj.renderers.CuePlayer;
+import de.htwg.moco.bulbdj.renderers.CueRecorder;
+import de.htwg.moco.bulbdj.renderers.EffectsEngine;
 import de.htwg.moco.bulbdj.renderers.LEDRenderer;
+import de.htwg.moco.bulbdj.renderers.LightMapper;
 import de.htwg.moco.bulbdj.views.DemoView;
 import de.htwg.moco.bulbdj.views.VisualizerView;
 
@@ -67,6 +76,31 @@ public class MainActivity extends AppCompatActivity {
      */
     private static final int MY_PERMISSIONS_REQUEST_RECORD_AUDIO = 1;
 
+    /**
+     * File of the event log in the app's files directory.
+     */
+    public static final String EVENT_LOG_FILE = "events.bin";
+
+    /**
+     * File of the cues of the last show in the app's files directory.
+     */
+    public static final String CUE_FILE = "cues.bin";
+
+    /**
+     * File of the detector states of the last recording in the app's files directory.
+     */
+    public static final String DETECTOR_STATE_FILE = "detector.bin";
+
+    /**
+     * Maximum delay of a beat after its onset in milliseconds, older onset times are not trusted.
+     */
+    private static final long MAX_ONSET_DELAY = 200;
+
+    /**
+     * Maximum size of the cues of a show in bytes.
+     */
+    private static final int MAX_CUE_SIZE = 4 * 1024 * 1024;
+
     /**
      * Audio manager reference.
      */
@@ -77,6 +111,56 @@ public class MainActivity extends AppCompatActivity {
      */
     private LEDRenderer ledRenderer;
 
+    /**
+     * Mapping of the LED renderer colors to the lights.
+     */
+    private LightMapper lightMapper;
+
+    /**
+     * Number of groups of the light mapper.
+     */
+    private int lightMapperGroups;
+
+    /**
+     * Spatial effects over the lights.
+     */
+    private EffectsEngine effectsEngine = new EffectsEngine();
+
+    /**
+     * Last colors of the LED renderer, used by the effects.
+     */
+    private int[] lastBulbColors;
+
+    /**
+     * Time of the last effect update.
+     */
+    private long lastEffectUpdate = 0;
+
+    /**
+     * Light the next update starts with.
+     */
+    private int firstLight = 0;
+
+    /**
+     * Recorder of the cues of the current show.
+     */
+    private final CueRecorder cueRecorder = new CueRecorder(MAX_CUE_SIZE);
+
+    /**
+     * Should the recording of the cues start with the next update of the lights.
+     */
+    private boolean cueRecordingPending = false;
+
+    /**
+     * Flags of the last detected beats, for the cues.
+     */
+    private int beatFlags = 0;
+
+    /**
+     * Replay of the cues of the last show, null if no replay was started.
+     */
+    private CuePlayer cuePlayer;
+
     /**
      * Visualizer view reference.
      */
@@ -112,6 +196,11 @@ public class MainActivity extends AppCompatActivity {
      */
     private boolean autoChange = false;
 
+    /**
+     * Background startup of the activity.
+     */
+    private StartupTask startupTask;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -119,16 +208,11 @@ public class MainActivity extends AppCompatActivity {
         ButterKnife.bind(this);
         setSupportActionBar(toolbar);
         BridgeController.setContext(this.getApplicationContext());
-        BridgeController.getInstance().registerPhsdkListener(phsdkListener);
-        AppProperties.getInstance().setContext(this.getApplicationContext());
-
-        if (BridgeController.getInstance().getConnectionProperties().isAutoStart() &&
-                BridgeController.getInstance().propertiesDefined()) {
-            autoConnect();
-        }
 
         ledRenderer = LEDRenderer.getInstance();
         audioManager = AudioManager.getInstance();
+        ledRenderer.setModeClassifier(audioManager.getModeClassifier());
+        audioManager.setStateFile(new File(getFilesDir(), DETECTOR_STATE_FILE));
 
         initModeSpinner();
 
@@ -136,14 +220,71 @@ public class MainActivity extends AppCompatActivity {
 
         initLEDRenderer();
 
-        loadSettings();
-
-        if (!BridgeController.getInstance().isConnected()) {
-            demoView.setVisibility(View.VISIBLE);
-        }
-
+        // A running recording can always be stopped, a new one waits for the stored settings
         if (audioManager.isRunning())
             recordButton.setText(R.string.stop);
+        else
+            recordButton.setEnabled(false);
+
+        // Properties and connection are loaded in the background, the settings are applied when done
+        startupTask = new StartupTask(this.getApplicationContext(), phsdkListener, ledRenderer.getPaletteColors());
+        startupTask.setStartupListener(new StartupTask.StartupListener() {
+            @Override
+            public void onStartupFinished() {
+                loadSettings();
+                recordButton.setEnabled(true);
+
+                if (!BridgeController.getInstance().isConnected()) {
+                    demoView.setVisibility(View.VISIBLE);
+                }
+            }
+        });
+        startupTask.start();
+    }
+
+    /**
+     * Getter method.
+     * @return true if the properties are loaded and the connection is started
+     */
+    public boolean isStartupFinished() {
+        return startupTask != null && startupTask.isFinished();
+    }
+
+    /**
+     * Getter method.
+     * @return duration of the background startup in milliseconds, 0 if not finished
+     */
+    public long getStartupDuration() {
+        return startupTask != null ? startupTask.getDuration() : 0;
+    }
+
+    /**
+     * The light effect may have been changed in the adjust activity.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (isStartupFinished())
+            effectsEngine.setEffect(EffectsEngine.effectOf(AppProperties.getInstance().getEffect()));
+    }
+
+    /**
+     * The events of the show are dumped to the file {@link #EVENT_LOG_FILE} for post-mortem traces.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        final File file = new File(getFilesDir(), EVENT_LOG_FILE);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LEDRenderer.getInstance().getEventLog().dump(file);
+                } catch (IOException e) {
+                    Log.e("MainActivity", "Could not dump the event log");
+                }
+            }
+        });
     }
 
     @Override
@@ -161,7 +302,10 @@ public class MainActivity extends AppCompatActivity {
     private void loadSettings() {
         audioManager.setSettings(AppProperties.getInstance().getSensitivity());
         audioManager.setBeatDetectorOn(AppProperties.getInstance().isModeSwitch());
+        audioManager.setStereo(AppProperties.getInstance().isStereo());
+        audioManager.setLowLatency(this.getApplicationContext(), AppProperties.getInstance().isLowLatency());
         ledRenderer.getInstance().setDelay(AppProperties.getInstance().getDelay());
+        effectsEngine.setEffect(EffectsEngine.effectOf(AppProperties.getInstance().getEffect()));
     }
 
     /**
@@ -203,8 +347,21 @@ public class MainActivity extends AppCompatActivity {
         audioManager.setAudioMangerListener(new AudioManager.AudioManagerListener() {
             @Override
             public void onBeatDetected(ArrayList<Object[]> beats) {
-                if (audioManager.isDetectorOn())
+                if (audioManager.isDetectorOn()) {
+                    beatFlags = CueRecorder.beatFlags(beats);
                     ledRenderer.updateBeats(beats);
+                    startRipple(beats);
+                }
+            }
+
+            @Override
+            public void onStereoBeatDetected(ArrayList<Object[]> left, ArrayList<Object[]> right) {
+                if (audioManager.isDetectorOn()) {
+                    beatFlags = CueRecorder.beatFlags(left) | CueRecorder.beatFlags(right);
+                    ledRenderer.updateStereoBeats(left, right);
+                    startRipple(left);
+                    startRipple(right);
+                }
             }
 
             @Override
@@ -218,11 +375,36 @@ public class MainActivity extends AppCompatActivity {
                 visualizerView.updateVisualizer(result);
                 if (!audioManager.isDetectorOn())
                     ledRenderer.updateFrequency(result);
+
+                long now = SystemClock.uptimeMillis();
+                if (effectsEngine.getEffect() != EffectsEngine.Effect.NONE && lastBulbColors != null &&
+                        now - lastEffectUpdate >= ledRenderer.getDelay()) {
+                    lastEffectUpdate = now;
+                    updateLights(lastBulbColors, result);
+                }
             }
 
         });
     }
 
+    /**
+     * Methods starts a ripple effect if a kick was detected.
+     *
+     * @param beats the detected beats
+     */
+    private void startRipple(ArrayList<Object[]> beats) {
+        if (beats == null) return;
+        for (Object[] beat : beats) {
+            if (beat[0] == BeatDetector.BEAT_TYPE.KICK) {
+                // The ripple starts at the onset, the delay of the recording and the detection is skipped
+                long delay = beat.length > 2 ? (Clock.SYSTEM.nanoTime() - (long) beat[2]) / 1000000 : 0;
+                long onset = SystemClock.uptimeMillis() - Math.max(0, Math.min(MAX_ONSET_DELAY, delay));
+                // Same scale as the alpha of the LED renderer
+                effectsEngine.onKick(((float) beat[1] * 110 + 80) / 255F, onset);
+            }
+        }
+    }
+
     /**
      * Methods initializes LED renderer.
      */
@@ -234,17 +416,10 @@ public class MainActivity extends AppCompatActivity {
 
                 demoView.updateVisualizer(bulbColors);
 
-                BridgeController bridgeController = BridgeController.getInstance();
-                if (bridgeController.isLightsEmpty()) return;
-
-                int counter = 0;
-                for (String light : bridgeController.getAllLights()) {
-                    if (audioManager.isDetectorOn()) {
-                        bridgeController.setLightColor(light, bulbColors[counter++ % 3]);
-                    } else {
-                        bridgeController.setLightColorAndBrightness(light, bulbColors[counter++ % 3], Color.alpha(bulbColors[counter++ % 3]));
-                    }
-                }
+                // With an effect the lights are updated on every fft frame instead
+                lastBulbColors = bulbColors;
+                if (effectsEngine.getEffect() == EffectsEngine.Effect.NONE)
+                    updateLights(bulbColors, null);
             }
 
             @Override
@@ -268,6 +443,118 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Methods sends the colors of the LED renderer to the lights.
+     *
+     * @param bulbColors colors of the LED renderer
+     * @param spectrum the raw fft data if an effect is rendered, otherwise null
+     */
+    private void updateLights(int[] bulbColors, double[] spectrum) {
+        BridgeController bridgeController = BridgeController.getInstance();
+        if (bridgeController.isLightsEmpty()) return;
+
+        List<String> lights = bridgeController.getAllLights();
+
+        // In the frequency mode each light shows its own band
+        boolean frequency = !audioManager.isDetectorOn();
+        if (frequency)
+            ledRenderer.setFrequencyChannels(Math.min(lights.size(), LEDRenderer.MAX_FREQUENCY_CHANNELS));
+
+        // In stereo mode the lights are split into one group per channel
+        int groups = frequency ? bulbColors.length : Math.max(1, bulbColors.length / 3);
+        if (lightMapper == null || lightMapper.getLightCount() != lights.size() ||
+                lightMapper.getChannelCount() != bulbColors.length || lightMapperGroups != groups) {
+            lightMapper = new LightMapper(lights.size(), bulbColors.length);
+            lightMapper.setGrouped(groups);
+            lightMapperGroups = groups;
+        }
+
+        int[] lightColors = lightMapper.map(bulbColors);
+        boolean effect = spectrum != null;
+        if (effect) {
+            if (effectsEngine.getLightCount() != lights.size())
+                effectsEngine.setLightCount(lights.size());
+            lightColors = effectsEngine.render(lightColors, spectrum, SystemClock.uptimeMillis());
+        }
+
+        // With beats the alpha is the energy of the beat, otherwise the brightness
+        boolean brightness = !audioManager.isDetectorOn() || effect;
+        int count = lights.size();
+        if (cueRecordingPending) {
+            cueRecorder.start(Math.min(count, CueRecorder.MAX_LIGHTS));
+            cueRecordingPending = false;
+        }
+        cueRecorder.record(SystemClock.uptimeMillis(), beatFlags | (brightness ? CueRecorder.BRIGHTNESS : 0), lightColors);
+
+        // Start at another light each frame, so a throttled bridge does not starve the last lights
+        firstLight = (firstLight + 1) % count;
+        for (int n = 0; n < count; n++) {
+            int i = (firstLight + n) % count;
+            sendLightColor(bridgeController, lights.get(i), lightColors[i], brightness);
+        }
+    }
+
+    /**
+     * Methods sends a color to a light.
+     *
+     * @param bridgeController the bridge controller
+     * @param light identifier of the light
+     * @param color the color, 0 if the light is not changed
+     * @param brightness true if the alpha of the color is the brightness of the light
+     */
+    private static void sendLightColor(BridgeController bridgeController, String light, int color, boolean brightness) {
+        if (color == 0)
+            return;
+        if (brightness) {
+            bridgeController.setLightColorAndBrightness(light, color, Color.alpha(color));
+        } else {
+            bridgeController.setLightColor(light, color);
+        }
+    }
+
+    /**
+     * Methods replays the cues of the last show, or stops the replay.
+     * The cues are sent to the lights from the thread of the player.
+     */
+    private void replayCues() {
+        if (cuePlayer != null && cuePlayer.isRunning()) {
+            cuePlayer.stop();
+            return;
+        }
+        if (!BridgeController.getInstance().isConnected() || BridgeController.getInstance().isLightsEmpty()) {
+            Toast.makeText(this.getApplicationContext(), "Not Connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (audioManager.isRunning())
+            stopRecorder(recordButton);
+
+        try {
+            cuePlayer = new CuePlayer(new File(getFilesDir(), CUE_FILE), true);
+        } catch (IOException e) {
+            Toast.makeText(this.getApplicationContext(), R.string.no_cues, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final List<String> lights = new ArrayList<>(BridgeController.getInstance().getAllLights());
+        cuePlayer.setCuePlayerListener(new CuePlayer.CuePlayerListener() {
+            @Override
+            public void onCue(long time, int flags, long changed, int[] colors) {
+                BridgeController bridgeController = BridgeController.getInstance();
+                boolean brightness = (flags & CueRecorder.BRIGHTNESS) != 0;
+                int count = Math.min(colors.length, lights.size());
+                for (int i = 0; i < count; i++) {
+                    if ((changed & (1L << i)) != 0)
+                        sendLightColor(bridgeController, lights.get(i), colors[i], brightness);
+                }
+            }
+
+            @Override
+            public void onFinished() {
+            }
+        });
+        cuePlayer.start();
+    }
+
     /**
      * Methods sets brightness of lights
      *
@@ -277,10 +564,7 @@ public class MainActivity extends AppCompatActivity {
         if (!BridgeController.getInstance().isConnected() || BridgeController.getInstance().isLightsEmpty())
             return;
 
-        for (String idn : BridgeController.getInstance().getAllLights()) {
-            BridgeController.getInstance().setLightBrightness(idn, brightnessValue);
-        }
-
+        BridgeController.getInstance().setBrightnessOfAllLights(brightnessValue);
     }
 
     @Override
@@ -329,24 +613,14 @@ public class MainActivity extends AppCompatActivity {
                 intent = new Intent(this, AdjustActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.action_replay:
+                replayCues();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
-    /**
-     * Method called if properties are set. Automatically connects to the bridge, without interrupting the user.
-     */
-    private void autoConnect() {
-        ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
-        String ipAddress = connectionProperties.getIpAddress();
-        String macAddress = connectionProperties.getMacAddress();
-        String userName = connectionProperties.getUserName();
-
-        PHAccessPoint accessPoint = new PHAccessPoint(ipAddress, userName, macAddress);
-        BridgeController.getInstance().getPHHueSDK().connect(accessPoint);
-    }
-
     /**
      * Start the recorder.
      *
@@ -361,6 +635,9 @@ public class MainActivity extends AppCompatActivity {
      * Start the recorder.
      */
     private void startRecorder() {
+        if (cuePlayer != null)
+            cuePlayer.stop();
+        cueRecordingPending = true;
         audioManager.start();
         int i = modeSpinner.getSelectedItemPosition();
         ledRenderer.setMode(Modes.values()[i]);
@@ -381,6 +658,29 @@ public class MainActivity extends AppCompatActivity {
      */
     private void stopRecorder() {
         audioManager.stop();
+        saveCues();
+    }
+
+    /**
+     * Methods stops the recording of the cues and saves them to the file {@link #CUE_FILE} for a replay.
+     */
+    private void saveCues() {
+        cueRecordingPending = false;
+        cueRecorder.stop();
+        if (cueRecorder.getFrameCount() == 0)
+            return;
+
+        final File file = new File(getFilesDir(), CUE_FILE);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cueRecorder.save(file);
+                } catch (IOException e) {
+                    Log.e("MainActivity", "Could not save the cues");
+                }
+            }
+        });
     }
 
     @OnClick(R.id.start_stop_btn)
@@ -484,6 +784,7 @@ public class MainActivity extends AppCompatActivity {
      */
     @Override
     protected void onDestroy() {
+        startupTask.setStartupListener(null);
         BridgeController.getInstance().terminate();
         super.onDestroy();
     }
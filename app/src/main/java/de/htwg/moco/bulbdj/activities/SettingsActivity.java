@@ -98,8 +98,9 @@ public class SettingsActivity extends AppCompatActivity {
      */
     private void refreshButtonStatus() {
         if (BridgeController.getInstance().isConnected()) {
+            // Further bridges can be paired while connected
             disconnect.setEnabled(true);
-            setup.setEnabled(false);
+            setup.setEnabled(true);
         } else {
             disconnect.setEnabled(false);
             setup.setEnabled(true);
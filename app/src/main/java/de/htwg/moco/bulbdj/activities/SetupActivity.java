@@ -14,8 +14,6 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 
 import com.philips.lighting.hue.sdk.PHAccessPoint;
-import com.philips.lighting.hue.sdk.PHBridgeSearchManager;
-import com.philips.lighting.hue.sdk.PHHueSDK;
 import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
 import com.philips.lighting.model.PHHueParsingError;
@@ -27,6 +25,7 @@ import butterknife.ButterKnife;
 import butterknife.OnClick;
 import de.htwg.moco.bulbdj.R;
 import de.htwg.moco.bulbdj.bridge.BridgeController;
+import de.htwg.moco.bulbdj.bridge.BridgeDiscovery;
 import de.htwg.moco.bulbdj.data.ConnectionProperties;
 
 /**
@@ -72,6 +71,11 @@ public class SetupActivity extends AppCompatActivity {
     @BindView(R.id.progress_bar)
     ProgressBar progressBar;
 
+    /**
+     * Access point which is being connected, null if none.
+     */
+    private PHAccessPoint pendingAccessPoint;
+
     /**
      * Status OK identificator.
      */
@@ -131,42 +135,56 @@ public class SetupActivity extends AppCompatActivity {
 
     /**
      * Method is executed when search button clicked.
-     * It search for new access points.
+     * It search for new access points. A recent result of the last search is shown at once.
      */
     @OnClick(R.id.search)
     void onClickSearch() {
-        PHBridgeSearchManager sm = (PHBridgeSearchManager) BridgeController.getInstance().getPHHueSDK().getSDKService(PHHueSDK.SEARCH_BRIDGE);
         progressBar.setVisibility(View.VISIBLE);
         progressBar.setIndeterminate(true);
-        sm.search(true, true);
+        BridgeDiscovery.getInstance().search(discoveryListener, false);
     }
 
-
     /**
-     * Method connects to provided access point.
+     * Method shows the found access points in the list view, in one update.
      *
-     * @param accessPoint to connect
+     * @param accessPoints found access points
      */
-    private void connectToBridge(PHAccessPoint accessPoint) {
-        ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
-        connectionProperties.setIpAddress(accessPoint.getIpAddress());
-        connectionProperties.setMacAddress(accessPoint.getMacAddress());
-        accessPoint.setUsername(connectionProperties.getUserName());
-        BridgeController.getInstance().getPHHueSDK().connect(accessPoint);
+    private void showAccessPoints(final List<PHAccessPoint> accessPoints) {
+        SetupActivity.this.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                accessPointsList = accessPoints;
+                adapter.setNotifyOnChange(false);
+                adapter.clear();
+                for (PHAccessPoint accessPoint : accessPoints) {
+                    adapter.add(accessPoint.getIpAddress() + " | " + accessPoint.getMacAddress());
+                }
+                adapter.notifyDataSetChanged();
+            }
+        });
     }
 
     /**
-     * Listener for notifications from Philips Hue SDK.
+     * Listener of the search for access points.
      */
-    private PHSDKListener phsdkListener = new PHSDKListener() {
+    private BridgeDiscovery.DiscoveryListener discoveryListener = new BridgeDiscovery.DiscoveryListener() {
 
         /**
-         * If access points found, progress bar terminates and access points
-         * are listed in list view.
-         * @param accessPointsList list of found access points
+         * Found access points are listed in list view.
+         * @param accessPoints all access points found so far
          */
         @Override
-        public void onAccessPointsFound(List<PHAccessPoint> accessPointsList) {
+        public void onAccessPointsFound(List<PHAccessPoint> accessPoints) {
+            showAccessPoints(accessPoints);
+        }
+
+        /**
+         * If the search finished, progress bar terminates.
+         * @param accessPoints all found access points
+         */
+        @Override
+        public void onDiscoveryFinished(List<PHAccessPoint> accessPoints) {
+            showAccessPoints(accessPoints);
             SetupActivity.this.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -174,15 +192,32 @@ public class SetupActivity extends AppCompatActivity {
                     progressBar.setVisibility(View.GONE);
                 }
             });
-            SetupActivity.this.accessPointsList = accessPointsList;
-            for (final PHAccessPoint accessPoint : accessPointsList) {
-                SetupActivity.this.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        adapter.add(accessPoint.getIpAddress() + " | " + accessPoint.getMacAddress());
-                    }
-                });
-            }
+        }
+    };
+
+    /**
+     * Method connects to provided access point.
+     * The user of a bridge paired before is reused, other bridges are paired in addition.
+     *
+     * @param accessPoint to connect
+     */
+    private void connectToBridge(PHAccessPoint accessPoint) {
+        ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
+        for (PHAccessPoint bridge : connectionProperties.getBridges()) {
+            if (bridge.getMacAddress() != null && bridge.getMacAddress().equalsIgnoreCase(accessPoint.getMacAddress()))
+                accessPoint.setUsername(bridge.getUsername());
+        }
+        pendingAccessPoint = accessPoint;
+        BridgeController.getInstance().getPHHueSDK().connect(accessPoint);
+    }
+
+    /**
+     * Listener for notifications from Philips Hue SDK.
+     */
+    private PHSDKListener phsdkListener = new PHSDKListener() {
+
+        @Override
+        public void onAccessPointsFound(List<PHAccessPoint> accessPointsList) {
         }
 
         /**
@@ -202,15 +237,18 @@ public class SetupActivity extends AppCompatActivity {
         }
 
         /**
-         * If bridge connected, new properties are saved and status is returned to main activity.
+         * If bridge connected, it is added to the paired bridges and status is returned to main activity.
          * @param bridge connected bridge
          * @param username given username by bridge, which is needed to authenticate for auto connection
          */
         @Override
         public void onBridgeConnected(PHBridge bridge, String username) {
-            ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
-            connectionProperties.setUserName(username);
-            connectionProperties.saveProperties();
+            PHAccessPoint accessPoint = pendingAccessPoint;
+            if (accessPoint != null) {
+                ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
+                connectionProperties.putBridge(accessPoint.getIpAddress(), username, accessPoint.getMacAddress());
+                connectionProperties.saveProperties();
+            }
             BridgeController.getInstance().setConnected(true);
             SetupActivity.this.runOnUiThread(new Runnable() {
                 @Override
@@ -244,10 +282,12 @@ public class SetupActivity extends AppCompatActivity {
     };
 
     /**
-     * Before destroying, created instance of PHSDKListener is unregistered from SDK listeners.
+     * Before destroying, created instance of PHSDKListener is unregistered from SDK listeners
+     * and the listener of the bridge search is removed.
      */
     @Override
     protected void onDestroy() {
+        BridgeDiscovery.getInstance().removeListener(discoveryListener);
         BridgeController.getInstance().getPHHueSDK().getNotificationManager().unregisterSDKListener(phsdkListener);
         super.onDestroy();
     }
@@ -0,0 +1,133 @@
+package de.htwg.moco.bulbdj.activities;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.philips.lighting.hue.sdk.PHSDKListener;
+
+import de.htwg.moco.bulbdj.bridge.BridgeConnector;
+import de.htwg.moco.bulbdj.bridge.BridgeController;
+import de.htwg.moco.bulbdj.data.AppProperties;
+import de.htwg.moco.bulbdj.data.ConnectionProperties;
+
+/**
+ * Class runs the startup of the app in the background, so the main activity renders
+ * its first frame without waiting for the disk or the bridge.
+ * <p>
+ * Steps of the startup:
+ * <br>Loading of the app properties and the connection properties
+ * <br>Registration of the SDK listener and conversion of the palette colors
+ * <br>Automatic connection to the bridge, if enabled, by the {@link BridgeConnector}
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class StartupTask extends AsyncTask<Void, Void, Void> {
+
+    /**
+     * Interface of {@link StartupTask} class.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public interface StartupListener {
+
+        /**
+         * Properties are loaded and the connection is started. Called on the main thread.
+         */
+        void onStartupFinished();
+    }
+
+    /**
+     * Application context.
+     */
+    private final Context context;
+
+    /**
+     * Listener for notifications from Philips Hue SDK.
+     */
+    private final PHSDKListener phsdkListener;
+
+    /**
+     * Colors converted in advance.
+     */
+    private final int[] paletteColors;
+
+    /**
+     * Instance of {@link StartupListener} class.
+     */
+    private StartupListener listener;
+
+    /**
+     * Time the startup was created and finished, in milliseconds since boot.
+     */
+    private volatile long createTime, finishTime = 0;
+
+    /**
+     * Default constructor.
+     * @param context application context
+     * @param phsdkListener listener that is registered
+     * @param paletteColors colors converted in advance, e.g. the palettes of the LED renderer
+     */
+    public StartupTask(Context context, PHSDKListener phsdkListener, int[] paletteColors) {
+        this.context = context;
+        this.phsdkListener = phsdkListener;
+        this.paletteColors = paletteColors;
+        this.createTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Setter method.
+     * @param listener sets the listener of {@link StartupListener} class, null to remove it
+     */
+    public void setStartupListener(StartupListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Getter method.
+     * @return true if the startup is finished
+     */
+    public boolean isFinished() {
+        return finishTime > 0;
+    }
+
+    /**
+     * Getter method.
+     * @return duration of the startup in milliseconds, 0 if not finished
+     */
+    public long getDuration() {
+        return isFinished() ? finishTime - createTime : 0;
+    }
+
+    /**
+     * Start the startup on the thread pool. The serial executor may be blocked by a running recorder.
+     */
+    public void start() {
+        executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected Void doInBackground(Void... voids) {
+        AppProperties.getInstance().setContext(context);
+
+        BridgeController bridgeController = BridgeController.getInstance();
+        bridgeController.registerPhsdkListener(phsdkListener);
+        bridgeController.warmColorCache(paletteColors);
+
+        ConnectionProperties connectionProperties = bridgeController.getConnectionProperties();
+        if (connectionProperties != null && connectionProperties.isAutoStart() &&
+                bridgeController.propertiesDefined() && !bridgeController.isConnected()) {
+            new BridgeConnector(bridgeController.getPHHueSDK(), connectionProperties).connect();
+        }
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+        finishTime = SystemClock.uptimeMillis();
+        if (listener != null)
+            listener.onStartupFinished();
+    }
+}
@@ -0,0 +1,309 @@
+package de.htwg.moco.bulbdj.bridge;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHAccessPoint;
+import com.philips.lighting.hue.sdk.PHBridgeSearchManager;
+import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.hue.sdk.PHMessageType;
+import com.philips.lighting.hue.sdk.PHSDKListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHHueParsingError;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.htwg.moco.bulbdj.data.ConnectionProperties;
+
+/**
+ * Class connects to the paired bridges on startup, without a full search if possible.
+ * <p>
+ * Steps of the connection of each bridge:
+ * <br>Probe of the stored ip address: one request for the lights of the stored user. The answer
+ * proves that the bridge is still reachable at the address and knows the user. The light identifiers
+ * of the first paired bridge are handed to the {@link BridgeController} before the SDK has filled its cache.
+ * <br>If the probe fails, a search bounded in time for the bridge with the stored mac address.
+ * <br>Connection of the SDK to the access point.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class BridgeConnector {
+
+    /**
+     * Timeout of the probe in milliseconds.
+     */
+    private static final int PROBE_TIMEOUT = 800;
+
+    /**
+     * Maximum time of the search in milliseconds.
+     */
+    private static final long SEARCH_TIMEOUT = 8000;
+
+    /**
+     * Instance of Philips Hue SDK.
+     */
+    private final PHHueSDK pHHueSDK;
+
+    /**
+     * Stored connection properties.
+     */
+    private final ConnectionProperties connectionProperties;
+
+    /**
+     * Duration of the probe and of the search in milliseconds, 0 if not done.
+     */
+    private volatile long probeDuration, searchDuration = 0;
+
+    /**
+     * Default constructor.
+     * @param pHHueSDK instance of Philips Hue SDK
+     * @param connectionProperties stored connection properties
+     */
+    public BridgeConnector(PHHueSDK pHHueSDK, ConnectionProperties connectionProperties) {
+        this.pHHueSDK = pHHueSDK;
+        this.connectionProperties = connectionProperties;
+    }
+
+    /**
+     * Getter method.
+     * @return duration of the probe in milliseconds, 0 if not done
+     */
+    public long getProbeDuration() {
+        return probeDuration;
+    }
+
+    /**
+     * Getter method.
+     * @return duration of the search in milliseconds, 0 if not done
+     */
+    public long getSearchDuration() {
+        return searchDuration;
+    }
+
+    /**
+     * Method connects to all paired bridges, the first paired bridge first. Blocks while probing
+     * and searching, so it must not be called on the main thread.
+     * The connections are reported to the listeners of the SDK.
+     *
+     * @return true if the connection to the first paired bridge was started
+     */
+    public boolean connect() {
+        List<PHAccessPoint> bridges = connectionProperties.getBridges();
+        boolean started = false;
+        for (int i = 0; i < bridges.size(); i++) {
+            boolean bridgeStarted = connect(bridges.get(i), i == 0);
+            if (i == 0)
+                started = bridgeStarted;
+        }
+        return started;
+    }
+
+    /**
+     * Method connects to a paired bridge, at its stored ip address or at the address found by a search.
+     *
+     * @param bridge paired bridge with ip address, user name and mac address
+     * @param first true for the first paired bridge, whose lights are prefetched and whose durations are kept
+     * @return true if the connection was started
+     */
+    private boolean connect(PHAccessPoint bridge, boolean first) {
+        String ipAddress = bridge.getIpAddress();
+        String userName = bridge.getUsername();
+
+        long start = SystemClock.uptimeMillis();
+        List<String> lights = probe(ipAddress, userName);
+        if (first)
+            probeDuration = SystemClock.uptimeMillis() - start;
+
+        if (lights != null) {
+            if (first)
+                BridgeController.getInstance().setPrefetchedLights(lights);
+        } else {
+            start = SystemClock.uptimeMillis();
+            ipAddress = search(bridge.getMacAddress());
+            if (first)
+                searchDuration = SystemClock.uptimeMillis() - start;
+            if (ipAddress == null)
+                return false;
+            if (!ipAddress.equals(bridge.getIpAddress())) {
+                connectionProperties.putBridge(ipAddress, userName, bridge.getMacAddress());
+                connectionProperties.saveProperties();
+            }
+        }
+
+        try {
+            pHHueSDK.connect(new PHAccessPoint(ipAddress, userName, bridge.getMacAddress()));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Method requests the lights of a user from a bridge.
+     *
+     * @param ipAddress ip address of the bridge
+     * @param userName user on the bridge
+     * @return identifiers of the lights, null if the bridge did not answer or does not know the user
+     */
+    public static List<String> probe(String ipAddress, String userName) {
+        if (ipAddress == null || ipAddress.isEmpty() || userName == null || userName.isEmpty())
+            return null;
+
+        String response = get("http://" + ipAddress + "/api/" + userName + "/lights", PROBE_TIMEOUT);
+        return response != null ? parseLights(response) : null;
+    }
+
+    /**
+     * Method sends a GET request.
+     *
+     * @param address url of the request
+     * @param timeout connect and read timeout in milliseconds
+     * @return body of the answer, null if the request failed
+     */
+    static String get(String address, int timeout) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(address).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                return null;
+
+            return read(connection.getInputStream());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    /**
+     * Method parses the answer of the bridge to a request for the lights.
+     *
+     * @param response body of the answer
+     * @return identifiers of the lights, null if the answer is an error
+     */
+    public static List<String> parseLights(String response) {
+        try {
+            // Errors, e.g. an unknown user, are answered with an array
+            Object value = new JSONTokener(response).nextValue();
+            if (!(value instanceof JSONObject))
+                return null;
+
+            List<String> lights = new ArrayList<>();
+            Iterator<String> keys = ((JSONObject) value).keys();
+            while (keys.hasNext()) {
+                lights.add(keys.next());
+            }
+            return lights;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method searches for the bridge with a mac address, at most {@link #SEARCH_TIMEOUT} milliseconds.
+     *
+     * @param macAddress mac address of the bridge, null to take the first bridge found
+     * @return ip address of the bridge, null if it was not found
+     */
+    private String search(final String macAddress) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] found = {null};
+
+        PHSDKListener listener = new PHSDKListener() {
+            @Override
+            public void onAccessPointsFound(List<PHAccessPoint> accessPointsList) {
+                for (PHAccessPoint accessPoint : accessPointsList) {
+                    if (macAddress == null || macAddress.equalsIgnoreCase(accessPoint.getMacAddress())) {
+                        found[0] = accessPoint.getIpAddress();
+                        break;
+                    }
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onError(int code, String message) {
+                if (code == PHMessageType.BRIDGE_NOT_FOUND)
+                    done.countDown();
+            }
+
+            @Override
+            public void onAuthenticationRequired(PHAccessPoint accessPoint) {
+            }
+
+            @Override
+            public void onBridgeConnected(PHBridge bridge, String username) {
+            }
+
+            @Override
+            public void onCacheUpdated(List<Integer> cache, PHBridge bridge) {
+            }
+
+            @Override
+            public void onConnectionLost(PHAccessPoint accessPoint) {
+            }
+
+            @Override
+            public void onConnectionResumed(PHBridge bridge) {
+            }
+
+            @Override
+            public void onParsingErrors(List<PHHueParsingError> parsingErrorsList) {
+            }
+        };
+
+        pHHueSDK.getNotificationManager().registerSDKListener(listener);
+        try {
+            PHBridgeSearchManager searchManager = (PHBridgeSearchManager) pHHueSDK.getSDKService(PHHueSDK.SEARCH_BRIDGE);
+            searchManager.search(true, true);
+            if (!done.await(SEARCH_TIMEOUT, TimeUnit.MILLISECONDS))
+                Log.w("BridgeConnector", "Search timed out");
+        } catch (InterruptedException e) {
+            // Given up
+        } catch (Exception e) {
+            Log.e("BridgeConnector", "Could not search for bridges");
+        } finally {
+            pHHueSDK.getNotificationManager().unregisterSDKListener(listener);
+        }
+        return found[0];
+    }
+
+    /**
+     * Method reads a stream completely.
+     *
+     * @param in the stream
+     * @return the content as UTF-8
+     * @throws IOException if the stream could not be read
+     */
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,25 +1,36 @@
 package de.htwg.moco.bulbdj.bridge;
 
 import android.content.Context;
-import android.graphics.Color;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.philips.lighting.annotations.Bridge;
+import com.philips.lighting.hue.sdk.PHAccessPoint;
 import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.hue.sdk.PHMessageType;
 import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHHueParsingError;
 import com.philips.lighting.model.PHLight;
 import com.philips.lighting.model.PHLightState;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import de.htwg.moco.bulbdj.data.ConnectionProperties;
 
 /**
- * Class represents singleton for obtaining single connection to bridge.
+ * Class represents singleton for the connections to all bridges.
+ * Each connected bridge gets a {@link BridgeLink}, which sends the commands to its lights.
+ * The link of a bridge whose connection is lost is dropped until the connection is resumed.
+ * The routes from the light bulbs' identifiers to the links are built when the links,
+ * the resource caches or the prefetched lights change, not for each command.
  *
  * @author Mislav Jurić
  * @version 1.0
@@ -53,19 +64,89 @@ public class BridgeController {
     private boolean connected;
 
     /**
-     * Maximum hue value.
+     * Maximum brightness value.
      */
-    private final float MAX_HUE = 65534;
+    private final float MAX_BRIGTHNESS = 254;
 
     /**
-     * Maximum saturation value.
+     * Cache of the color conversion and the shared color states.
      */
-    private final float MAX_SATURATION = 254;
+    private final ColorCache colorCache = new ColorCache(128);
 
     /**
-     * Maximum brightness value.
+     * Shared brightness states, indexed by brightness. Never modified after they were built.
      */
-    private final float MAX_BRIGTHNESS = 254;
+    private final PHLightState[] brightnessStates = new PHLightState[(int) MAX_BRIGTHNESS + 1];
+
+    /**
+     * One link per connected bridge, each sending on its own worker thread.
+     */
+    private final List<BridgeLink> links = new ArrayList<>();
+
+    /**
+     * Lights of all bridges and their routes. Replaced as a whole, never modified after it was built.
+     */
+    private volatile Routes routes = Routes.EMPTY;
+
+    /**
+     * Identifiers of the lights of the selected bridge, fetched before the connection
+     * by {@link BridgeConnector}. Used until the SDK has filled its cache.
+     */
+    private volatile List<String> prefetchedLights = null;
+
+    /**
+     * Bridges whose connection was lost, they get no link until the connection is resumed. Guarded by links.
+     */
+    private final List<PHBridge> lostBridges = new ArrayList<>();
+
+    /**
+     * Listener rebuilding the routes when the SDK updated the lights of a resource cache,
+     * and dropping or restarting the link of a bridge whose connection was lost or resumed.
+     */
+    private final PHSDKListener sdkListener = new PHSDKListener() {
+
+        @Override
+        public void onAccessPointsFound(List<PHAccessPoint> list) {
+        }
+
+        @Override
+        public void onAuthenticationRequired(PHAccessPoint accessPoint) {
+        }
+
+        @Override
+        public void onBridgeConnected(PHBridge bridge, String username) {
+        }
+
+        @Override
+        public void onCacheUpdated(List<Integer> cache, PHBridge bridge) {
+            if (connected && cache != null && cache.contains(PHMessageType.LIGHTS_CACHE_UPDATED))
+                updateRoutes();
+        }
+
+        @Override
+        public void onConnectionLost(PHAccessPoint accessPoint) {
+            if (accessPoint != null)
+                removeLink(accessPoint.getIpAddress());
+        }
+
+        @Override
+        public void onConnectionResumed(PHBridge bridge) {
+            boolean lost;
+            synchronized (links) {
+                lost = lostBridges.remove(bridge);
+            }
+            if (lost && connected)
+                updateLinks();
+        }
+
+        @Override
+        public void onError(int code, String message) {
+        }
+
+        @Override
+        public void onParsingErrors(List<PHHueParsingError> parsingErrorsList) {
+        }
+    };
 
     /**
      * Default constructor. Private because of singleton pattern.
@@ -73,9 +154,15 @@ public class BridgeController {
     private BridgeController() {
         try {
             pHHueSDK = PHHueSDK.getInstance();
-
+            pHHueSDK.getNotificationManager().registerSDKListener(sdkListener);
         } catch (Exception e) {
         }
+        for (int brightness = 0; brightness < brightnessStates.length; brightness++) {
+            PHLightState lightState = new PHLightState();
+            lightState.setBrightness(brightness);
+            lightState.setTransitionTime(0);
+            brightnessStates[brightness] = lightState;
+        }
         if (context == null) return;
         connectionProperties = new ConnectionProperties(context);
     }
@@ -85,7 +172,7 @@ public class BridgeController {
      *
      * @return singleton instance
      */
-    public static BridgeController getInstance() {
+    public static synchronized BridgeController getInstance() {
         if (bridgeController == null) {
             bridgeController = new BridgeController();
         }
@@ -97,11 +184,13 @@ public class BridgeController {
      */
     public void terminate() {
         try {
+            pHHueSDK.getNotificationManager().unregisterSDKListener(sdkListener);
             pHHueSDK.stopPushlinkAuthentication();
             pHHueSDK.destroySDK();
         } catch (Exception e) {
 
         }
+        stopLinks();
         bridgeController = null;
         connected = false;
     }
@@ -120,6 +209,10 @@ public class BridgeController {
      */
     public void setConnected(boolean connected) {
         this.connected = connected;
+        if (connected)
+            updateLinks();
+        else
+            stopLinks();
     }
 
     /**
@@ -158,6 +251,16 @@ public class BridgeController {
                 connectionProperties.getMacAddress() != null);
     }
 
+    /**
+     * Method converts the given colors in advance, so sending them later needs no conversion.
+     * @param colors the colors to convert, e.g. the palettes of the LED renderer
+     */
+    public void warmColorCache(int[] colors) {
+        for (int color : colors) {
+            colorCache.getColorState(colorCache.indexOf(color));
+        }
+    }
+
     /**
      * Method registers instance of {@link PHSDKListener} listener.
      * @param phsdkListener listener that is registered
@@ -172,117 +275,332 @@ public class BridgeController {
     /**
      * Getter method.
      *
-     * @return count of lights connected to selected bridge
+     * @return true if no lights are connected to the bridges
      */
     public boolean isLightsEmpty() {
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null) return true;
-        try {
-            return pHHueSDK.getSelectedBridge().getResourceCache().getAllLights().isEmpty();
-        } catch (Exception e) {
-            return true;
-        }
+        if (!connected || pHHueSDK == null) return true;
+        return routes.lights.isEmpty();
     }
 
     /**
      * Getter method.
+     * The lights of the first bridge keep their identifier, the lights of the other bridges
+     * are prefixed by the number of their bridge (e.g. "2/5").
+     * The list is not modifiable and stays the same until the lights change.
      *
-     * @return list of all lights connected to selected bridge
+     * @return list of all lights connected to all bridges
      */
     public List<String> getAllLights() {
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null) return null;
-        try {
-            return new ArrayList<>(pHHueSDK.getSelectedBridge().getResourceCache().getLights().keySet());
-        } catch (Exception e) {
-            return null;
-        }
+        if (!connected || pHHueSDK == null) return null;
+        return routes.lights;
     }
 
     /**
-     * Getter method.
+     * Method sets light bulb's color.
+     * Only hue and saturation which differ from the last sent values are sent.
      *
      * @param idn light bulbs' identifier
-     * @return light bulb with given identifier if exists, otherwise <<code>null</code>
+     * @param color value set for color
      */
-    @Nullable
-    private PHLight getLight(String idn) {
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null) return null;
-        try {
-            return pHHueSDK.getSelectedBridge().getResourceCache().getLights().get(idn);
-        } catch (Exception e) {
-            return null;
-        }
+    public void setLightColor(String idn, int color) {
+        submit(idn, colorCache.indexOf(color), -1);
     }
 
     /**
-     * Method sets light bulb's color.
+     * Method sets light bulb's brightness.
+     * Nothing is sent if the brightness equals the last sent value.
+     *
+     * @param idn light bulbs' identifier
+     * @param brightness value set for brightness
+     */
+    public void setLightBrightness(String idn, int brightness) {
+        if (brightness < 0 || brightness > MAX_BRIGTHNESS) return;
+
+        submit(idn, -1, brightness);
+    }
+
+    /**
+     * Method sets light bulb's color and brightness.
+     * Only the attributes which differ from the last sent values are sent.
      *
      * @param idn light bulbs' identifier
      * @param color value set for color
+     * @param brightness value set for brightness
      */
-    public void setLightColor(String idn, int color) {
-        PHLight light = getLight(idn);
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null || light == null) return;
+    public void setLightColorAndBrightness(String idn, int color, int brightness) {
+        if (brightness < 0 || brightness > MAX_BRIGTHNESS) return;
+
+        submit(idn, colorCache.indexOf(color), brightness);
+    }
 
-        float[] HSV = new float[3];
-        Color.colorToHSV(color, HSV);
+    /**
+     * Setter method.
+     * The lights are used until the SDK has filled the cache of the selected bridge,
+     * so the first commands after the connection are not dropped.
+     *
+     * @param lights identifiers of the lights of the selected bridge, fetched before the connection
+     */
+    public void setPrefetchedLights(List<String> lights) {
+        prefetchedLights = lights;
+        updateRoutes();
+    }
 
-        PHLightState lightState = new PHLightState();
+    /**
+     * Method sets the brightness of all lights.
+     * The commands go through the queues of the links, so they are merged with the pending
+     * commands of the renderer and throttled like them, instead of being sent at once.
+     *
+     * @param brightness value set for brightness
+     */
+    public void setBrightnessOfAllLights(int brightness) {
+        if (!connected || brightness < 0 || brightness > MAX_BRIGTHNESS) return;
 
-        lightState.setHue(Math.round(HSV[0] / 360 * MAX_HUE));
-        lightState.setSaturation(Math.round(HSV[1] * MAX_SATURATION));
-        lightState.setTransitionTime(0);
+        Routes current = routes;
+        for (Map.Entry<String, BridgeLink> route : current.links.entrySet()) {
+            route.getValue().submit(current.lightIds.get(route.getKey()), -1, brightness);
+        }
+    }
 
-        try {
-            pHHueSDK.getSelectedBridge().updateLightState(light, lightState);
-        } catch (Exception e) {
+    /**
+     * Getter method.
+     * @return number of connected bridges
+     */
+    public int getBridgeCount() {
+        synchronized (links) {
+            return links.size();
         }
     }
 
     /**
-     * Method sets light bulb's brightness.
+     * Getter method.
+     * @param bridge number of the bridge, starting at 0
+     * @return health and throttling of the commands sent to the bridge
+     */
+    public BridgeHealth getHealth(int bridge) {
+        synchronized (links) {
+            return links.get(bridge).getHealth();
+        }
+    }
+
+    /**
+     * Getter method.
+     * @return count of light state commands sent to all bridges
+     */
+    public int getSentCommands() {
+        int sent = 0;
+        synchronized (links) {
+            for (BridgeLink link : links) {
+                sent += link.getSentCommands();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Getter method.
+     * @return count of light state commands skipped because the light already had the state
+     */
+    public int getSkippedCommands() {
+        int skipped = 0;
+        synchronized (links) {
+            for (BridgeLink link : links) {
+                skipped += link.getSkippedCommands();
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Method forgets the last sent states, so the next command of each light is sent completely.
+     */
+    public void invalidateShadows() {
+        synchronized (links) {
+            for (BridgeLink link : links) {
+                link.invalidateShadows();
+            }
+        }
+    }
+
+    /**
+     * Method hands a command to the link of the light's bridge.
      *
      * @param idn light bulbs' identifier
-     * @param brightness value set for brightness
+     * @param colorIndex slot of the color in the color cache, -1 to keep the color
+     * @param brightness value set for brightness, -1 to keep the brightness
      */
-    public void setLightBrightness(String idn, int brightness) {
-        PHLight light = getLight(idn);
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null || light == null ||
-                brightness < 0 || brightness > MAX_BRIGTHNESS) return;
+    private void submit(String idn, int colorIndex, int brightness) {
+        if (!connected) return;
 
-        PHLightState lightState = new PHLightState();
-        lightState.setBrightness(brightness);
-        lightState.setTransitionTime(0);
+        Routes current = routes;
+        BridgeLink link = current.links.get(idn);
+        if (link != null)
+            link.submit(current.lightIds.get(idn), colorIndex, brightness);
+    }
 
+    /**
+     * Method starts a link for every connected bridge without one, the selected bridge first.
+     * Bridges whose connection was lost are skipped.
+     */
+    private void updateLinks() {
+        if (pHHueSDK == null) return;
+
+        List<PHBridge> bridges = new ArrayList<>();
         try {
-            pHHueSDK.getSelectedBridge().updateLightState(light, lightState);
+            if (pHHueSDK.getSelectedBridge() != null)
+                bridges.add(pHHueSDK.getSelectedBridge());
+            for (PHBridge bridge : pHHueSDK.getAllBridges()) {
+                if (!bridges.contains(bridge))
+                    bridges.add(bridge);
+            }
         } catch (Exception e) {
         }
+
+        synchronized (links) {
+            outer:
+            for (PHBridge bridge : bridges) {
+                if (lostBridges.contains(bridge))
+                    continue;
+                for (BridgeLink link : links) {
+                    if (link.getBridge() == bridge) {
+                        link.invalidateShadows();
+                        continue outer;
+                    }
+                }
+                BridgeLink link = new BridgeLink(bridge, colorCache, brightnessStates);
+                link.start();
+                links.add(link);
+            }
+        }
+        updateRoutes();
     }
 
     /**
-     * Method sets light bulb's color and brightness.
+     * Method stops and removes the link of a bridge whose connection was lost.
      *
-     * @param idn light bulbs' identifier
-     * @param brightness value set for color
-     * @param brightness value set for brightness
+     * @param ipAddress ip address of the bridge
      */
-    public void setLightColorAndBrightness(String idn, int color, int brightness) {
-        PHLight light = getLight(idn);
-        if (!connected || pHHueSDK == null || pHHueSDK.getSelectedBridge() == null || light == null) return;
+    private void removeLink(String ipAddress) {
+        if (ipAddress == null) return;
+
+        boolean removed = false;
+        synchronized (links) {
+            Iterator<BridgeLink> iterator = links.iterator();
+            while (iterator.hasNext()) {
+                BridgeLink link = iterator.next();
+                if (ipAddress.equals(getIpAddress(link.getBridge()))) {
+                    link.stop();
+                    iterator.remove();
+                    lostBridges.add(link.getBridge());
+                    removed = true;
+                }
+            }
+        }
+        if (removed)
+            updateRoutes();
+    }
 
-        float[] HSV = new float[3];
-        Color.colorToHSV(color, HSV);
+    /**
+     * Method gets the ip address of a bridge from its configuration.
+     *
+     * @param bridge the bridge
+     * @return ip address of the bridge, null if not known
+     */
+    private static String getIpAddress(PHBridge bridge) {
+        try {
+            return bridge.getResourceCache().getBridgeConfiguration().getIpAddress();
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-        PHLightState lightState = new PHLightState();
+    /**
+     * Method rebuilds the routes of the lights from the resource caches of the links,
+     * or from the prefetched lights until the SDK has filled the cache of the selected bridge.
+     */
+    private void updateRoutes() {
+        List<String> lights = new ArrayList<>();
+        Map<String, BridgeLink> lightLinks = new HashMap<>();
+        Map<String, String> lightIds = new HashMap<>();
+        synchronized (links) {
+            for (int i = 0; i < links.size(); i++) {
+                BridgeLink link = links.get(i);
+                try {
+                    Collection<String> lightIdsOfLink = link.getBridge().getResourceCache().getLights().keySet();
+                    List<String> prefetched = prefetchedLights;
+                    if (i == 0 && prefetched != null) {
+                        if (lightIdsOfLink.isEmpty()) {
+                            lightIdsOfLink = prefetched;
+                            link.setKnownLights(prefetched);
+                        } else {
+                            // The cache is filled, the prefetched lights are not needed any more
+                            prefetchedLights = null;
+                            link.setKnownLights(null);
+                        }
+                    }
+                    for (String lightId : lightIdsOfLink) {
+                        String idn = i == 0 ? lightId : (i + 1) + "/" + lightId;
+                        lightLinks.put(idn, link);
+                        lightIds.put(idn, lightId);
+                        lights.add(idn);
+                    }
+                } catch (Exception e) {
+                }
+            }
+            routes = new Routes(lights, lightLinks, lightIds);
+        }
+    }
 
-        lightState.setHue(Math.round(HSV[0] / 360 * MAX_HUE));
-        lightState.setSaturation(Math.round(HSV[1] * MAX_SATURATION));
-        lightState.setBrightness(brightness);
-        lightState.setTransitionTime(0);
+    /**
+     * Method stops the links of all bridges.
+     */
+    private void stopLinks() {
+        synchronized (links) {
+            for (BridgeLink link : links) {
+                link.stop();
+            }
+            links.clear();
+            lostBridges.clear();
+            routes = Routes.EMPTY;
+            prefetchedLights = null;
+        }
+    }
 
-        try {
-            pHHueSDK.getSelectedBridge().updateLightState(light, lightState);
-        } catch (Exception e) {
+    /**
+     * Class represents the lights of all bridges and the link and identifier on the bridge of each light.
+     */
+    private static final class Routes {
+
+        /**
+         * Routes without lights.
+         */
+        static final Routes EMPTY = new Routes(new ArrayList<String>(),
+                new HashMap<String, BridgeLink>(), new HashMap<String, String>());
+
+        /**
+         * Light bulbs' identifiers, in the order of the bridges.
+         */
+        final List<String> lights;
+
+        /**
+         * Link of each light, by light bulbs' identifier.
+         */
+        final Map<String, BridgeLink> links;
+
+        /**
+         * Identifier on the bridge of each light, by light bulbs' identifier.
+         */
+        final Map<String, String> lightIds;
+
+        /**
+         * Default constructor.
+         * @param lights light bulbs' identifiers
+         * @param links link of each light
+         * @param lightIds identifier on the bridge of each light
+         */
+        Routes(List<String> lights, Map<String, BridgeLink> links, Map<String, String> lightIds) {
+            this.lights = Collections.unmodifiableList(lights);
+            this.links = Collections.unmodifiableMap(links);
+            this.lightIds = Collections.unmodifiableMap(lightIds);
         }
     }
 }
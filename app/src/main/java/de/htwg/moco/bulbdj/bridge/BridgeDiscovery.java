@@ -0,0 +1,542 @@
+package de.htwg.moco.bulbdj.bridge;
+
+import com.philips.lighting.hue.sdk.PHAccessPoint;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.htwg.moco.bulbdj.data.ConnectionProperties;
+
+/**
+ * Class searches for bridges on the network.
+ * <p>
+ * All strategies of the search run at the same time, each bounded by its own timeout.
+ * The access points are reported as soon as a strategy has finished: the listener receives
+ * the complete list of access points found so far, once per strategy, so the user interface
+ * is updated once per batch. The result of a search is cached for {@link #CACHE_TTL} milliseconds,
+ * so a second search within this time is answered at once.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class BridgeDiscovery {
+
+    /**
+     * Singleton instance of {@link BridgeDiscovery} class.
+     */
+    private static BridgeDiscovery instance = null;
+
+    /**
+     * Time in milliseconds the result of a search is reused.
+     */
+    public static final long CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Interface of {@link BridgeDiscovery} class. Called on a thread of the search.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public interface DiscoveryListener {
+
+        /**
+         * Access points were found.
+         * @param accessPoints all access points found so far
+         */
+        void onAccessPointsFound(List<PHAccessPoint> accessPoints);
+
+        /**
+         * All strategies have finished or timed out.
+         * @param accessPoints all found access points
+         */
+        void onDiscoveryFinished(List<PHAccessPoint> accessPoints);
+    }
+
+    /**
+     * Interface of a strategy of the search.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public interface Strategy {
+
+        /**
+         * Getter method.
+         * @return time in milliseconds after which the strategy is given up
+         */
+        int getTimeout();
+
+        /**
+         * Search for bridges. Blocks until the search is finished.
+         * @return found access points
+         * @throws IOException if the search failed
+         */
+        List<PHAccessPoint> discover() throws IOException;
+    }
+
+    /**
+     * Strategies of the search.
+     */
+    private final List<Strategy> strategies;
+
+    /**
+     * Threads of the strategies.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BridgeDiscovery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Access points of the last search, by mac address or ip address.
+     */
+    private final LinkedHashMap<String, PHAccessPoint> cache = new LinkedHashMap<>();
+
+    /**
+     * Time of the last search in milliseconds, 0 if none.
+     */
+    private long cacheTime = 0;
+
+    /**
+     * Is a search running. Guarded by cache.
+     */
+    private boolean running = false;
+
+    /**
+     * Listener of the running search. Guarded by cache.
+     */
+    private DiscoveryListener listener;
+
+    /**
+     * Singleton instance of {@link BridgeDiscovery} class.
+     * Searches by the Hue portal, by UPnP and at the stored ip address.
+     * @return instance of {@link BridgeDiscovery}
+     */
+    public static synchronized BridgeDiscovery getInstance() {
+        if (instance == null) {
+            instance = new BridgeDiscovery(Arrays.asList(
+                    new PortalStrategy(PortalStrategy.PORTAL_URL, 4000),
+                    new UpnpStrategy(UpnpStrategy.MULTICAST_ADDRESS, UpnpStrategy.PORT, 3000),
+                    new AddressStrategy(null, 1500)));
+        }
+        return instance;
+    }
+
+    /**
+     * Default constructor.
+     * @param strategies strategies of the search
+     */
+    public BridgeDiscovery(List<Strategy> strategies) {
+        this.strategies = new ArrayList<>(strategies);
+    }
+
+    /**
+     * Method starts a search. If the last search is younger than {@link #CACHE_TTL},
+     * its result is reported at once instead. If a search is running, the listener
+     * replaces its listener.
+     *
+     * @param listener listener of the search
+     * @param force true to search even if the last result is recent
+     */
+    public void search(DiscoveryListener listener, boolean force) {
+        List<PHAccessPoint> cached = null;
+        synchronized (cache) {
+            this.listener = listener;
+            if (running)
+                return;
+            if (!force && cacheTime > 0 && System.currentTimeMillis() - cacheTime < CACHE_TTL) {
+                cached = new ArrayList<>(cache.values());
+            } else {
+                running = true;
+                cache.clear();
+            }
+        }
+
+        if (cached != null) {
+            listener.onAccessPointsFound(cached);
+            listener.onDiscoveryFinished(cached);
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runStrategies();
+            }
+        });
+    }
+
+    /**
+     * Method removes the listener of the running search, e.g. when its activity is destroyed.
+     * The search goes on and still fills the cache.
+     *
+     * @param listener listener to remove, nothing happens if another listener is set
+     */
+    public void removeListener(DiscoveryListener listener) {
+        synchronized (cache) {
+            if (this.listener == listener)
+                this.listener = null;
+        }
+    }
+
+    /**
+     * Method forgets the result of the last search.
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            if (!running)
+                cache.clear();
+            cacheTime = 0;
+        }
+    }
+
+    /**
+     * Getter method.
+     * @return access points of the last search
+     */
+    public List<PHAccessPoint> getCachedAccessPoints() {
+        synchronized (cache) {
+            return new ArrayList<>(cache.values());
+        }
+    }
+
+    /**
+     * Run all strategies at the same time and report their results as they finish.
+     */
+    private void runStrategies() {
+        ExecutorCompletionService<List<PHAccessPoint>> completion = new ExecutorCompletionService<>(executor);
+        List<Future<List<PHAccessPoint>>> futures = new ArrayList<>();
+        long deadline = 0;
+        for (final Strategy strategy : strategies) {
+            futures.add(completion.submit(new Callable<List<PHAccessPoint>>() {
+                @Override
+                public List<PHAccessPoint> call() throws Exception {
+                    return strategy.discover();
+                }
+            }));
+            deadline = Math.max(deadline, strategy.getTimeout());
+        }
+        deadline += System.currentTimeMillis();
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<List<PHAccessPoint>> future = completion.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                if (future == null)
+                    break;
+
+                List<PHAccessPoint> found;
+                try {
+                    found = future.get();
+                } catch (Exception e) {
+                    continue;
+                }
+                if (found.isEmpty())
+                    continue;
+
+                List<PHAccessPoint> all;
+                DiscoveryListener listener;
+                synchronized (cache) {
+                    for (PHAccessPoint accessPoint : found) {
+                        String key = accessPoint.getMacAddress() != null ?
+                                accessPoint.getMacAddress().toLowerCase(Locale.US) : accessPoint.getIpAddress();
+                        if (!cache.containsKey(key))
+                            cache.put(key, accessPoint);
+                    }
+                    all = new ArrayList<>(cache.values());
+                    listener = this.listener;
+                }
+                if (listener != null)
+                    listener.onAccessPointsFound(all);
+            }
+        } catch (InterruptedException e) {
+            // Given up
+        }
+
+        // Strategies still running have timed out
+        for (Future<List<PHAccessPoint>> future : futures) {
+            future.cancel(true);
+        }
+
+        List<PHAccessPoint> all;
+        DiscoveryListener listener;
+        synchronized (cache) {
+            running = false;
+            cacheTime = cache.isEmpty() ? 0 : System.currentTimeMillis();
+            all = new ArrayList<>(cache.values());
+            listener = this.listener;
+        }
+        if (listener != null)
+            listener.onDiscoveryFinished(all);
+    }
+
+    /**
+     * Method converts a bridge identifier to a mac address.
+     *
+     * @param bridgeId bridge identifier, e.g. 001788fffe100491
+     * @return mac address, e.g. 00:17:88:10:04:91, null if the identifier is invalid
+     */
+    static String toMacAddress(String bridgeId) {
+        if (bridgeId == null || bridgeId.length() != 16)
+            return null;
+        String hex = (bridgeId.substring(0, 6) + bridgeId.substring(10)).toLowerCase(Locale.US);
+        StringBuilder mac = new StringBuilder();
+        for (int i = 0; i < hex.length(); i += 2) {
+            if (i > 0)
+                mac.append(':');
+            mac.append(hex, i, i + 2);
+        }
+        return mac.toString();
+    }
+
+    /**
+     * Search by the Hue portal, which knows the bridges of the public ip address.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public static class PortalStrategy implements Strategy {
+
+        /**
+         * Address of the Hue portal.
+         */
+        public static final String PORTAL_URL = "https://discovery.meethue.com/";
+
+        /**
+         * Address of the portal and timeout in milliseconds.
+         */
+        private final String url;
+        private final int timeout;
+
+        /**
+         * Default constructor.
+         * @param url address of the portal
+         * @param timeout time in milliseconds after which the strategy is given up
+         */
+        public PortalStrategy(String url, int timeout) {
+            this.url = url;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public List<PHAccessPoint> discover() throws IOException {
+            String response = BridgeConnector.get(url, timeout);
+            if (response == null)
+                throw new IOException("Portal did not answer");
+
+            List<PHAccessPoint> accessPoints = new ArrayList<>();
+            try {
+                JSONArray bridges = (JSONArray) new JSONTokener(response).nextValue();
+                for (int i = 0; i < bridges.length(); i++) {
+                    JSONObject bridge = bridges.getJSONObject(i);
+                    String mac = bridge.optString("macaddress", null);
+                    if (mac == null)
+                        mac = toMacAddress(bridge.optString("id", null));
+                    accessPoints.add(new PHAccessPoint(bridge.getString("internalipaddress"), null, mac));
+                }
+            } catch (JSONException | ClassCastException e) {
+                throw new IOException("Invalid answer of the portal");
+            }
+            return accessPoints;
+        }
+    }
+
+    /**
+     * Search by UPnP: a M-SEARCH request to the multicast address, answered by the bridges of the network.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public static class UpnpStrategy implements Strategy {
+
+        /**
+         * Multicast address and port of SSDP.
+         */
+        public static final String MULTICAST_ADDRESS = "239.255.255.250";
+        public static final int PORT = 1900;
+
+        /**
+         * Address and port the request is sent to, and timeout in milliseconds.
+         */
+        private final String address;
+        private final int port;
+        private final int timeout;
+
+        /**
+         * Default constructor.
+         * @param address address the request is sent to
+         * @param port port the request is sent to
+         * @param timeout time in milliseconds the answers are collected
+         */
+        public UpnpStrategy(String address, int port, int timeout) {
+            this.address = address;
+            this.port = port;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public List<PHAccessPoint> discover() throws IOException {
+            byte[] request = ("M-SEARCH * HTTP/1.1\r\n" +
+                    "HOST: " + MULTICAST_ADDRESS + ":" + PORT + "\r\n" +
+                    "MAN: \"ssdp:discover\"\r\n" +
+                    "MX: " + Math.max(1, timeout / 1000 - 1) + "\r\n" +
+                    "ST: ssdp:all\r\n\r\n").getBytes("UTF-8");
+
+            List<PHAccessPoint> accessPoints = new ArrayList<>();
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                socket.send(new DatagramPacket(request, request.length, InetAddress.getByName(address), port));
+
+                // Collect the answers until the timeout, a bridge answers several times
+                long end = System.currentTimeMillis() + timeout - 100;
+                byte[] buffer = new byte[1024];
+                List<String> ipAddresses = new ArrayList<>();
+                while (System.currentTimeMillis() < end) {
+                    socket.setSoTimeout((int) Math.max(1, end - System.currentTimeMillis()));
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    PHAccessPoint accessPoint = parseResponse(new String(packet.getData(), 0, packet.getLength(), "UTF-8"));
+                    if (accessPoint != null && !ipAddresses.contains(accessPoint.getIpAddress())) {
+                        ipAddresses.add(accessPoint.getIpAddress());
+                        accessPoints.add(accessPoint);
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+            return accessPoints;
+        }
+
+        /**
+         * Method parses an answer to the M-SEARCH request.
+         *
+         * @param response the answer
+         * @return access point, null if the answer is not from a Hue bridge
+         */
+        static PHAccessPoint parseResponse(String response) {
+            String location = null, bridgeId = null;
+            boolean hue = false;
+            for (String line : response.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("location"))
+                    location = value;
+                else if (name.equals("hue-bridgeid"))
+                    bridgeId = value;
+                else if (name.equals("server") && value.contains("IpBridge"))
+                    hue = true;
+            }
+            if (location == null || (!hue && bridgeId == null))
+                return null;
+
+            // e.g. http://192.168.2.23:80/description.xml
+            int start = location.indexOf("://");
+            if (start < 0)
+                return null;
+            start += 3;
+            int end = start;
+            while (end < location.length() && location.charAt(end) != ':' && location.charAt(end) != '/')
+                end++;
+            return new PHAccessPoint(location.substring(start, end), null, toMacAddress(bridgeId));
+        }
+    }
+
+    /**
+     * Search at a known ip address, e.g. the stored address of the last connected bridge.
+     *
+     * @author Mislav Jurić
+     * @version 1.0
+     */
+    public static class AddressStrategy implements Strategy {
+
+        /**
+         * Address of the bridge, null for the stored address, and timeout in milliseconds.
+         */
+        private final String ipAddress;
+        private final int timeout;
+
+        /**
+         * Default constructor.
+         * @param ipAddress address of the bridge, null for the address in the connection properties
+         * @param timeout time in milliseconds after which the strategy is given up
+         */
+        public AddressStrategy(String ipAddress, int timeout) {
+            this.ipAddress = ipAddress;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public List<PHAccessPoint> discover() throws IOException {
+            String ipAddress = this.ipAddress;
+            if (ipAddress == null) {
+                ConnectionProperties connectionProperties = BridgeController.getInstance().getConnectionProperties();
+                ipAddress = connectionProperties != null ? connectionProperties.getIpAddress() : null;
+            }
+
+            List<PHAccessPoint> accessPoints = new ArrayList<>();
+            if (ipAddress == null || ipAddress.isEmpty())
+                return accessPoints;
+
+            // The configuration without a user contains the mac address and the bridge identifier
+            String response = BridgeConnector.get("http://" + ipAddress + "/api/config", timeout);
+            if (response == null)
+                return accessPoints;
+            try {
+                JSONObject config = new JSONObject(response);
+                String mac = config.optString("mac", null);
+                if (mac == null)
+                    mac = toMacAddress(config.optString("bridgeid", null));
+                accessPoints.add(new PHAccessPoint(ipAddress, null, mac));
+            } catch (JSONException e) {
+                throw new IOException("Invalid answer of the bridge");
+            }
+            return accessPoints;
+        }
+    }
+}
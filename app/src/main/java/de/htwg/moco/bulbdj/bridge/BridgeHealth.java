@@ -0,0 +1,321 @@
+package de.htwg.moco.bulbdj.bridge;
+
+/**
+ * Class tracks the health of a bridge and throttles the commands sent to it.
+ *
+ * The SDK sends commands asynchronously and queues them if the bridge is slow, so sending
+ * more commands than the bridge can process only makes the latency climb. Every command is
+ * counted as in flight until its response arrives (or it times out). The response times and
+ * the error rate are smoothed, and the minimum interval between two commands is adapted:
+ * it is doubled when the latency or the error rate is too high and slowly reduced again
+ * while the bridge keeps up. All times are in milliseconds and passed in by the caller.
+ *
+ * Each command is stamped with the generation of the commands in flight. The generation is
+ * advanced when the commands time out or the health is reset, so responses of older commands
+ * which arrive late neither change the count in flight nor the measurements.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class BridgeHealth {
+
+    /**
+     * Stamp of a command which was throttled.
+     */
+    public static final int THROTTLED = -1;
+
+    /**
+     * Maximum number of commands in flight.
+     */
+    private static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * Smallest and largest interval between two commands.
+     */
+    private static final long MIN_INTERVAL = 10, MAX_INTERVAL = 1000;
+
+    /**
+     * Step the interval is reduced by while the bridge keeps up.
+     */
+    private static final long INTERVAL_STEP = 2;
+
+    /**
+     * Smoothed latency above which the commands are throttled.
+     */
+    private static final float TARGET_LATENCY = 150;
+
+    /**
+     * Smoothed error rate above which the commands are throttled.
+     */
+    private static final float MAX_ERROR_RATE = 0.1F;
+
+    /**
+     * Time after which an unanswered command counts as failed.
+     */
+    private static final long TIMEOUT = 2000;
+
+    /**
+     * Time between two adaptions of the interval.
+     */
+    private static final long ADAPT_PERIOD = 250;
+
+    /**
+     * Weight of a new sample in the smoothed values.
+     */
+    private static final float SMOOTHING = 0.125F;
+
+    /**
+     * Commands sent and not answered yet.
+     */
+    private int inFlight = 0;
+
+    /**
+     * Generation of the commands in flight, never negative.
+     */
+    private int generation = 0;
+
+    /**
+     * Smoothed response time.
+     */
+    private float latency = 0;
+
+    /**
+     * Smoothed share of failed commands, from 0 to 1.
+     */
+    private float errorRate = 0;
+
+    /**
+     * Minimum interval between two commands.
+     */
+    private long interval = MIN_INTERVAL;
+
+    /**
+     * Time of the last sent command, response and adaption.
+     */
+    private long lastSend = Long.MIN_VALUE / 2, lastResponse = 0, lastAdapt = 0;
+
+    /**
+     * Count of sent, answered, failed and throttled commands.
+     */
+    private int sent = 0, answered = 0, failed = 0, throttled = 0;
+
+    /**
+     * Count of responses of expired commands.
+     */
+    private int lateResponses = 0;
+
+    /**
+     * Ask to send a command. If allowed, the command counts as in flight.
+     * @param now current time
+     * @return stamp of the command, {@link #THROTTLED} if it is throttled
+     */
+    public synchronized int acquire(long now) {
+        expire(now);
+        if (inFlight >= MAX_IN_FLIGHT || now - lastSend < interval) {
+            throttled++;
+            return THROTTLED;
+        }
+
+        if (inFlight == 0)
+            lastResponse = now;
+        inFlight++;
+        sent++;
+        lastSend = now;
+        return generation;
+    }
+
+    /**
+     * Ask to send a command. If allowed, the command counts as in flight in the current generation.
+     * @param now current time
+     * @return true if the command may be sent, false if it is throttled
+     */
+    public synchronized boolean tryAcquire(long now) {
+        return acquire(now) != THROTTLED;
+    }
+
+    /**
+     * Release a command which was acquired but could not be sent.
+     * @param stamp stamp of the command from {@link #acquire(long)}
+     */
+    public synchronized void release(int stamp) {
+        if (stamp == generation && inFlight > 0)
+            inFlight--;
+    }
+
+    /**
+     * Release a command of the current generation which was acquired but could not be sent.
+     */
+    public synchronized void release() {
+        release(generation);
+    }
+
+    /**
+     * Record the response of a command of the current generation.
+     * @param sendTime time the command was sent
+     * @param now current time
+     * @param success true if the bridge accepted the command
+     */
+    public synchronized void onResponse(long sendTime, long now, boolean success) {
+        onResponse(generation, sendTime, now, success);
+    }
+
+    /**
+     * Record the response of a command. Responses of expired commands are ignored.
+     * @param stamp stamp of the command from {@link #acquire(long)}
+     * @param sendTime time the command was sent
+     * @param now current time
+     * @param success true if the bridge accepted the command
+     */
+    public synchronized void onResponse(int stamp, long sendTime, long now, boolean success) {
+        if (stamp != generation) {
+            lateResponses++;
+            return;
+        }
+
+        if (inFlight > 0)
+            inFlight--;
+        lastResponse = now;
+        answered++;
+        if (!success)
+            failed++;
+
+        latency += SMOOTHING * ((now - sendTime) - latency);
+        errorRate += SMOOTHING * ((success ? 0 : 1) - errorRate);
+        adapt(now);
+    }
+
+    /**
+     * Forget the commands in flight and the measurements, e.g. after a reconnect.
+     */
+    public synchronized void reset() {
+        inFlight = 0;
+        latency = 0;
+        errorRate = 0;
+        interval = MIN_INTERVAL;
+        lastSend = Long.MIN_VALUE / 2;
+        nextGeneration();
+    }
+
+    /**
+     * Start a new generation, the commands in flight are forgotten.
+     */
+    private void nextGeneration() {
+        generation = (generation + 1) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Getter method.
+     * @return commands sent and not answered yet
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Getter method.
+     * @return smoothed response time in milliseconds
+     */
+    public synchronized float getLatency() {
+        return latency;
+    }
+
+    /**
+     * Getter method.
+     * @return smoothed share of failed commands, from 0 to 1
+     */
+    public synchronized float getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * Getter method.
+     * @return current minimum interval between two commands in milliseconds
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Getter method.
+     * @return commands per second the bridge currently sustains
+     */
+    public synchronized float getCommandRate() {
+        return 1000F / interval;
+    }
+
+    /**
+     * Getter method.
+     * @return count of sent commands
+     */
+    public synchronized int getSentCommands() {
+        return sent;
+    }
+
+    /**
+     * Getter method.
+     * @return count of answered commands
+     */
+    public synchronized int getAnsweredCommands() {
+        return answered;
+    }
+
+    /**
+     * Getter method.
+     * @return count of failed or timed out commands
+     */
+    public synchronized int getFailedCommands() {
+        return failed;
+    }
+
+    /**
+     * Getter method.
+     * @return count of ignored responses of expired commands
+     */
+    public synchronized int getLateResponses() {
+        return lateResponses;
+    }
+
+    /**
+     * Getter method.
+     * @return count of commands not sent because of the throttling
+     */
+    public synchronized int getThrottledCommands() {
+        return throttled;
+    }
+
+    /**
+     * Count the commands in flight as failed if the bridge did not answer for too long.
+     * @param now current time
+     */
+    private void expire(long now) {
+        if (inFlight == 0 || now - lastResponse < TIMEOUT)
+            return;
+
+        // Responses of expired commands arriving later belong to an older generation and are ignored
+        for (int i = 0; i < inFlight; i++) {
+            failed++;
+            latency += SMOOTHING * (TIMEOUT - latency);
+            errorRate += SMOOTHING * (1 - errorRate);
+        }
+        inFlight = 0;
+        nextGeneration();
+        lastResponse = now;
+        adapt(now);
+    }
+
+    /**
+     * Adapt the interval to the measurements, at most once per period.
+     * @param now current time
+     */
+    private void adapt(long now) {
+        if (now - lastAdapt < ADAPT_PERIOD)
+            return;
+        lastAdapt = now;
+
+        if (latency > TARGET_LATENCY || errorRate > MAX_ERROR_RATE) {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+        } else {
+            interval = Math.max(MIN_INTERVAL, interval - INTERVAL_STEP);
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package de.htwg.moco.bulbdj.bridge;
+
+import android.util.Log;
+
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResource;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.htwg.moco.bulbdj.detector.Clock;
+
+/**
+ * Class sends the light state commands of one bridge on its own worker thread.
+ *
+ * Every light has one pending command. A new command for a light is merged into its pending
+ * command, so a slow bridge never builds up a queue of outdated states: the worker always sends
+ * the newest state. The worker sends only the attributes which differ from the last sent state
+ * of the light (its shadow) and waits while the {@link BridgeHealth} throttles the bridge.
+ * Several links send in parallel, one per bridge.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class BridgeLink {
+
+    /**
+     * Time in milliseconds after which the shadow state of a light is sent again completely.
+     */
+    private static final long SHADOW_REFRESH = 5000;
+
+    /**
+     * Time in milliseconds the worker waits while the bridge is throttled.
+     */
+    private static final long THROTTLE_WAIT = 5;
+
+    /**
+     * The bridge.
+     */
+    private final PHBridge bridge;
+
+    /**
+     * Cache of the color conversion and the shared color states.
+     */
+    private final ColorCache colorCache;
+
+    /**
+     * Shared brightness states. Never modified.
+     */
+    private final PHLightState[] brightnessStates;
+
+    /**
+     * Health and throttling of the commands sent to the bridge.
+     */
+    private final BridgeHealth health = new BridgeHealth();
+
+    /**
+     * Pending command of each light, by identifier on the bridge.
+     */
+    private final HashMap<String, Command> commands = new HashMap<>();
+
+    /**
+     * Lights with a pending command, oldest first. Guarded by commands.
+     */
+    private final ArrayDeque<Command> queue = new ArrayDeque<>();
+
+    /**
+     * Last sent state of each light, by identifier on the bridge.
+     */
+    private final HashMap<String, LightShadow> shadows = new HashMap<>();
+
+    /**
+     * Identifiers of lights which may be missing in the resource cache, null if none.
+     */
+    private volatile Collection<String> knownLights = null;
+
+    /**
+     * Count of sent and skipped light state commands. Guarded by shadows.
+     */
+    private int sentCommands = 0, skippedCommands = 0;
+
+    /**
+     * Clock of the commands and their responses.
+     */
+    private volatile Clock clock = Clock.SYSTEM;
+
+    /**
+     * The worker thread.
+     */
+    private Thread worker;
+
+    /**
+     * Is the worker running.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Default constructor.
+     * @param bridge the bridge
+     * @param colorCache shared cache of the color conversion
+     * @param brightnessStates shared brightness states, indexed by brightness
+     */
+    public BridgeLink(PHBridge bridge, ColorCache colorCache, PHLightState[] brightnessStates) {
+        this.bridge = bridge;
+        this.colorCache = colorCache;
+        this.brightnessStates = brightnessStates;
+    }
+
+    /**
+     * Getter method.
+     * @return the bridge
+     */
+    public PHBridge getBridge() {
+        return bridge;
+    }
+
+    /**
+     * Setter method.
+     * @param clock sets the clock of the commands and their responses
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Getter method.
+     * @return health and throttling of the commands sent to the bridge
+     */
+    public BridgeHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Getter method.
+     * @return count of light state commands sent to the bridge
+     */
+    public int getSentCommands() {
+        synchronized (shadows) {
+            return sentCommands;
+        }
+    }
+
+    /**
+     * Getter method.
+     * @return count of light state commands skipped because the light already had the state
+     */
+    public int getSkippedCommands() {
+        synchronized (shadows) {
+            return skippedCommands;
+        }
+    }
+
+    /**
+     * Start the worker thread.
+     */
+    public void start() {
+        if (running) return;
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "BridgeLink");
+        worker.start();
+    }
+
+    /**
+     * Stop the worker thread. Pending commands are dropped.
+     */
+    public void stop() {
+        running = false;
+        synchronized (commands) {
+            queue.clear();
+            for (Command command : commands.values()) {
+                command.clear();
+            }
+            commands.notifyAll();
+        }
+    }
+
+    /**
+     * Setter method.
+     * Commands for these lights are sent by identifier while the resource cache is not filled yet.
+     * @param knownLights sets the identifiers of lights missing in the resource cache, null if none
+     */
+    public void setKnownLights(Collection<String> knownLights) {
+        this.knownLights = knownLights;
+    }
+
+    /**
+     * Forget the last sent states, so the next command of each light is sent completely.
+     */
+    public void invalidateShadows() {
+        synchronized (shadows) {
+            shadows.clear();
+        }
+    }
+
+    /**
+     * Merge a command into the pending command of the light.
+     *
+     * @param lightId identifier of the light on the bridge
+     * @param colorIndex slot of the color in the color cache, -1 to keep the color
+     * @param brightness value set for brightness, -1 to keep the brightness
+     */
+    public void submit(String lightId, int colorIndex, int brightness) {
+        synchronized (commands) {
+            Command command = commands.get(lightId);
+            if (command == null) {
+                command = new Command(lightId);
+                commands.put(lightId, command);
+            }
+
+            if (colorIndex >= 0)
+                command.colorIndex = colorIndex;
+            if (brightness >= 0)
+                command.brightness = brightness;
+            if (!command.queued) {
+                command.queued = true;
+                queue.addLast(command);
+                commands.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Loop of the worker thread.
+     */
+    private void work() {
+        try {
+            while (running) {
+                String lightId;
+                int colorIndex, brightness;
+                long now;
+                int stamp = BridgeHealth.THROTTLED;
+                LightShadow shadow;
+
+                synchronized (commands) {
+                    while (running && queue.isEmpty()) {
+                        commands.wait();
+                    }
+                    if (!running) break;
+
+                    Command command = queue.peekFirst();
+                    lightId = command.lightId;
+                    colorIndex = command.colorIndex;
+                    brightness = command.brightness;
+                    now = clock.millis();
+
+                    shadow = getShadow(lightId, now);
+                    if (shadow != null && (stamp = health.acquire(now)) == BridgeHealth.THROTTLED) {
+                        // The command stays pending, a newer command may still replace it
+                        lightId = null;
+                    } else {
+                        queue.pollFirst();
+                        command.clear();
+                    }
+                }
+
+                if (lightId == null) {
+                    Thread.sleep(THROTTLE_WAIT);
+                } else if (shadow != null) {
+                    send(lightId, shadow, colorIndex, brightness, now, stamp);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Get the shadow of a light, if a command has to be sent.
+     *
+     * @param lightId identifier of the light on the bridge
+     * @param now current time
+     * @return shadow of the light, null if the light already has the state of its pending command
+     */
+    private LightShadow getShadow(String lightId, long now) {
+        Command command = commands.get(lightId);
+        synchronized (shadows) {
+            LightShadow shadow = shadows.get(lightId);
+            if (shadow == null) {
+                shadow = new LightShadow();
+                shadows.put(lightId, shadow);
+            }
+
+            // Resend everything from time to time, in case a command was lost
+            if (now - shadow.time > SHADOW_REFRESH) {
+                shadow.time = now;
+                shadow.hue = -1;
+                shadow.saturation = -1;
+                shadow.brightness = -1;
+            }
+
+            int colorIndex = command.colorIndex;
+            boolean colorChanged = colorIndex >= 0 && (colorCache.getHue(colorIndex) != shadow.hue ||
+                    colorCache.getSaturation(colorIndex) != shadow.saturation);
+            boolean brightnessChanged = command.brightness >= 0 && command.brightness != shadow.brightness;
+            if (colorChanged || brightnessChanged)
+                return shadow;
+
+            skippedCommands++;
+            return null;
+        }
+    }
+
+    /**
+     * Send the attributes which differ from the shadow state of the light.
+     *
+     * @param lightId identifier of the light on the bridge
+     * @param shadow last sent state of the light
+     * @param colorIndex slot of the color in the color cache, -1 to keep the color
+     * @param brightness value set for brightness, -1 to keep the brightness
+     * @param now time the command is sent
+     * @param stamp stamp of the command from the health
+     */
+    private void send(String lightId, LightShadow shadow, int colorIndex, int brightness, long now, int stamp) {
+        PHLight light;
+        try {
+            light = bridge.getResourceCache().getLights().get(lightId);
+        } catch (Exception e) {
+            light = null;
+        }
+        Collection<String> known = knownLights;
+        if (light == null && (known == null || !known.contains(lightId))) {
+            health.release(stamp);
+            return;
+        }
+
+        int hue = colorIndex >= 0 ? colorCache.getHue(colorIndex) : -1;
+        int saturation = colorIndex >= 0 ? colorCache.getSaturation(colorIndex) : -1;
+        boolean hueChanged, saturationChanged, brightnessChanged;
+        synchronized (shadows) {
+            hueChanged = hue >= 0 && hue != shadow.hue;
+            saturationChanged = saturation >= 0 && saturation != shadow.saturation;
+            brightnessChanged = brightness >= 0 && brightness != shadow.brightness;
+        }
+
+        PHLightState lightState;
+        if (hueChanged && saturationChanged && !brightnessChanged) {
+            lightState = colorCache.getColorState(colorIndex);
+        } else if (!hueChanged && !saturationChanged) {
+            if (!brightnessChanged) {
+                health.release(stamp);
+                return;
+            }
+            lightState = brightnessStates[brightness];
+        } else {
+            lightState = new PHLightState();
+            if (hueChanged)
+                lightState.setHue(hue);
+            if (saturationChanged)
+                lightState.setSaturation(saturation);
+            if (brightnessChanged)
+                lightState.setBrightness(brightness);
+            lightState.setTransitionTime(0);
+        }
+
+        try {
+            if (light != null)
+                bridge.updateLightState(light, lightState, new CommandListener(lightId, now, stamp));
+            else
+                bridge.updateLightState(lightId, lightState, new CommandListener(lightId, now, stamp));
+        } catch (Exception e) {
+            health.release(stamp);
+            Log.e("BridgeLink", "Could not send light state");
+            return;
+        }
+
+        synchronized (shadows) {
+            sentCommands++;
+            if (hueChanged)
+                shadow.hue = hue;
+            if (saturationChanged)
+                shadow.saturation = saturation;
+            if (brightnessChanged)
+                shadow.brightness = brightness;
+        }
+    }
+
+    /**
+     * Pending command of a light. Values are -1 if the attribute is kept.
+     */
+    private static class Command {
+        final String lightId;
+        int colorIndex = -1;
+        int brightness = -1;
+        boolean queued = false;
+
+        Command(String lightId) {
+            this.lightId = lightId;
+        }
+
+        void clear() {
+            colorIndex = -1;
+            brightness = -1;
+            queued = false;
+        }
+    }
+
+    /**
+     * Last sent state of a light. Values are -1 if unknown.
+     */
+    private static class LightShadow {
+        int hue = -1;
+        int saturation = -1;
+        int brightness = -1;
+        long time = 0;
+    }
+
+    /**
+     * Listener of the response to one light state command.
+     */
+    private class CommandListener implements PHLightListener {
+
+        /**
+         * Identifier of the light on the bridge.
+         */
+        private final String lightId;
+
+        /**
+         * Time the command was sent.
+         */
+        private final long sendTime;
+
+        /**
+         * Stamp of the command from the health.
+         */
+        private final int stamp;
+
+        /**
+         * Was the response already recorded.
+         */
+        private boolean done = false;
+
+        /**
+         * Default constructor.
+         * @param lightId identifier of the light on the bridge
+         * @param sendTime time the command was sent
+         * @param stamp stamp of the command from the health
+         */
+        CommandListener(String lightId, long sendTime, int stamp) {
+            this.lightId = lightId;
+            this.sendTime = sendTime;
+            this.stamp = stamp;
+        }
+
+        /**
+         * Record the response once, forget the shadow of the light if the command failed.
+         * @param success true if the bridge accepted the command
+         */
+        private synchronized void respond(boolean success) {
+            if (done) return;
+            done = true;
+
+            health.onResponse(stamp, sendTime, clock.millis(), success);
+            if (!success) {
+                synchronized (shadows) {
+                    shadows.remove(lightId);
+                }
+            }
+        }
+
+        @Override
+        public void onSuccess() {
+            respond(true);
+        }
+
+        @Override
+        public void onError(int code, String message) {
+            respond(false);
+        }
+
+        @Override
+        public void onStateUpdate(Map<String, String> successAttributes, List<PHHueError> errorAttributes) {
+            respond(errorAttributes == null || errorAttributes.isEmpty());
+        }
+
+        @Override
+        public void onReceivingLightDetails(PHLight light) {
+        }
+
+        @Override
+        public void onReceivingLights(List<PHBridgeResource> lights) {
+        }
+
+        @Override
+        public void onSearchComplete() {
+        }
+    }
+}
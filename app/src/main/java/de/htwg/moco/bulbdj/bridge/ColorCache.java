@@ -0,0 +1,187 @@
+package de.htwg.moco.bulbdj.bridge;
+
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Class caches the conversion of RGB colors to hue and saturation of the bridge.
+ *
+ * The colors come from small fixed palettes, so every conversion is done once. The cache is
+ * keyed by the RGB part of the color (the alpha does not change hue or saturation) and uses
+ * open addressing on primitive arrays, so a lookup does not allocate. For each color a light
+ * state with hue and saturation is built once and shared: the state is never modified after
+ * it was built, which makes it safe to hand to the SDK, which sends the state asynchronously.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class ColorCache {
+
+    /**
+     * Maximum hue value.
+     */
+    private static final float MAX_HUE = 65534;
+
+    /**
+     * Maximum saturation value.
+     */
+    private static final float MAX_SATURATION = 254;
+
+    /**
+     * Number of slots probed before a slot is replaced.
+     */
+    private static final int MAX_PROBES = 4;
+
+    /**
+     * Marker of an empty slot (no RGB color has bits above 24).
+     */
+    private static final int EMPTY = -1;
+
+    /**
+     * Cached RGB colors.
+     */
+    private final int[] keys;
+
+    /**
+     * Hue of each slot in range of the bridge.
+     */
+    private final int[] hues;
+
+    /**
+     * Saturation of each slot in range of the bridge.
+     */
+    private final int[] saturations;
+
+    /**
+     * Shared light state of each slot, built on first use.
+     */
+    private final PHLightState[] states;
+
+    /**
+     * Mask of the slot index.
+     */
+    private final int mask;
+
+    /**
+     * Count of conversions.
+     */
+    private int misses = 0;
+
+    /**
+     * Default constructor.
+     * @param capacity number of cached colors, rounded up to a power of two
+     */
+    public ColorCache(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        keys = new int[size];
+        hues = new int[size];
+        saturations = new int[size];
+        states = new PHLightState[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            keys[i] = EMPTY;
+        }
+    }
+
+    /**
+     * Find the slot of a color, convert the color if it is not cached.
+     * @param color ARGB color
+     * @return the slot of the color
+     */
+    public synchronized int indexOf(int color) {
+        int rgb = color & 0xFFFFFF;
+        int start = (rgb * 0x9E3779B9) >>> 16 & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int i = (start + probe) & mask;
+            if (keys[i] == rgb)
+                return i;
+            if (keys[i] == EMPTY) {
+                put(i, rgb);
+                return i;
+            }
+        }
+
+        // Cache full at this position, replace the first slot
+        put(start, rgb);
+        return start;
+    }
+
+    /**
+     * Getter method.
+     * @param index slot of the color
+     * @return hue of the color in range of the bridge
+     */
+    public synchronized int getHue(int index) {
+        return hues[index];
+    }
+
+    /**
+     * Getter method.
+     * @param index slot of the color
+     * @return saturation of the color in range of the bridge
+     */
+    public synchronized int getSaturation(int index) {
+        return saturations[index];
+    }
+
+    /**
+     * Getter method. The state must not be modified.
+     * @param index slot of the color
+     * @return shared light state with hue, saturation and no transition time
+     */
+    public synchronized PHLightState getColorState(int index) {
+        if (states[index] == null) {
+            PHLightState lightState = new PHLightState();
+            lightState.setHue(hues[index]);
+            lightState.setSaturation(saturations[index]);
+            lightState.setTransitionTime(0);
+            states[index] = lightState;
+        }
+        return states[index];
+    }
+
+    /**
+     * Getter method.
+     * @return count of colors converted since creation
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Convert a color into a slot.
+     * @param index of the slot
+     * @param rgb color without alpha
+     */
+    private void put(int index, int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        float delta = max - min;
+
+        // Same conversion as Color.colorToHSV
+        float hue = 0;
+        if (delta > 0) {
+            if (max == r)
+                hue = (g - b) / delta;
+            else if (max == g)
+                hue = 2 + (b - r) / delta;
+            else
+                hue = 4 + (r - g) / delta;
+            hue *= 60;
+            if (hue < 0)
+                hue += 360;
+        }
+        float saturation = max == 0 ? 0 : delta / max;
+
+        keys[index] = rgb;
+        hues[index] = Math.round(hue / 360 * MAX_HUE);
+        saturations[index] = Math.round(saturation * MAX_SATURATION);
+        states[index] = null;
+        misses++;
+    }
+}
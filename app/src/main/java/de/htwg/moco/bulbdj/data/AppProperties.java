@@ -1,18 +1,10 @@
 package de.htwg.moco.bulbdj.data;
 
 import android.content.Context;
-import android.util.Log;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 
 /**
  * Class represents properties for application, designed as singleton.
- * <p>Stores app's brightness settings.
+ * <p>Stores app's brightness settings. The values are kept in the {@link SettingsStore}.
  *
  * @author Mislav Jurić
  * @version 1.0
@@ -22,24 +14,15 @@ public class AppProperties {
     private static AppProperties appProperties = null;
 
     /**
-     * Value of ip address.
-     */
-    private int brightness = 150;
-
-    /**
-     * Value of delay (beat frequency detection).
+     * Keys of the settings.
      */
-    private int delay = 200;
+    private static final String BRIGHTNESS = "brightness", DELAY = "delay", SENSITIVITY = "sensitivity",
+            MODE_SWITCH = "mode_switch", STEREO = "stereo", EFFECT = "effect", LOW_LATENCY = "low_latency";
 
     /**
-     * Value of delay (beat frequency detection).
+     * Store of the settings.
      */
-    private int sensitivity = 40;
-
-    /**
-     * Flag for mode switch component
-     */
-    private boolean modeSwitch = true;
+    private final SettingsStore store;
 
     /**
      * Reference to context of main activity.
@@ -47,26 +30,28 @@ public class AppProperties {
     private Context context;
 
     /**
-     * Name of property file.
+     * Default constructor.
      */
-    private String fileName = "AppProp.properties";
+    public AppProperties() {
+        this(SettingsStore.getInstance());
+    }
 
     /**
-     * Default constructor.
+     * Constructor.
+     * @param store store of the settings
      */
-    public AppProperties() {
+    public AppProperties(SettingsStore store) {
+        this.store = store;
     }
 
     /**
-     * Setter method.
+     * Setter method. Loads the settings of the context, if not loaded yet.
      *
      * @param context sets value of context
      */
     public void setContext(Context context) {
         this.context = context;
-        if (fileExists()) {
-            loadProperties();
-        }
+        store.load(context.getFilesDir());
     }
 
     /**
@@ -74,7 +59,7 @@ public class AppProperties {
      *
      * @return singleton instance of class
      */
-    public static AppProperties getInstance() {
+    public static synchronized AppProperties getInstance() {
         if (appProperties == null) {
             appProperties = new AppProperties();
         }
@@ -86,7 +71,7 @@ public class AppProperties {
      * @return value of brightness
      */
     public int getBrightness() {
-        return brightness;
+        return store.getInt(BRIGHTNESS, 150);
     }
 
     /**
@@ -94,7 +79,7 @@ public class AppProperties {
      * @return value of delay
      */
     public int getDelay() {
-        return delay;
+        return store.getInt(DELAY, 200);
     }
 
     /**
@@ -102,7 +87,7 @@ public class AppProperties {
      * @return value of sensitivity
      */
     public int getSensitivity() {
-        return sensitivity;
+        return store.getInt(SENSITIVITY, 40);
     }
 
     /**
@@ -110,7 +95,31 @@ public class AppProperties {
      * @return value of mode switch component flag
      */
     public boolean isModeSwitch() {
-        return modeSwitch;
+        return store.getBoolean(MODE_SWITCH, true);
+    }
+
+    /**
+     * Getter method.
+     * @return value of stereo recording flag
+     */
+    public boolean isStereo() {
+        return store.getBoolean(STEREO, false);
+    }
+
+    /**
+     * Getter method.
+     * @return value of low latency recording flag
+     */
+    public boolean isLowLatency() {
+        return store.getBoolean(LOW_LATENCY, false);
+    }
+
+    /**
+     * Getter method.
+     * @return index of the selected light effect
+     */
+    public int getEffect() {
+        return store.getInt(EFFECT, 0);
     }
 
     /**
@@ -118,7 +127,7 @@ public class AppProperties {
      * @param brightness sets value of brightness
      */
     public void setBrightness(int brightness) {
-        this.brightness = brightness;
+        store.putInt(BRIGHTNESS, brightness);
     }
 
     /**
@@ -126,7 +135,7 @@ public class AppProperties {
      * @param delay sets value of delay
      */
     public void setDelay(int delay) {
-        this.delay = delay;
+        store.putInt(DELAY, delay);
     }
 
     /**
@@ -134,7 +143,7 @@ public class AppProperties {
      * @param sensitivity sets value of sensitivity
      */
     public void setSensitivity(int sensitivity) {
-        this.sensitivity = sensitivity;
+        store.putInt(SENSITIVITY, sensitivity);
     }
 
     /**
@@ -142,79 +151,38 @@ public class AppProperties {
      * @param modeSwitch sets value of mode switch flag
      */
     public void setModeSwitch(boolean modeSwitch) {
-        this.modeSwitch = modeSwitch;
-    }
-
-    /**
-     * Method reads properties' values from file.
-     */
-    private void loadProperties() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(context.openFileInput(fileName), "UTF-8"))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.startsWith("brightness") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    brightness = Integer.valueOf(pairs[1]);
-                }
-                if (line.startsWith("delay") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    delay = Integer.valueOf(pairs[1]);
-                }
-                if (line.startsWith("sensitivity") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    sensitivity = Integer.valueOf(pairs[1]);
-                }
-                if (line.startsWith("mode_switch") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    modeSwitch = Boolean.valueOf(pairs[1]);
-                }
-            }
-
-        } catch (Exception e) {
-            Log.e("Error", "Could not load App properties");
-        }
+        store.putBoolean(MODE_SWITCH, modeSwitch);
     }
 
     /**
-     * Method saves properties' values.
+     * Setter method.
+     * @param stereo sets value of stereo recording flag
      */
-    public void saveProperties() {
-        try (PrintWriter writer = new PrintWriter(
-                new OutputStreamWriter(context.openFileOutput(fileName, Context.MODE_PRIVATE), "UTF-8"))) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("brightness=");
-            sb.append(brightness);
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("delay=");
-            sb.append(delay);
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("sensitivity=");
-            sb.append(sensitivity);
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("mode_switch=");
-            sb.append(modeSwitch);
-            writer.print(sb.toString());
-        } catch (IOException e) {
-            Log.e("Error", "Could not save properties");
-        }
+    public void setStereo(boolean stereo) {
+        store.putBoolean(STEREO, stereo);
     }
 
     /**
-     * Method checks whether properties file exists.
-     * @return true if file exists, otherwise false
+     * Setter method.
+     * @param lowLatency sets value of low latency recording flag
+     */
+    public void setLowLatency(boolean lowLatency) {
+        store.putBoolean(LOW_LATENCY, lowLatency);
+    }
+
+    /**
+     * Setter method.
+     * @param effect sets index of the selected light effect
      */
-    private boolean fileExists() {
-        File file = context.getFileStreamPath(fileName);
-        return !(file == null || !file.exists());
+    public void setEffect(int effect) {
+        store.putInt(EFFECT, effect);
+    }
+
+    /**
+     * Method saves properties' values. The values are written in the background,
+     * repeated calls within a short time are written once.
+     */
+    public void saveProperties() {
+        store.save();
     }
-}
\ No newline at end of file
+}
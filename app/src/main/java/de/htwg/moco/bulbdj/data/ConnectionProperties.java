@@ -1,18 +1,17 @@
 package de.htwg.moco.bulbdj.data;
 
 import android.content.Context;
-import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import com.philips.lighting.hue.sdk.PHAccessPoint;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class represents properties for app's connection to the bridge.
- * <p>Stores user's name, ip address and value of auto start flag.
+ * <p>Stores user's name, ip address and value of auto start flag. The values are kept in the {@link SettingsStore}.
+ * <p>The first paired bridge is stored in the ip address, mac address and user name, the other
+ * paired bridges in one list, so all of them are connected on startup.
  *
  * @author Mislav Jurić
  * @version 1.0
@@ -20,24 +19,15 @@ import java.io.PrintWriter;
 public class ConnectionProperties {
 
     /**
-     * Value of ip address.
-     */
-    private String ipAddress;
-
-    /**
-     * Value of ip mac address.
-     */
-    private String macAddress;
-
-    /**
-     * Value of username.
+     * Keys of the settings.
      */
-    private String userName;
+    private static final String IP_ADDRESS = "ip_address", MAC_ADDRESS = "mac_address", USER_NAME = "user_name",
+            AUTO_START = "auto_start", BRIDGES = "bridges";
 
     /**
-     * Value of auto start flag.
+     * Store of the settings.
      */
-    private boolean autoStart;
+    private final SettingsStore store;
 
     /**
      * Reference to context of main activity.
@@ -45,19 +35,13 @@ public class ConnectionProperties {
     private Context context;
 
     /**
-     * Name of property file.
-     */
-    private String fileName = "Connection.properties";
-
-    /**
-     * Default constructor. Sets properties' context.
+     * Default constructor. Sets properties' context and loads the settings, if not loaded yet.
      * @param context sets value of context
      */
     public ConnectionProperties(Context context) {
         this.context = context;
-        if (fileExists()) {
-            loadProperties();
-        }
+        this.store = SettingsStore.getInstance();
+        store.load(context.getFilesDir());
     }
 
     /**
@@ -65,7 +49,7 @@ public class ConnectionProperties {
      * @return value of ip address
      */
     public String getIpAddress() {
-        return ipAddress;
+        return store.getString(IP_ADDRESS, null);
     }
 
     /**
@@ -73,7 +57,7 @@ public class ConnectionProperties {
      * @return value of mac address
      */
     public String getMacAddress() {
-        return macAddress;
+        return store.getString(MAC_ADDRESS, null);
     }
 
     /**
@@ -81,7 +65,7 @@ public class ConnectionProperties {
      * @return value of username
      */
     public String getUserName() {
-        return userName;
+        return store.getString(USER_NAME, null);
     }
 
     /**
@@ -89,7 +73,83 @@ public class ConnectionProperties {
      * @return value of auto start flag
      */
     public boolean isAutoStart() {
-        return autoStart;
+        return store.getBoolean(AUTO_START, false);
+    }
+
+    /**
+     * Getter method.
+     * @return all paired bridges with ip address, user name and mac address, the first paired bridge first
+     */
+    public List<PHAccessPoint> getBridges() {
+        List<PHAccessPoint> bridges = new ArrayList<>();
+        if (getIpAddress() != null)
+            bridges.add(new PHAccessPoint(getIpAddress(), getUserName(), getMacAddress()));
+        bridges.addAll(parseBridges(store.getString(BRIDGES, null)));
+        return bridges;
+    }
+
+    /**
+     * Method adds a paired bridge, or updates the paired bridge with the same mac address.
+     * Without a paired bridge, the bridge becomes the first paired bridge.
+     *
+     * @param ipAddress ip address of the bridge
+     * @param userName user on the bridge
+     * @param macAddress mac address of the bridge
+     */
+    public void putBridge(String ipAddress, String userName, String macAddress) {
+        String firstMacAddress = getMacAddress();
+        if (getIpAddress() == null || firstMacAddress == null || firstMacAddress.equalsIgnoreCase(macAddress)) {
+            setIpAddress(ipAddress);
+            setMacAddress(macAddress);
+            setUserName(userName);
+            return;
+        }
+
+        List<PHAccessPoint> bridges = parseBridges(store.getString(BRIDGES, null));
+        for (int i = 0; i < bridges.size(); i++) {
+            if (macAddress != null && macAddress.equalsIgnoreCase(bridges.get(i).getMacAddress())) {
+                bridges.remove(i);
+                break;
+            }
+        }
+        bridges.add(new PHAccessPoint(ipAddress, userName, macAddress));
+        store.putString(BRIDGES, formatBridges(bridges));
+    }
+
+    /**
+     * Method parses a list of bridges, entries of ip address, mac address and user name separated by ';'.
+     *
+     * @param value the list, may be null
+     * @return the bridges, entries which are not complete are skipped
+     */
+    public static List<PHAccessPoint> parseBridges(String value) {
+        List<PHAccessPoint> bridges = new ArrayList<>();
+        if (value == null)
+            return bridges;
+        for (String entry : value.split(";")) {
+            String[] fields = entry.split(",");
+            if (fields.length == 3 && !fields[0].isEmpty() && !fields[2].isEmpty())
+                bridges.add(new PHAccessPoint(fields[0], fields[2], fields[1].isEmpty() ? null : fields[1]));
+        }
+        return bridges;
+    }
+
+    /**
+     * Method formats a list of bridges for {@link #parseBridges(String)}.
+     *
+     * @param bridges the bridges
+     * @return the list
+     */
+    public static String formatBridges(List<PHAccessPoint> bridges) {
+        StringBuilder value = new StringBuilder();
+        for (PHAccessPoint bridge : bridges) {
+            if (value.length() > 0)
+                value.append(';');
+            value.append(bridge.getIpAddress()).append(',')
+                    .append(bridge.getMacAddress() != null ? bridge.getMacAddress() : "").append(',')
+                    .append(bridge.getUsername());
+        }
+        return value.toString();
     }
 
     /**
@@ -97,7 +157,7 @@ public class ConnectionProperties {
      * @param ipAddress sets value of ip address
      */
     public void setIpAddress(String ipAddress) {
-        this.ipAddress = ipAddress;
+        store.putString(IP_ADDRESS, ipAddress);
     }
 
     /**
@@ -105,7 +165,7 @@ public class ConnectionProperties {
      * @param macAddress sets value of mac address
      */
     public void setMacAddress(String macAddress) {
-        this.macAddress = macAddress;
+        store.putString(MAC_ADDRESS, macAddress);
     }
 
     /**
@@ -113,7 +173,7 @@ public class ConnectionProperties {
      * @param userName sets value of user name
      */
     public void setUserName(String userName) {
-        this.userName = userName;
+        store.putString(USER_NAME, userName);
     }
 
     /**
@@ -121,86 +181,13 @@ public class ConnectionProperties {
      * @param autoStart sets value of auto start flag
      */
     public void setAutoStart(boolean autoStart) {
-        this.autoStart = autoStart;
-    }
-
-    /**
-     * Method reads properties' values from file.
-     */
-    private void loadProperties() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(context.openFileInput(fileName), "UTF-8"))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.startsWith("ip_address") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    ipAddress = pairs[1];
-                }
-                if (line.startsWith("mac_address") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    macAddress = pairs[1];
-                }
-                if (line.startsWith("user_name") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    userName = pairs[1];
-                }
-                if (line.startsWith("auto_start") && line.contains("=")) {
-                    String[] pairs = line.split("=");
-                    if (pairs.length != 2) continue;
-                    autoStart = pairs[1].equals("true");
-                }
-            }
-
-        } catch (IOException e) {
-            Log.e("Error", "Could not open properties file");
-        }
+        store.putBoolean(AUTO_START, autoStart);
     }
 
     /**
-     * Method saves properties' values.
+     * Method saves properties' values. The values are written in the background.
      */
     public void saveProperties() {
-        try (PrintWriter writer = new PrintWriter(
-                new OutputStreamWriter(context.openFileOutput(fileName, Context.MODE_PRIVATE), "UTF-8"))) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("ip_address=");
-            if (ipAddress != null) {
-                sb.append(ipAddress);
-            }
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("mac_address=");
-            if (macAddress != null) {
-                sb.append(macAddress);
-            }
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("user_name=");
-            if (userName != null) {
-                sb.append(userName);
-            }
-            writer.println(sb.toString());
-
-            sb = new StringBuilder();
-            sb.append("auto_start=");
-            sb.append(autoStart ? "true" : "false");
-            writer.print(sb.toString());
-
-        } catch (IOException e) {
-            Log.e("Error", "Could not save properties");
-        }
-    }
-
-    /**
-     * Method checks whether properties file exists.
-     * @return true if file exists, otherwise false
-     */
-    private boolean fileExists() {
-        File file = context.getFileStreamPath(fileName);
-        return !(file == null || !file.exists());
+        store.save();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,465 @@
+package de.htwg.moco.bulbdj.data;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Class stores the settings of the app in one binary file, designed as singleton.
+ * <p>
+ * All reads come from an immutable in-memory snapshot, which is replaced on every change,
+ * so reading a setting never locks and never touches the disk. Saving is debounced and done on
+ * a background thread: the whole snapshot is written to a temporary file, synced and renamed
+ * over the settings file, so the file is always complete. The file is read through a memory map.
+ * <p>
+ * File format: magic, version, count, then per setting its key, type and value, then a CRC32
+ * of all previous bytes. Strings are stored as length and UTF-8 bytes.
+ * The old properties files (key=value lines) are imported once.
+ *
+ * @author Mislav Jurić
+ * @version 1.0
+ */
+public class SettingsStore {
+
+    /**
+     * Singleton instance of {@link SettingsStore} class.
+     */
+    private static SettingsStore settingsStore = null;
+
+    /**
+     * Name of the settings file.
+     */
+    private static final String FILE_NAME = "settings.bin";
+
+    /**
+     * Names of the old properties files, imported once.
+     */
+    private static final String[] LEGACY_FILE_NAMES = {"AppProp.properties", "Connection.properties"};
+
+    /**
+     * File header, "BDJS".
+     */
+    private static final int MAGIC = 0x42444A53;
+
+    /**
+     * Version of the file format.
+     */
+    private static final short VERSION = 1;
+
+    /**
+     * Types of the values.
+     */
+    private static final byte TYPE_INT = 1, TYPE_BOOLEAN = 2, TYPE_STRING = 3;
+
+    /**
+     * Time in milliseconds a save waits for further changes.
+     */
+    private static final long DEBOUNCE = 300;
+
+    /**
+     * Charset of the strings.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Current settings. Never modified, replaced on every change.
+     */
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
+
+    /**
+     * Last written settings.
+     */
+    private volatile Map<String, Object> written = null;
+
+    /**
+     * Directory of the settings file, null if not loaded.
+     */
+    private volatile File directory = null;
+
+    /**
+     * Writing thread.
+     */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SettingsStore");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Pending debounced save.
+     */
+    private ScheduledFuture<?> pendingSave = null;
+
+    /**
+     * Default constructor.
+     */
+    public SettingsStore() {
+    }
+
+    /**
+     * Getter method for singleton type of class.
+     *
+     * @return singleton instance of class
+     */
+    public static synchronized SettingsStore getInstance() {
+        if (settingsStore == null) {
+            settingsStore = new SettingsStore();
+        }
+        return settingsStore;
+    }
+
+    /**
+     * Method reads the settings from the settings file, or imports the old properties files.
+     * Does nothing if the settings of this directory are already loaded.
+     *
+     * @param directory directory of the settings file, e.g. the files directory of the app
+     */
+    public synchronized void load(File directory) {
+        if (directory == null || directory.equals(this.directory))
+            return;
+        this.directory = directory;
+
+        Map<String, Object> values = new HashMap<>();
+        File file = new File(directory, FILE_NAME);
+        if (file.exists()) {
+            try {
+                read(file, values);
+            } catch (IOException e) {
+                values.clear();
+                Log.e("Error", "Could not load settings, using defaults");
+            }
+            written = values;
+        } else {
+            for (String legacyName : LEGACY_FILE_NAMES) {
+                readLegacy(new File(directory, legacyName), values);
+            }
+        }
+
+        // Changes made before loading win over the file
+        values.putAll(snapshot);
+        snapshot = Collections.unmodifiableMap(values);
+
+        if (!file.exists() && !values.isEmpty()) {
+            flush();
+            if (file.exists()) {
+                for (String legacyName : LEGACY_FILE_NAMES) {
+                    new File(directory, legacyName).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Getter method.
+     * @param key name of the setting
+     * @param defaultValue value if the setting is not set
+     * @return value of the setting
+     */
+    public int getInt(String key, int defaultValue) {
+        Object value = snapshot.get(key);
+        if (value instanceof Integer)
+            return (Integer) value;
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Getter method.
+     * @param key name of the setting
+     * @param defaultValue value if the setting is not set
+     * @return value of the setting
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = snapshot.get(key);
+        if (value instanceof Boolean)
+            return (Boolean) value;
+        if (value instanceof String)
+            return Boolean.parseBoolean((String) value);
+        return defaultValue;
+    }
+
+    /**
+     * Getter method.
+     * @param key name of the setting
+     * @param defaultValue value if the setting is not set
+     * @return value of the setting
+     */
+    public String getString(String key, String defaultValue) {
+        Object value = snapshot.get(key);
+        return value != null ? String.valueOf(value) : defaultValue;
+    }
+
+    /**
+     * Setter method.
+     * @param key name of the setting
+     * @param value sets value of the setting
+     */
+    public void putInt(String key, int value) {
+        put(key, value);
+    }
+
+    /**
+     * Setter method.
+     * @param key name of the setting
+     * @param value sets value of the setting
+     */
+    public void putBoolean(String key, boolean value) {
+        put(key, value);
+    }
+
+    /**
+     * Setter method.
+     * @param key name of the setting
+     * @param value sets value of the setting, null to remove it
+     */
+    public void putString(String key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * Method saves the settings in the background, after further changes had time to arrive.
+     */
+    public synchronized void save() {
+        if (directory == null) return;
+        if (pendingSave != null)
+            pendingSave.cancel(false);
+        pendingSave = writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, DEBOUNCE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method saves the settings now and waits until they are written.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (directory == null) return;
+            if (pendingSave != null)
+                pendingSave.cancel(false);
+            pendingSave = null;
+        }
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }).get();
+        } catch (Exception e) {
+            Log.e("Error", "Could not save settings");
+        }
+    }
+
+    /**
+     * Replace the snapshot by a copy with the changed setting.
+     * @param key name of the setting
+     * @param value value of the setting, null to remove it
+     */
+    private synchronized void put(String key, Object value) {
+        Map<String, Object> values = new HashMap<>(snapshot);
+        if (value == null)
+            values.remove(key);
+        else
+            values.put(key, value);
+        snapshot = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Write the snapshot to a temporary file and rename it over the settings file.
+     * Called on the writing thread only.
+     */
+    private void write() {
+        File directory = this.directory;
+        Map<String, Object> values = snapshot;
+        if (directory == null || values == written)
+            return;
+
+        File file = new File(directory, FILE_NAME);
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        ByteBuffer buffer = encode(values);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array(), 0, buffer.limit());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e("Error", "Could not save settings");
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e("Error", "Could not replace settings");
+            return;
+        }
+        written = values;
+    }
+
+    /**
+     * Encode the settings in the file format.
+     * @param values the settings
+     * @return buffer with the file content, from 0 to its limit
+     */
+    private static ByteBuffer encode(Map<String, Object> values) {
+        int size = 4 + 2 + 2 + 4;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            size += 2 + entry.getKey().getBytes(UTF8).length + 1;
+            Object value = entry.getValue();
+            if (value instanceof Integer)
+                size += 4;
+            else if (value instanceof Boolean)
+                size += 1;
+            else
+                size += 2 + String.valueOf(value).getBytes(UTF8).length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            putString(buffer, entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                buffer.put(TYPE_INT);
+                buffer.putInt((Integer) value);
+            } else if (value instanceof Boolean) {
+                buffer.put(TYPE_BOOLEAN);
+                buffer.put((byte) ((Boolean) value ? 1 : 0));
+            } else {
+                buffer.put(TYPE_STRING);
+                putString(buffer, String.valueOf(value));
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read the settings file through a memory map.
+     * @param file the settings file
+     * @param values map the settings are put in
+     * @throws IOException if the file can not be read or is corrupt
+     */
+    private static void read(File file, Map<String, Object> values) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (buffer.limit() < 12 || buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+                    throw new IOException("Not a settings file.");
+
+                CRC32 crc = new CRC32();
+                byte[] content = new byte[buffer.limit() - 4];
+                buffer.position(0);
+                buffer.get(content);
+                crc.update(content);
+                if (buffer.getInt() != (int) crc.getValue())
+                    throw new IOException("Settings file is corrupt.");
+
+                buffer.position(6);
+                int count = buffer.getShort() & 0xFFFF;
+                for (int i = 0; i < count; i++) {
+                    String key = getString(buffer);
+                    byte type = buffer.get();
+                    if (type == TYPE_INT)
+                        values.put(key, buffer.getInt());
+                    else if (type == TYPE_BOOLEAN)
+                        values.put(key, buffer.get() != 0);
+                    else if (type == TYPE_STRING)
+                        values.put(key, getString(buffer));
+                    else
+                        throw new IOException("Unknown type " + type + ".");
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Settings file is corrupt.");
+            }
+        }
+    }
+
+    /**
+     * Read an old properties file with key=value lines.
+     * Values are typed by their content: true or false, a number or a string.
+     * @param file the properties file
+     * @param values map the settings are put in
+     */
+    private static void readLegacy(File file, Map<String, Object> values) {
+        if (!file.exists())
+            return;
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int separator = line.indexOf('=');
+                if (separator <= 0 || separator == line.length() - 1)
+                    continue;
+
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 1);
+                if (value.equals("true") || value.equals("false")) {
+                    values.put(key, Boolean.valueOf(value));
+                } else {
+                    try {
+                        values.put(key, Integer.valueOf(value));
+                    } catch (NumberFormatException e) {
+                        values.put(key, value);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Error", "Could not import " + file.getName());
+        }
+    }
+
+    /**
+     * Write a string as length and UTF-8 bytes.
+     * @param buffer the buffer
+     * @param value the string
+     */
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Read a string as length and UTF-8 bytes.
+     * @param buffer the buffer
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -1,5 +1,17 @@
 package de.htwg.moco.bulbdj.detector;
 
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -29,6 +41,13 @@ public class AudioManager {
          */
         void onBeatDetected(ArrayList<Object[]> beats);
 
+        /**
+         * Beats of both channels were detected in stereo mode.
+         * @param left the detected beats of the left channel
+         * @param right the detected beats of the right channel
+         */
+        void onStereoBeatDetected(ArrayList<Object[]> left, ArrayList<Object[]> right);
+
         /**
          * FFT update.
          * @param result the raw fft data.
@@ -68,22 +87,83 @@ public class AudioManager {
     /**
      * Flag for run detection.
      */
-    private boolean isDetectorOn = true;
+    private volatile boolean isDetectorOn = true;
+
+    /**
+     * Current {@link AudioSource} instance.
+     */
+    private AudioSource audioSource;
+
+    /**
+     * Source set from outside, used instead of the microphone (e.g. {@link WavAudioSource}).
+     */
+    private AudioSource customSource = null;
 
     /**
-     * Instance of {@AudioRecorder} class.
+     * Reference to application context, needed for the low latency recorder.
      */
-    private AudioRecorder audioRecorder;
+    private Context context;
+
+    /**
+     * Flag for the low latency recorder.
+     */
+    private boolean lowLatency = false;
 
     /**
      * Instance of {@BeatDetector} class.
      */
     private BeatDetector detector;
 
+    /**
+     * Instances of {@link BeatDetector} class for the left and the right channel in stereo mode.
+     */
+    private BeatDetector[] channelDetectors;
+
+    /**
+     * States of the mono, the left and the right detector of the last recording, null if unknown.
+     */
+    private float[][] detectorStates;
+
+    /**
+     * File of the detector states across restarts of the app, null if the states are not stored.
+     */
+    private File stateFile;
+
+    /**
+     * Identifier and version of a state file.
+     */
+    private static final int STATE_MAGIC = 0x42444A53;
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * Maximum age of a stored state in milliseconds, older states describe another room or music.
+     */
+    public static final long MAX_STATE_AGE = 60 * 60 * 1000L;
+
+    /**
+     * Automatic gain control of the recorded frames, before the detection.
+     */
+    private final GainControl gainControl = new GainControl();
+
+    /**
+     * Classifier of the automatic mode, fed by the detector of the mono or the left channel.
+     */
+    private final ModeClassifier modeClassifier = new ModeClassifier();
+
+    /**
+     * Last detected beats of the left and the right channel.
+     */
+    private ArrayList<Object[]> leftBeats, rightBeats;
+
+    /**
+     * Flag for the stereo recording.
+     */
+    private boolean stereo = false;
+
     /**
      * Is AudioManager running.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Singleton instance of {@link AudioManager} class.
@@ -102,6 +182,50 @@ public class AudioManager {
     private AudioManager() {
         this.listener = null;
         detector = new BeatDetector(samplingRate, blockSize);
+        channelDetectors = new BeatDetector[] {
+                new BeatDetector(samplingRate, blockSize),
+                new BeatDetector(samplingRate, blockSize)};
+
+        channelDetectors[StereoAudioRecorder.LEFT].setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
+            @Override
+            public void onBeatDetected(ArrayList<Object[]> beats) {
+                leftBeats = beats;
+            }
+        });
+        channelDetectors[StereoAudioRecorder.RIGHT].setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
+            @Override
+            public void onBeatDetected(ArrayList<Object[]> beats) {
+                rightBeats = beats;
+            }
+        });
+    }
+
+    /**
+     * Setter method. Selects the {@link NativeAudioRecorder} instead of the {@link AudioRecorder}.
+     * Takes effect on the next start.
+     * @param context sets value of context
+     * @param lowLatency true if the native sample rate and burst size are used
+     */
+    public void setLowLatency(Context context, boolean lowLatency) {
+        this.context = context;
+        this.lowLatency = lowLatency;
+    }
+
+    /**
+     * Setter method. Selects the {@link StereoAudioRecorder}, which detects the beats
+     * of the left and the right channel separately. Takes effect on the next start.
+     * @param stereo true if both channels are analysed
+     */
+    public void setStereo(boolean stereo) {
+        this.stereo = stereo;
+    }
+
+    /**
+     * Setter method. Takes effect on the next start.
+     * @param source sets the source used instead of the microphone, null for the microphone
+     */
+    public void setAudioSource(AudioSource source) {
+        this.customSource = source;
     }
 
     /**
@@ -110,8 +234,10 @@ public class AudioManager {
      */
     public void setSettings(int sensitivity) {
 
-        if (sensitivity >= 0)
+        if (sensitivity >= 0) {
             detector.setSensitivityPercent(sensitivity);
+            publishParameters();
+        }
     }
 
     /**
@@ -120,6 +246,7 @@ public class AudioManager {
      */
     public void setMode(Modes mode) {
         detector.setSensitivity(getSensitivity(mode));
+        publishParameters();
     }
 
     /**
@@ -128,6 +255,15 @@ public class AudioManager {
      * @return sensitivity of beat detection
      */
     public float getSensitivity(Modes mode) {
+        return sensitivityOf(mode);
+    }
+
+    /**
+     * Get the sensitivity for a specific mode, e.g. for a detector without audio manager.
+     * @param mode of beat detection
+     * @return sensitivity of beat detection
+     */
+    public static float sensitivityOf(Modes mode) {
         float sensitivity;
         switch(mode) {
             case ELECTRO:
@@ -162,6 +298,27 @@ public class AudioManager {
      */
     public void setFrequencyRange(int low, int high) {
         detector.setManualRange(low, high);
+        publishParameters();
+    }
+
+    /**
+     * Setter method. Frames without a capture time are stamped by this clock.
+     * @param clock sets the clock of the detectors
+     */
+    public void setClock(Clock clock) {
+        detector.setClock(clock);
+        for (BeatDetector channelDetector : channelDetectors)
+            channelDetector.setClock(clock);
+    }
+
+    /**
+     * Publish the parameters of the detector to the channel detectors, so all detectors
+     * switch to the same snapshot at their next frame.
+     */
+    private void publishParameters() {
+        DetectorParameters parameters = detector.getParameters();
+        for (BeatDetector channelDetector : channelDetectors)
+            channelDetector.setParameters(parameters);
     }
 
     /**
@@ -169,7 +326,24 @@ public class AudioManager {
      * @return true if recorder is running
      */
     public boolean isRunning() {
-        return audioRecorder != null && audioRecorder.isRunning();
+        return audioSource != null && audioSource.isRunning();
+    }
+
+    /**
+     * Getter method.
+     * @return count of fft frames of the current recording
+     */
+    public int getFrameCount() {
+        return audioSource != null ? audioSource.getFrameCount() : 0;
+    }
+
+    /**
+     * Getter method. Frames are dropped if the analysis falls behind the recording,
+     * so only the newest frame is processed.
+     * @return count of dropped fft frames of the current recording
+     */
+    public int getDroppedFrames() {
+        return audioSource != null ? audioSource.getDroppedFrames() : 0;
     }
 
     /**
@@ -177,20 +351,54 @@ public class AudioManager {
      */
     public void start() {
         running = true;
-        audioRecorder =
-                new AudioRecorder(samplingRate, blockSize);
-        audioRecorder.start();
-        audioRecorder.setAudioRecorderListener(new AudioRecorder.AudioRecorderListener() {
+        gainControl.reset();
+        audioSource = createAudioSource();
+        detector.setFormat(audioSource.getSampleRate(), audioSource.getBlockSize());
+        final boolean stereoSource = audioSource instanceof StereoAudioRecorder;
+        if (stereoSource) {
+            for (BeatDetector channelDetector : channelDetectors)
+                channelDetector.setFormat(audioSource.getSampleRate(), audioSource.getBlockSize());
+        }
+        restoreDetectorStates();
+        if (stereoSource) {
+
+            ((StereoAudioRecorder) audioSource).setStereoListener(new StereoAudioRecorder.StereoListener() {
+                @Override
+                public void onStereoUpdate(double[] left, double[] right, long time) {
+                    if (running) {
+                        // One gain for both channels keeps the balance
+                        float level = (GainControl.level(left) + GainControl.level(right)) / 2;
+                        gainControl.update(level, time);
+                        gainControl.apply(left);
+                        gainControl.apply(right);
+                    }
+                    if (running && isDetectorOn) {
+                        channelDetectors[StereoAudioRecorder.LEFT].update(left, time);
+                        channelDetectors[StereoAudioRecorder.RIGHT].update(right, time);
+                        modeClassifier.update(channelDetectors[StereoAudioRecorder.LEFT]);
+                        if (listener != null)
+                            listener.onStereoBeatDetected(leftBeats, rightBeats);
+                    }
+                }
+            });
+        }
+        audioSource.setAudioSourceListener(new AudioSource.AudioSourceListener() {
             @Override
-            public void onUpdate(double[] result) {
+            public void onUpdate(double[] result, long time) {
                 if (running) {
-                    if (isDetectorOn) {
-                        detector.update(result);
+                    if (stereoSource)
+                        gainControl.apply(result);
+                    else
+                        gainControl.process(result, time);
+                    if (isDetectorOn && !stereoSource) {
+                        detector.update(result, time);
+                        modeClassifier.update(detector);
                     }
                     listener.onUpdated(result);
                 }
             }
         });
+        audioSource.start();
         detector.setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
             @Override
             public void onBeatDetected(ArrayList<Object[]> beats) {
@@ -200,6 +408,45 @@ public class AudioManager {
         });
     }
 
+    /**
+     * Create the source for the next recording.
+     * @return the custom source if set, otherwise a new recorder
+     */
+    private AudioSource createAudioSource() {
+        if (customSource != null)
+            return customSource;
+        if (stereo)
+            return new StereoAudioRecorder(samplingRate, blockSize);
+        if (lowLatency && context != null)
+            return new NativeAudioRecorder(context);
+        return new AudioRecorder(samplingRate, blockSize);
+    }
+
+    /**
+     * Setter method. The states of the detectors are stored when the recording stops
+     * and restored from the file on the first start, so the detection resumes without a warm up.
+     * @param stateFile sets the file of the detector states, null if the states are not stored
+     */
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Getter method.
+     * @return the automatic gain control of the recorded frames
+     */
+    public GainControl getGainControl() {
+        return gainControl;
+    }
+
+    /**
+     * Getter method.
+     * @return the classifier of the automatic mode
+     */
+    public ModeClassifier getModeClassifier() {
+        return modeClassifier;
+    }
+
     /**
      * Setter method.
      * @param on sets the detection on or off.
@@ -221,9 +468,128 @@ public class AudioManager {
      */
     public void stop() {
         running = false;
-        if (audioRecorder != null)
-            audioRecorder.stop();
+        if (audioSource != null)
+            audioSource.stop();
+        saveDetectorStates();
         if (listener != null)
             listener.onStop();
     }
+
+    /**
+     * Restore the states of the last recording, from the state file if the app was restarted.
+     * States which do not fit the format of a detector are ignored.
+     */
+    private void restoreDetectorStates() {
+        if (detectorStates == null && stateFile != null && stateFile.exists()) {
+            try {
+                detectorStates = readStates(stateFile, System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.w("AudioManager", "Could not read the detector states");
+            }
+        }
+        if (detectorStates == null)
+            return;
+
+        detector.restoreState(detectorStates[0]);
+        for (int i = 0; i < channelDetectors.length && i + 1 < detectorStates.length; i++)
+            channelDetectors[i].restoreState(detectorStates[i + 1]);
+    }
+
+    /**
+     * Save the states of the detectors, and store them in the state file in the background.
+     */
+    private void saveDetectorStates() {
+        final float[][] states = new float[channelDetectors.length + 1][];
+        states[0] = detector.saveState();
+        for (int i = 0; i < channelDetectors.length; i++)
+            states[i + 1] = channelDetectors[i].saveState();
+        detectorStates = states;
+
+        final File file = stateFile;
+        if (file == null)
+            return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeStates(file, states, System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.w("AudioManager", "Could not write the detector states");
+                }
+            }
+        });
+    }
+
+    /**
+     * Write detector states to a file.
+     * The states are written to a temporary file, synced and renamed over the file, so the file is
+     * always complete, like the settings of {@link de.htwg.moco.bulbdj.data.SettingsStore}.
+     * Format (big endian): magic, version, time, count, then per state its length (-1 if null) and the values.
+     *
+     * @param file the file
+     * @param states the states, elements may be null
+     * @param time wall time of the states in milliseconds
+     * @throws IOException if the file could not be written
+     */
+    public static synchronized void writeStates(File file, float[][] states, long time) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeLong(time);
+            out.writeInt(states.length);
+            for (float[] state : states) {
+                out.writeInt(state != null ? state.length : -1);
+                if (state != null) {
+                    for (float value : state)
+                        out.writeFloat(value);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace the state file");
+    }
+
+    /**
+     * Read detector states from a file.
+     *
+     * @param file the file
+     * @param now current wall time in milliseconds
+     * @return the states, null if they are older than {@link #MAX_STATE_AGE}
+     * @throws IOException if the file could not be read or is invalid
+     */
+    public static float[][] readStates(File file, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION)
+                throw new IOException("Invalid state file");
+            long time = in.readLong();
+            if (now - time > MAX_STATE_AGE || now < time)
+                return null;
+
+            int count = in.readInt();
+            if (count < 0 || count > 16)
+                throw new IOException("Invalid state file");
+            float[][] states = new float[count][];
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length > (int) (file.length() / 4))
+                    throw new IOException("Invalid state file");
+                if (length < 0)
+                    continue;
+                states[i] = new float[length];
+                for (int n = 0; n < length; n++)
+                    states[i][n] = in.readFloat();
+            }
+            return states;
+        } finally {
+            in.close();
+        }
+    }
 }
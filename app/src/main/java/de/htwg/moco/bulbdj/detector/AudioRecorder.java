@@ -16,33 +16,15 @@ import org.jtransforms.fft.DoubleFFT_1D;
  * @author Daniel Steidinger
  * @version 1.0
  */
-public class AudioRecorder extends AsyncTask<Void, double[], Void> {
+public class AudioRecorder extends AsyncTask<Void, double[], Void> implements AudioSource {
 
     /**
-     * Interface of {@link AudioRecorder} class.
-     *
-     * @author Daniel Steidinger
-     * @version 1.0
-     */
-    public interface AudioRecorderListener {
-
-        /**
-         * FFT update.
-         * @param result the raw fft data.
-         */
-        void onUpdate(double[] result);
-    }
-
-    /**
-     * Instance of {@link AudioRecorderListener} class.
+     * Instance of {@link AudioSourceListener} class.
      */
-    private AudioRecorderListener listener;
+    private AudioSourceListener listener;
 
-    /**
-     * Setter method.
-     * @param listener sets the listener of {@link AudioRecorderListener} class.
-     */
-    public void setAudioRecorderListener(AudioRecorderListener listener) {
+    @Override
+    public void setAudioSourceListener(AudioSourceListener listener) {
         this.listener = listener;
     }
 
@@ -66,10 +48,15 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
      */
     private int blockSize;
 
+    /**
+     * Exchange of the fft frames with the ui thread.
+     */
+    private FrameExchanger frames;
+
     /**
      * Was the recoding started.
      */
-    private boolean started = false;
+    private volatile boolean started = false;
 
     /**
      * Default constructor.
@@ -80,12 +67,30 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
         this.listener = null;
         this.sampleRate = sampleRate;
         this.blockSize = blockSize;
+        this.frames = new FrameExchanger(blockSize);
     }
 
-    /**
-     * Is the recording running.
-     * @return true if recording was started
-     */
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frames.getFrameCount();
+    }
+
+    @Override
+    public int getDroppedFrames() {
+        return frames.getDroppedFrames();
+    }
+
+    @Override
     public boolean isRunning() {
         return started;
     }
@@ -97,6 +102,7 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
      * Convert the results to FFT data and publish the process.
      *
      */
+    @Override
     public void start() {
         started = true;
         this.execute();
@@ -105,6 +111,7 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
     /**
      * Stop the recording.
      */
+    @Override
     public void stop() {
         started = false;
         this.cancel(true);
@@ -122,7 +129,7 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
                             channelConfig, audioEncoding, bufferSize);
 
             short[] buffer = new short[blockSize];
-            double[] result = new double[blockSize];
+            DoubleFFT_1D doubleFFT = new DoubleFFT_1D(blockSize);
 
             audioRecord.startRecording();
 
@@ -130,16 +137,18 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
                 // Read 43 times per second with blockSize = 512, sampleRate = 22050
                 int bufferReadResult = audioRecord.read(buffer, 0, blockSize);
 
+                double[] result = frames.getBackBuffer();
+
                 // Short to Double
                 for (int i = 0; i < blockSize && i < bufferReadResult; i++) {
                     result[i] = (double) buffer[i] / 32768.0;
                 }
 
                 // Execute FFT
-                DoubleFFT_1D doubleFFT = new DoubleFFT_1D(blockSize);
                 doubleFFT.realForward(result);
 
-                publishProgress(result);
+                if (frames.publish(Clock.SYSTEM.nanoTime()))
+                    publishProgress();
             }
 
             audioRecord.stop();
@@ -154,8 +163,10 @@ public class AudioRecorder extends AsyncTask<Void, double[], Void> {
 
     @Override
     protected void onProgressUpdate(double[]... result) {
-        if (listener != null) {
-            listener.onUpdate(result[0]);
+        // Always the newest frame, older frames were dropped
+        double[] frame = frames.take();
+        if (listener != null && frame != null) {
+            listener.onUpdate(frame, frames.getFrameTime());
         }
     }
 }
@@ -0,0 +1,73 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Interface of all audio capture backends.
+ * A source records blocks of samples and publishes them as FFT data.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public interface AudioSource {
+
+    /**
+     * Interface of {@link AudioSource} listener.
+     *
+     * @author Daniel Steidinger
+     * @version 1.0
+     */
+    interface AudioSourceListener {
+
+        /**
+         * FFT update.
+         * @param result the raw fft data.
+         * @param time capture time of the block in nanoseconds, like {@link Clock#nanoTime()}
+         */
+        void onUpdate(double[] result, long time);
+    }
+
+    /**
+     * Setter method.
+     * @param listener sets the listener of {@link AudioSourceListener} class.
+     */
+    void setAudioSourceListener(AudioSourceListener listener);
+
+    /**
+     * Getter method.
+     * @return the sampling rate of the published blocks in Hz
+     */
+    int getSampleRate();
+
+    /**
+     * Getter method.
+     * @return the block size (number of samples) of each published fft
+     */
+    int getBlockSize();
+
+    /**
+     * Getter method.
+     * @return count of fft frames produced since start
+     */
+    int getFrameCount();
+
+    /**
+     * Getter method.
+     * @return count of fft frames dropped because the analysis fell behind
+     */
+    int getDroppedFrames();
+
+    /**
+     * Is the source running.
+     * @return true if the source was started
+     */
+    boolean isRunning();
+
+    /**
+     * Start the recording.
+     */
+    void start();
+
+    /**
+     * Stop the recording.
+     */
+    void stop();
+}
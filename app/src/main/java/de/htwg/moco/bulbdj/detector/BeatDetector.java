@@ -1,6 +1,9 @@
 package de.htwg.moco.bulbdj.detector;
 
+import org.jtransforms.fft.DoubleFFT_1D;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Class detects some beats like kick, snare and hat.
@@ -8,6 +11,10 @@ import java.util.ArrayList;
  * separate the frequency in some divisions.
  * Kick, Snare and Hat have their own frequency range.
  *
+ * A detected beat is located within its frame: the band of its type is transformed back into the
+ * time domain and the onset is the rise of its envelope, so each beat carries the time of its
+ * first sample instead of the time of the frame.
+ *
  * The main idea is from Frédéric Patin (https://www.gamedev.net/articles/programming/math-and-physics/beat-detection-algorithms-r1952)
  * and from this project: https://github.com/darrenmothersele/ofxBeat
  *
@@ -26,7 +33,7 @@ public class BeatDetector {
 
         /**
          * Beats were detected.
-         * @param beats that were detected
+         * @param beats that were detected: type, energy and onset time in nanoseconds, like {@link Clock#nanoTime()}
          */
         void onBeatDetected(ArrayList<Object[]> beats);
     }
@@ -41,6 +48,11 @@ public class BeatDetector {
      */
     public enum BEAT_TYPE { KICK, SNARE, HAT, MANUAL };
 
+    /**
+     * All beat types, indexed by {@link BEAT_TYPE#ordinal()}.
+     */
+    private static final BEAT_TYPE[] TYPES = BEAT_TYPE.values();
+
     private float[] magnitude = null;
     private float[] avgMagnitude = null;
     private float[] fftSubBands = null;
@@ -49,19 +61,118 @@ public class BeatDetector {
     private float[][] energyHistory = null;
     private float[] averageEnergy = null;
     private ArrayList<Object[]> beats = new ArrayList<Object[]>();
-    private float lastBeatEnergy = 0;
 
+    private int sampleRate = -1;
     private int historySize = -1;
     private int fftSize = -1;
     private int historyPos = 0;
     private int divisions = 2;
-    private int timeToWait = 0;    // In milliseconds
     private int fftSubBandsCount = 64;  //32;   // More Bands = more sensitivity. Less Bands = more recognizations for different music types.
-    private long lastBeat = 0;
-    private float threshold = 0.2F;
-    private float sensitivity = 1.35F;
-    private int manualLow = -1;
-    private int manualHigh = -1;
+    private float threshold = 0.001F;   // Only digital silence, the level dependent part is the noise floor.
+
+    /**
+     * Adaptive noise floor of each sub band. It falls within {@link #FLOOR_FALL} seconds to quiet
+     * frames and rises within {@link #FLOOR_RISE} seconds, so it follows the level between the beats
+     * at any volume. A beat has to exceed the floor by {@link #FLOOR_RATIO}.
+     */
+    private final float[] noiseFloor = new float[fftSubBandsCount];
+    private static final float FLOOR_RISE = 5F, FLOOR_FALL = 0.25F;
+    private static final float FLOOR_RATIO = 1.4F;
+
+    /**
+     * Weights of a new frame in the noise floor when it rises and when it falls.
+     */
+    private float floorRise, floorFall;
+
+    /**
+     * Sub band range of each beat type, indexed by {@link BEAT_TYPE#ordinal()}.
+     * The range of {@link BEAT_TYPE#MANUAL} is taken from the parameters of each frame.
+     */
+    private final int[] rangeLow = new int[TYPES.length];
+    private final int[] rangeHigh = new int[TYPES.length];
+
+    /**
+     * Count and energy of the beat sub bands of each beat type in the current frame.
+     */
+    private final int[] beatCounts = new int[TYPES.length];
+    private final float[] beatEnergy = new float[TYPES.length];
+
+    /**
+     * Energy of all sub bands of each beat type range in the current frame.
+     */
+    private final float[] rangeEnergy = new float[TYPES.length];
+
+    /**
+     * Is a beat of each beat type detected in the current frame.
+     */
+    private final boolean[] detected = new boolean[TYPES.length];
+
+    /**
+     * Time of the last beat of each beat type in nanoseconds, and whether there was one.
+     */
+    private final long[] lastOnset = new long[TYPES.length];
+    private final boolean[] hasOnset = new boolean[TYPES.length];
+
+    /**
+     * Time after a beat of each beat type in which no other beat of the type is detected, in milliseconds.
+     */
+    private final int[] refractory = new int[TYPES.length];
+
+    /**
+     * Onset time of the last beat of each beat type in nanoseconds.
+     */
+    private final long[] onsetTime = new long[TYPES.length];
+
+    /**
+     * Level between the envelope before and the peak of a beat at which its onset is located.
+     * The envelope is an energy, a quarter of it is half of the amplitude, the middle of the rise.
+     */
+    private static final float ONSET_LEVEL = 0.25F;
+
+    /**
+     * Inverse fft of a frame and fft of the window of two frames of the onset refinement,
+     * created for the block size of the first beat.
+     */
+    private DoubleFFT_1D inverseFft = null, windowFft = null;
+
+    /**
+     * Previous frame and its capture time, the onset of a beat may be at the end of the previous frame.
+     */
+    private double[] previousFrame = null;
+    private long previousTime;
+    private boolean hasPrevious = false;
+
+    /**
+     * Window of the previous and the current frame, the band of a beat type in the window
+     * in the time domain, its quadrature and its envelope.
+     */
+    private double[] window, bandSignal, bandQuadrature, envelope;
+
+    /**
+     * Version and size of the header of a saved state.
+     */
+    private static final int STATE_VERSION = 1;
+    private static final int STATE_HEADER = 5;
+
+    /**
+     * Clock of frames without a capture time.
+     */
+    private Clock clock = Clock.SYSTEM;
+
+    /**
+     * Capture time of the current frame in nanoseconds.
+     */
+    private long frameTime = 0;
+
+    /**
+     * Parameters published by other threads, read once per frame.
+     */
+    private volatile DetectorParameters parameters = DetectorParameters.DEFAULT;
+
+    /**
+     * Parameters of the current frame.
+     */
+    private DetectorParameters frameParameters = DetectorParameters.DEFAULT;
 
     /**
      * Default constructor.
@@ -70,6 +181,7 @@ public class BeatDetector {
      */
     public BeatDetector(int samplingRate, int fftSize) {
         this.listener = null;
+        this.sampleRate = samplingRate;
         this.historySize = samplingRate / fftSize;
         this.fftSize = fftSize / divisions;
         this.fftSubBands = new float[fftSubBandsCount];
@@ -77,6 +189,123 @@ public class BeatDetector {
         this.beatValues = new float[fftSubBandsCount];
         this.averageEnergy = new float[fftSubBandsCount];
         this.energyHistory = new float[fftSubBandsCount][historySize];
+        setFloorWeights();
+
+        // Kick in sub band ~0, ~ values for snares and hats
+        setRange(BEAT_TYPE.KICK, 0, 0);
+        setRange(BEAT_TYPE.SNARE, 1, fftSubBandsCount / 3);
+        setRange(BEAT_TYPE.HAT, fftSubBandsCount / 2, fftSubBandsCount - 1);
+        setRange(BEAT_TYPE.MANUAL, -1, -1);
+    }
+
+    /**
+     * Setter method.
+     * @param type the beat type
+     * @param low lowest sub band
+     * @param high highest sub band
+     */
+    private void setRange(BEAT_TYPE type, int low, int high) {
+        rangeLow[type.ordinal()] = low;
+        rangeHigh[type.ordinal()] = high;
+    }
+
+    /**
+     * Setter method. Reallocates the history if the format of the recorded data changed.
+     * @param samplingRate of the recorded data.
+     * @param fftSize of the recorded data.
+     */
+    void setFormat(int samplingRate, int fftSize) {
+        int historySize = samplingRate / fftSize;
+        if (historySize == this.historySize && fftSize / divisions == this.fftSize && samplingRate == this.sampleRate)
+            return;
+
+        this.sampleRate = samplingRate;
+        this.historySize = historySize;
+        this.fftSize = fftSize / divisions;
+        this.historyPos = 0;
+        this.energyHistory = new float[fftSubBandsCount][historySize];
+        this.magnitude = null;
+        this.hasPrevious = false;
+        setFloorWeights();
+    }
+
+    /**
+     * Calculate the weights of the noise floor, the history holds the frames of one second.
+     */
+    private void setFloorWeights() {
+        floorRise = Math.min(1, 1 / (historySize * FLOOR_RISE));
+        floorFall = Math.min(1, 1 / (historySize * FLOOR_FALL));
+    }
+
+    /**
+     * Save the warm state of the detector: the averages of the magnitudes, the sub bands,
+     * the noise floors and the energy history of the last second.
+     * Layout: version, fft size, history size, sub band count, history position, then the arrays.
+     * Call it while the detector is not updated, e.g. after the recording stopped.
+     *
+     * @return the state, null if the detector has not seen a frame yet
+     */
+    public float[] saveState() {
+        if (magnitude == null)
+            return null;
+
+        float[] state = new float[STATE_HEADER + fftSize + fftSubBandsCount * (3 + historySize)];
+        state[0] = STATE_VERSION;
+        state[1] = fftSize;
+        state[2] = historySize;
+        state[3] = fftSubBandsCount;
+        state[4] = historyPos;
+        int position = STATE_HEADER;
+        System.arraycopy(avgMagnitude, 0, state, position, fftSize);
+        position += fftSize;
+        System.arraycopy(fftSubBands, 0, state, position, fftSubBandsCount);
+        position += fftSubBandsCount;
+        System.arraycopy(fftVariance, 0, state, position, fftSubBandsCount);
+        position += fftSubBandsCount;
+        System.arraycopy(noiseFloor, 0, state, position, fftSubBandsCount);
+        position += fftSubBandsCount;
+        for (int i = 0; i < fftSubBandsCount; i++) {
+            System.arraycopy(energyHistory[i], 0, state, position, historySize);
+            position += historySize;
+        }
+        return state;
+    }
+
+    /**
+     * Restore a state of {@link #saveState()}, so the next frame is detected without a warm up.
+     * Call it after the format is set and before the first frame.
+     *
+     * @param state the state
+     * @return true if the state was restored, false if it does not fit the format of the detector
+     */
+    public boolean restoreState(float[] state) {
+        if (state == null || state.length != STATE_HEADER + fftSize + fftSubBandsCount * (3 + historySize) ||
+                state[0] != STATE_VERSION || state[1] != fftSize || state[2] != historySize ||
+                state[3] != fftSubBandsCount || state[4] < 0 || state[4] >= historySize)
+            return false;
+
+        if (magnitude == null)
+            init(fftSize);
+        historyPos = (int) state[4];
+        int position = STATE_HEADER;
+        System.arraycopy(state, position, avgMagnitude, 0, fftSize);
+        position += fftSize;
+        System.arraycopy(state, position, fftSubBands, 0, fftSubBandsCount);
+        position += fftSubBandsCount;
+        System.arraycopy(state, position, fftVariance, 0, fftSubBandsCount);
+        position += fftSubBandsCount;
+        System.arraycopy(state, position, noiseFloor, 0, fftSubBandsCount);
+        position += fftSubBandsCount;
+        for (int i = 0; i < fftSubBandsCount; i++) {
+            System.arraycopy(state, position, energyHistory[i], 0, historySize);
+            position += historySize;
+        }
+
+        // The times of the last beats and the last frame belong to the old recording
+        for (int t = 0; t < TYPES.length; t++)
+            hasOnset[t] = false;
+        hasPrevious = false;
+        return true;
     }
 
     /**
@@ -113,36 +342,76 @@ public class BeatDetector {
             for (int i2 = 0; i2 < historySize; i2++) {
                 energyHistory[i][i2] = 0;
             }
+            noiseFloor[i] = 0;
         }
     }
 
     /**
      * Setter method.
-     * @param percentage of the sensitivity from 0 to 100
+     * @param clock sets the clock of frames without a capture time
      */
-    public void setSensitivityPercent(int percentage) {
-        if (percentage >= 0) {
-            float sensitivity = (100F - percentage) / 100F;
-            float maxWeight = 2.0F;
-            float minWeight = 1.0F;
-            float range = maxWeight - minWeight;
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
 
-            this.sensitivity = minWeight + range * sensitivity;
-        } else {
-            throw new RuntimeException("Sensitivity is negative.");
-        }
+    /**
+     * Getter method.
+     * @return capture time of the current frame in nanoseconds
+     */
+    public long getFrameTime() {
+        return frameTime;
+    }
+
+    /**
+     * Setter method.
+     * @param type the beat type
+     * @param refractory sets the time after a beat in which no other beat of the type is detected, in milliseconds
+     */
+    public void setRefractory(BEAT_TYPE type, int refractory) {
+        if (refractory < 0)
+            throw new RuntimeException("Refractory period is negative.");
+        this.refractory[type.ordinal()] = refractory;
+    }
+
+    /**
+     * Getter method.
+     * @param type the beat type
+     * @return time after a beat in which no other beat of the type is detected, in milliseconds
+     */
+    public int getRefractory(BEAT_TYPE type) {
+        return refractory[type.ordinal()];
+    }
+
+    /**
+     * Getter method.
+     * @return the current parameters
+     */
+    public DetectorParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Setter method. Takes effect on the next frame.
+     * @param parameters sets the parameters of the detection
+     */
+    public void setParameters(DetectorParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Setter method.
+     * @param percentage of the sensitivity from 0 to 100
+     */
+    public synchronized void setSensitivityPercent(int percentage) {
+        parameters = parameters.withSensitivityPercent(percentage);
     }
 
     /**
      * Setter method.
      * @param sensitivity of the beat detection
      */
-    public void setSensitivity(float sensitivity) {
-        if (sensitivity >= 0) {
-            this.sensitivity = sensitivity;
-        } else {
-            throw new RuntimeException("Sensitivity is negative.");
-        }
+    public synchronized void setSensitivity(float sensitivity) {
+        parameters = parameters.withSensitivity(sensitivity);
     }
 
     /**
@@ -150,7 +419,7 @@ public class BeatDetector {
      * @param low sets the low frequency
      * @param high sets the high frequency
      */
-    public void setManualRange(int low, int high) {
+    public synchronized void setManualRange(int low, int high) {
         low = (int) (((float) (low / 100F)) * (fftSubBandsCount - 1));
         high = (int) (((float) (high / 100F)) * (fftSubBandsCount - 1));
 
@@ -159,62 +428,133 @@ public class BeatDetector {
         else if (high > fftSubBandsCount)
             throw new RuntimeException("High value is bigger then SubbandsCount (" + fftSubBandsCount + ")");
 
-        manualLow = low;
-        manualHigh = high;
+        parameters = parameters.withManualRange(low, high);
     }
 
     /**
      * Clear the manual range.
      */
-    public void clearManualRange() {
-        manualLow = -1;
-        manualHigh = -1;
+    public synchronized void clearManualRange() {
+        parameters = parameters.withManualRange(-1, -1);
     }
 
     /**
      * Update fft data and check for any type of beat.
+     * The frame is stamped with the current time of the clock.
      * @param input of the fft data.
      */
     public void update(double[] input) {
+        update(input, clock.nanoTime());
+    }
+
+    /**
+     * Update fft data and check for any type of beat.
+     * @param input of the fft data.
+     * @param time capture time of the frame in nanoseconds
+     */
+    public void update(double[] input, long time) {
 
         if (magnitude == null) {
             init(fftSize);
         }
+        frameTime = time;
+
+        // Changes of the parameters take effect at frame boundaries
+        frameParameters = parameters;
 
         calcAll(input);
 
-        beatDetected(detectBeat());
+        ArrayList<Object[]> beats = detectBeat(input);
+        keepPreviousFrame(input);
+        beatDetected(beats);
     }
 
     /**
-     * Detect beats.
+     * Detect beats. All sub bands are checked once, for all beat types in one pass.
+     * @param input of the fft data
      * @return type of beats.
      */
-    private ArrayList<Object[]> detectBeat() {
+    private ArrayList<Object[]> detectBeat(double[] input) {
         beats.clear();
 
-        if (manualLow < 0 || manualHigh < 0) {
-            if (isKick()) {
-                beats.add(new Object[] {BEAT_TYPE.KICK, lastBeatEnergy});
-            } if (isSnare()) {
-                beats.add(new Object[] {BEAT_TYPE.SNARE, lastBeatEnergy});
-            } if (isHat()) {
-                beats.add(new Object[] {BEAT_TYPE.HAT, lastBeatEnergy});
+        boolean manual = frameParameters.hasManualRange();
+        setRange(BEAT_TYPE.MANUAL, frameParameters.getManualLow(), frameParameters.getManualHigh());
+        int first = manual ? BEAT_TYPE.MANUAL.ordinal() : BEAT_TYPE.KICK.ordinal();
+        int last = manual ? BEAT_TYPE.MANUAL.ordinal() : BEAT_TYPE.HAT.ordinal();
+
+        for (int t = 0; t < TYPES.length; t++) {
+            beatCounts[t] = 0;
+            beatEnergy[t] = 0;
+            rangeEnergy[t] = 0;
+            detected[t] = false;
+        }
+
+        for (int i = 0; i < fftSubBandsCount; i++) {
+            boolean beat = isBeat(i);
+            for (int t = 0; t < TYPES.length; t++) {
+                if (i >= rangeLow[t] && i <= rangeHigh[t]) {
+                    rangeEnergy[t] += fftSubBands[i];
+                    if (beat && t >= first && t <= last) {
+                        beatCounts[t]++;
+                        beatEnergy[t] += fftSubBands[i];
+                    }
+                }
+            }
+        }
+
+        for (int t = first; t <= last; t++) {
+            if (isOnset(t)) {
+                detected[t] = true;
+                onsetTime[t] = refineOnset(input, t);
+                beats.add(new Object[] {TYPES[t], beatEnergy[t], onsetTime[t]});
             }
-        } else if (isBeatRange(manualLow, manualHigh)) {
-            beats.add(new Object[] {BEAT_TYPE.MANUAL, lastBeatEnergy});
         }
 
         return beats;
     }
 
+    /**
+     * Is a beat of a type detected in the current frame.
+     * @param type the beat type
+     * @return true if a beat was detected
+     */
+    public boolean isBeat(BEAT_TYPE type) {
+        return detected[type.ordinal()];
+    }
+
+    /**
+     * Getter method.
+     * @param type the beat type
+     * @return onset time of the last beat of the type in nanoseconds, within its frame or the frame before
+     */
+    public long getOnsetTime(BEAT_TYPE type) {
+        return onsetTime[type.ordinal()];
+    }
+
+    /**
+     * Getter method.
+     * @param band index of the sub band
+     * @return adaptive noise floor of the sub band
+     */
+    public float getNoiseFloor(int band) {
+        return noiseFloor[band];
+    }
+
+    /**
+     * Getter method.
+     * @param type the beat type
+     * @return energy of all sub bands of the range of the beat type in the current frame
+     */
+    public float getBandEnergy(BEAT_TYPE type) {
+        return rangeEnergy[type.ordinal()];
+    }
+
     /**
      * Is current update in a kick frequency.
      * @return true if kick was detected
      */
     public boolean isKick() {
-        // Frequency for Kicks in sub band ~0.
-        return isBeatRange(0, 0);
+        return isBeat(BEAT_TYPE.KICK);
     }
 
     /**
@@ -222,10 +562,7 @@ public class BeatDetector {
      * @return true if snare was detected
      */
     public boolean isSnare() {
-        // ~ Values for Snares
-        int low = 1;
-        int high = fftSubBandsCount / 3;
-        return isBeatRange(low, high);
+        return isBeat(BEAT_TYPE.SNARE);
     }
 
     /**
@@ -233,34 +570,26 @@ public class BeatDetector {
      * @return true if hat was detected
      */
     public boolean isHat() {
-        // ~ Values for Hats
-        int low = fftSubBandsCount / 2;
-        int high = fftSubBandsCount - 1;
-        return isBeatRange(low, high);
+        return isBeat(BEAT_TYPE.HAT);
     }
 
     /**
-     * Is beat in specific range.
-     * @param low sets the low frequency
-     * @param high sets the high frequency
-     * @return true if beat was detected in specific range
+     * Is the beat of a type an onset: enough sub bands of its range are beats,
+     * and its refractory period since its last beat is over.
+     * @param type index of the beat type
+     * @return true if beat was detected in its range
      */
-    private boolean isBeatRange(int low, int high) {
-        int thresholdBeatCounts = (high-low) / 3;
-
-        lastBeatEnergy = 0;
-        int beatCounts = 0;
-        for(int i = low; i <= high; i++) {
-            if (isBeat(i)) {
-                beatCounts++;
-                lastBeatEnergy += fftSubBands[i];
-            }
-        }
+    private boolean isOnset(int type) {
+        int low = rangeLow[type];
+        int high = rangeHigh[type];
+        int thresholdBeatCounts = (high - low) / 3;
 
-        boolean beatDetected = (beatCounts > thresholdBeatCounts && ((System.currentTimeMillis() - lastBeat) > timeToWait));
+        boolean beatDetected = beatCounts[type] > thresholdBeatCounts &&
+                (!hasOnset[type] || frameTime - lastOnset[type] > refractory[type] * 1000000L);
         if (beatDetected) {
-            lastBeat = System.currentTimeMillis();
-            lastBeatEnergy /= high+1 - low;
+            lastOnset[type] = frameTime;
+            hasOnset[type] = true;
+            beatEnergy[type] /= high + 1 - low;
         }
         return beatDetected;
     }
@@ -293,7 +622,10 @@ public class BeatDetector {
             }
             fftVariance[i] = fftVariance[i] * (float) fftSubBandsCount / (float) fftSize;
 
-            beatValues[i] = (float) (-0.0025714 * fftVariance[i]) + sensitivity;
+            beatValues[i] = (float) (-0.0025714 * fftVariance[i]) + frameParameters.getSensitivity();
+
+            float floorWeight = fftSubBands[i] > noiseFloor[i] ? floorRise : floorFall;
+            noiseFloor[i] += floorWeight * (fftSubBands[i] - noiseFloor[i]);
         }
 
         for (int i = 0; i < fftSubBandsCount; i++) {
@@ -320,6 +652,100 @@ public class BeatDetector {
      * @return true if a beat was detected.
      */
     private boolean isBeat(int i) {
-        return fftSubBands[i] > (averageEnergy[i] * beatValues[i]) && fftSubBands[i] > threshold;
+        return fftSubBands[i] > (averageEnergy[i] * beatValues[i]) && fftSubBands[i] > threshold &&
+                fftSubBands[i] > noiseFloor[i] * FLOOR_RATIO;
+    }
+
+    /**
+     * Locate the onset of a beat within the previous and the current frame.
+     * Both frames are transformed back into the time domain and joined, so the band of the beat type
+     * can be filtered without an edge between the frames. The band and its quadrature give the
+     * envelope of the band at each sample. The onset is where the envelope last rose through
+     * {@link #ONSET_LEVEL} between the lowest envelope before the peak and the peak of the current
+     * frame, interpolated between two samples.
+     *
+     * @param input of the fft data
+     * @param type index of the beat type
+     * @return onset time in nanoseconds
+     */
+    private long refineOnset(double[] input, int type) {
+        int blockSize = fftSize * divisions;
+        if (sampleRate <= 0 || input.length < blockSize || rangeLow[type] < 0)
+            return frameTime;
+        if (inverseFft == null || envelope.length != 2 * blockSize) {
+            inverseFft = new DoubleFFT_1D(blockSize);
+            windowFft = new DoubleFFT_1D(2 * blockSize);
+            window = new double[2 * blockSize];
+            bandSignal = new double[2 * blockSize];
+            bandQuadrature = new double[2 * blockSize];
+            envelope = new double[2 * blockSize];
+        }
+
+        // The previous frame is only used if no frame was dropped in between
+        long blockTime = (long) (blockSize * 1e9 / sampleRate);
+        boolean previous = hasPrevious && previousFrame.length == input.length &&
+                Math.abs(frameTime - previousTime - blockTime) < blockTime / 2;
+        if (previous) {
+            System.arraycopy(previousFrame, 0, window, 0, blockSize);
+            inverseFft.realInverse(window, 0, true);
+        } else {
+            Arrays.fill(window, 0, blockSize, 0);
+        }
+        System.arraycopy(input, 0, window, blockSize, blockSize);
+        inverseFft.realInverse(window, blockSize, true);
+        windowFft.realForward(window);
+
+        // Bins of the window are twice as dense as the bins of a frame
+        int binsPerBand = 2 * fftSize / fftSubBandsCount;
+        int low = Math.max(1, rangeLow[type] * binsPerBand);
+        int high = Math.min(blockSize - 1, (rangeHigh[type] + 1) * binsPerBand - 1);
+        Arrays.fill(bandSignal, 0);
+        Arrays.fill(bandQuadrature, 0);
+        for (int k = low; k <= high; k++) {
+            double re = window[2 * k];
+            double im = window[2 * k + 1];
+            bandSignal[2 * k] = re;
+            bandSignal[2 * k + 1] = im;
+            // Shifted by 90 degrees
+            bandQuadrature[2 * k] = im;
+            bandQuadrature[2 * k + 1] = -re;
+        }
+        windowFft.realInverse(bandSignal, true);
+        windowFft.realInverse(bandQuadrature, true);
+        for (int i = 0; i < 2 * blockSize; i++)
+            envelope[i] = bandSignal[i] * bandSignal[i] + bandQuadrature[i] * bandQuadrature[i];
+
+        int first = previous ? 0 : blockSize;
+        int peak = blockSize;
+        for (int i = blockSize + 1; i < 2 * blockSize; i++) {
+            if (envelope[i] > envelope[peak])
+                peak = i;
+        }
+        double floor = envelope[peak];
+        for (int i = first; i < peak; i++)
+            floor = Math.min(floor, envelope[i]);
+        double level = floor + ONSET_LEVEL * (envelope[peak] - floor);
+
+        int onset = peak;
+        while (onset > first && envelope[onset - 1] >= level)
+            onset--;
+        double position = onset;
+        if (onset > first && envelope[onset] > envelope[onset - 1])
+            position = onset - 1 + (level - envelope[onset - 1]) / (envelope[onset] - envelope[onset - 1]);
+
+        // The capture time is the time after the last sample of the current frame
+        return frameTime - (long) ((2 * blockSize - position) * 1e9 / sampleRate);
+    }
+
+    /**
+     * Keep a copy of the current frame for the onset refinement of the next frame.
+     * @param input of the fft data
+     */
+    private void keepPreviousFrame(double[] input) {
+        if (previousFrame == null || previousFrame.length != input.length)
+            previousFrame = new double[input.length];
+        System.arraycopy(input, 0, previousFrame, 0, input.length);
+        previousTime = frameTime;
+        hasPrevious = true;
     }
 }
@@ -0,0 +1,102 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Class provides the time of the timing logic of the detection and the rendering.
+ *
+ * The time is monotonic and in nanoseconds. Unlike the wall clock it does not jump with
+ * adjustments of the system time, so the waiting times of the beats and the colors stay correct.
+ * Only differences of two times are meaningful. Tests and offline replays inject a {@link Manual}
+ * clock, which makes the timing deterministic.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public abstract class Clock {
+
+    /**
+     * Monotonic clock of the system.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Getter method.
+     * @return current time in nanoseconds
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Getter method.
+     * @return current time in milliseconds
+     */
+    public long millis() {
+        return nanoTime() / 1000000;
+    }
+
+    /**
+     * Wait until the time of the clock moved forward.
+     * @param nanos time in nanoseconds, nothing is waited if not positive
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void sleep(long nanos) throws InterruptedException {
+        if (nanos > 0)
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+    }
+
+    /**
+     * Clock which only moves when it is set, e.g. to the time of the replayed frames.
+     *
+     * @author Daniel Steidinger
+     * @version 1.0
+     */
+    public static class Manual extends Clock {
+
+        /**
+         * Current time in nanoseconds.
+         */
+        private volatile long time;
+
+        /**
+         * Default constructor.
+         * @param time start time in nanoseconds
+         */
+        public Manual(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public long nanoTime() {
+            return time;
+        }
+
+        /**
+         * Setter method.
+         * @param time sets the current time in nanoseconds
+         */
+        public void setTime(long time) {
+            this.time = time;
+        }
+
+        /**
+         * Move the clock forward.
+         * @param nanos time in nanoseconds
+         */
+        public void advance(long nanos) {
+            time += nanos;
+        }
+
+        /**
+         * Move the clock forward instead of waiting.
+         * @param nanos time in nanoseconds
+         */
+        @Override
+        public void sleep(long nanos) {
+            if (nanos > 0)
+                advance(nanos);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Class holds the parameters of the beat detection which can be changed while the detection runs.
+ *
+ * The class is immutable: a change creates a new instance, which is published through a single
+ * volatile reference. The {@link BeatDetector} reads the reference once at the start of each frame,
+ * so a frame never sees half of a change and the UI thread never has to lock the analysis.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public final class DetectorParameters {
+
+    /**
+     * Parameters of a new detector.
+     */
+    public static final DetectorParameters DEFAULT = new DetectorParameters(1.35F, -1, -1);
+
+    /**
+     * Weight of the average energy a sub band has to exceed.
+     */
+    private final float sensitivity;
+
+    /**
+     * Manual range of sub bands, -1 if not set.
+     */
+    private final int manualLow, manualHigh;
+
+    /**
+     * Default constructor.
+     * @param sensitivity weight of the average energy a sub band has to exceed
+     * @param manualLow lowest sub band of the manual range, -1 if not set
+     * @param manualHigh highest sub band of the manual range, -1 if not set
+     */
+    private DetectorParameters(float sensitivity, int manualLow, int manualHigh) {
+        this.sensitivity = sensitivity;
+        this.manualLow = manualLow;
+        this.manualHigh = manualHigh;
+    }
+
+    /**
+     * Getter method.
+     * @return weight of the average energy a sub band has to exceed
+     */
+    public float getSensitivity() {
+        return sensitivity;
+    }
+
+    /**
+     * Getter method.
+     * @return lowest sub band of the manual range, -1 if not set
+     */
+    public int getManualLow() {
+        return manualLow;
+    }
+
+    /**
+     * Getter method.
+     * @return highest sub band of the manual range, -1 if not set
+     */
+    public int getManualHigh() {
+        return manualHigh;
+    }
+
+    /**
+     * Getter method.
+     * @return true if a manual range is set
+     */
+    public boolean hasManualRange() {
+        return manualLow >= 0 && manualHigh >= 0;
+    }
+
+    /**
+     * Copy with another sensitivity.
+     * @param sensitivity weight of the average energy a sub band has to exceed
+     * @return the changed parameters
+     */
+    public DetectorParameters withSensitivity(float sensitivity) {
+        if (sensitivity < 0)
+            throw new RuntimeException("Sensitivity is negative.");
+        return new DetectorParameters(sensitivity, manualLow, manualHigh);
+    }
+
+    /**
+     * Copy with another sensitivity.
+     * @param percentage of the sensitivity from 0 to 100
+     * @return the changed parameters
+     */
+    public DetectorParameters withSensitivityPercent(int percentage) {
+        if (percentage < 0)
+            throw new RuntimeException("Sensitivity is negative.");
+
+        float sensitivity = (100F - percentage) / 100F;
+        float maxWeight = 2.0F;
+        float minWeight = 1.0F;
+        float range = maxWeight - minWeight;
+        return withSensitivity(minWeight + range * sensitivity);
+    }
+
+    /**
+     * Copy with another manual range.
+     * @param low lowest sub band, -1 to clear the range
+     * @param high highest sub band, -1 to clear the range
+     * @return the changed parameters
+     */
+    public DetectorParameters withManualRange(int low, int high) {
+        return new DetectorParameters(sensitivity, low, high);
+    }
+}
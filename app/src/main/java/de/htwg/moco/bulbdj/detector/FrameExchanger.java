@@ -0,0 +1,132 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Class hands the newest fft frame from the recording thread to the analysis thread.
+ *
+ * Three buffers are swapped instead of queueing every frame: the recording thread
+ * fills the back buffer, the newest complete frame waits in the pending buffer and
+ * the analysis thread reads the front buffer. If the analysis falls behind, a
+ * waiting frame is replaced by the newer one and counted as dropped, so the
+ * latency stays bounded to one frame.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+class FrameExchanger {
+
+    /**
+     * Buffer filled by the recording thread.
+     */
+    private double[] back;
+
+    /**
+     * Newest complete frame.
+     */
+    private double[] pending;
+
+    /**
+     * Buffer read by the analysis thread.
+     */
+    private double[] front;
+
+    /**
+     * Capture times of the back, pending and front buffer in nanoseconds.
+     */
+    private long backTime, pendingTime, frontTime = 0;
+
+    /**
+     * Is a frame waiting to be taken.
+     */
+    private boolean hasPending = false;
+
+    /**
+     * Count of published frames.
+     */
+    private int frameCount = 0;
+
+    /**
+     * Count of frames replaced before they were taken.
+     */
+    private int droppedFrames = 0;
+
+    /**
+     * Default constructor.
+     * @param blockSize the size of each frame
+     */
+    FrameExchanger(int blockSize) {
+        back = new double[blockSize];
+        pending = new double[blockSize];
+        front = new double[blockSize];
+    }
+
+    /**
+     * Getter method. Only the recording thread may write into this buffer.
+     * @return the buffer for the next frame
+     */
+    double[] getBackBuffer() {
+        return back;
+    }
+
+    /**
+     * Publish the back buffer as newest frame.
+     * @param time capture time of the frame in nanoseconds
+     * @return true if no frame was waiting, so the analysis thread has to be notified
+     */
+    synchronized boolean publish(long time) {
+        double[] swap = pending;
+        pending = back;
+        back = swap;
+        backTime = pendingTime;
+        pendingTime = time;
+
+        frameCount++;
+        if (hasPending) {
+            droppedFrames++;
+            return false;
+        }
+        hasPending = true;
+        return true;
+    }
+
+    /**
+     * Take the newest frame. The frame stays valid until the next call.
+     * @return the newest frame or null if no new frame was published
+     */
+    synchronized double[] take() {
+        if (!hasPending)
+            return null;
+
+        double[] swap = front;
+        front = pending;
+        pending = swap;
+        long swapTime = frontTime;
+        frontTime = pendingTime;
+        pendingTime = swapTime;
+        hasPending = false;
+        return front;
+    }
+
+    /**
+     * Getter method.
+     * @return capture time of the frame returned by the last {@link #take()} in nanoseconds
+     */
+    synchronized long getFrameTime() {
+        return frontTime;
+    }
+
+    /**
+     * Getter method.
+     * @return count of published frames
+     */
+    synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Getter method.
+     * @return count of dropped frames
+     */
+    synchronized int getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,163 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Class normalizes the level of the recorded fft frames, so the detection and the frequency
+ * rendering see about the same level in a quiet lobby and in a loud club.
+ * <p>
+ * The level of a frame is measured from its spectrum in dB relative to a full scale sine.
+ * It is followed by an exponential estimator in dB, which rises within {@link #ATTACK} and falls
+ * within {@link #RELEASE}, so single beats do not pump the gain. The gain brings the followed level
+ * to {@link #TARGET_LEVEL}, limited to {@link #MIN_GAIN} and {@link #MAX_GAIN}, which covers inputs
+ * over a range of 60 dB. Frames below {@link #SILENCE} do not change the gain, so silence is not amplified.
+ * <p>
+ * Scaling the spectrum is the same as scaling the samples, because the fft is linear.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class GainControl {
+
+    /**
+     * Level of the normalized frames in dB.
+     */
+    public static final float TARGET_LEVEL = -20F;
+
+    /**
+     * Minimum and maximum gain in dB.
+     */
+    public static final float MIN_GAIN = -20F, MAX_GAIN = 40F;
+
+    /**
+     * Level of frames which are treated as silence, in dB.
+     */
+    public static final float SILENCE = -80F;
+
+    /**
+     * Time constants of a rising and a falling level in nanoseconds.
+     */
+    public static final long ATTACK = 300000000L, RELEASE = 3000000000L;
+
+    /**
+     * Is the gain control on.
+     */
+    private volatile boolean enabled = true;
+
+    /**
+     * Followed level in dB, and whether a level was followed since the reset.
+     */
+    private float level;
+    private boolean started = false;
+
+    /**
+     * Time of the last followed frame in nanoseconds.
+     */
+    private long lastTime;
+
+    /**
+     * Current gain as factor.
+     */
+    private volatile float gain = 1;
+
+    /**
+     * Setter method.
+     * @param enabled sets the gain control on or off, off the frames are not changed
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Is the gain control on.
+     * @return true if the gain control is on
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Getter method.
+     * @return current gain as factor, 1 if the gain control is off
+     */
+    public float getGain() {
+        return enabled ? gain : 1;
+    }
+
+    /**
+     * Getter method.
+     * @return current gain in dB
+     */
+    public float getGainDb() {
+        return (float) (20 * Math.log10(getGain()));
+    }
+
+    /**
+     * Forget the followed level, e.g. before a new recording.
+     */
+    public synchronized void reset() {
+        started = false;
+        gain = 1;
+    }
+
+    /**
+     * Follow the level of a frame and scale the frame with the new gain.
+     * @param frame the fft frame, changed in place
+     * @param time capture time of the frame in nanoseconds
+     * @return the applied gain as factor
+     */
+    public float process(double[] frame, long time) {
+        update(level(frame), time);
+        return apply(frame);
+    }
+
+    /**
+     * Scale a frame with the current gain, without following its level.
+     * @param frame the fft frame, changed in place
+     * @return the applied gain as factor
+     */
+    public float apply(double[] frame) {
+        float gain = getGain();
+        if (gain != 1) {
+            for (int i = 0; i < frame.length; i++)
+                frame[i] *= gain;
+        }
+        return gain;
+    }
+
+    /**
+     * Follow a level and calculate the gain.
+     * @param frameLevel level of the frame in dB, e.g. from {@link #level(double[])}
+     * @param time capture time of the frame in nanoseconds
+     * @return the new gain as factor
+     */
+    public synchronized float update(float frameLevel, long time) {
+        if (frameLevel < SILENCE)
+            return gain;
+
+        if (!started) {
+            started = true;
+            level = frameLevel;
+        } else if (time > lastTime) {
+            long constant = frameLevel > level ? ATTACK : RELEASE;
+            float alpha = Math.min(1, (float) (time - lastTime) / constant);
+            level += alpha * (frameLevel - level);
+        }
+        lastTime = time;
+
+        float gainDb = Math.max(MIN_GAIN, Math.min(MAX_GAIN, TARGET_LEVEL - level));
+        gain = (float) Math.pow(10, gainDb / 20);
+        return gain;
+    }
+
+    /**
+     * Level of a frame of a real forward fft in dB, 0 for a full scale sine.
+     * @param frame the fft frame
+     * @return level of the frame in dB
+     */
+    public static float level(double[] frame) {
+        double energy = 0;
+        for (double value : frame)
+            energy += value * value;
+        double fullScale = (double) frame.length * frame.length / 4;
+        return (float) (10 * Math.log10(energy / fullScale + 1e-20));
+    }
+}
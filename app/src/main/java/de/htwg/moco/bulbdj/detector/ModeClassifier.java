@@ -0,0 +1,361 @@
+package de.htwg.moco.bulbdj.detector;
+
+/**
+ * Class classifies the music into a {@link Modes mode} for the automatic mode.
+ * <p>
+ * The features are updated incrementally with every frame of the {@link BeatDetector}, as moving
+ * averages over about {@link #TIME_CONSTANT} nanoseconds:
+ * <br>Rates of the kick, snare and hat onsets per second
+ * <br>Tempo of the kicks in beats per second, from the intervals between the kick onsets
+ * <br>Shares of the low and the high range in the energy of the frame
+ * <br>Change of the energy from frame to frame, as difference of the logarithms
+ * <p>
+ * Once per {@link #EVALUATION_PERIOD} a linear model with fixed point weights scores each mode.
+ * The classified mode changes only after another mode has won {@link #HOLD} evaluations in a row,
+ * each by at least {@link #MARGIN}, so it does not flicker between similar modes.
+ * A frame costs a few multiplications and does not allocate.
+ * <p>
+ * The default model is a nearest centroid model over the kick onset rate. The centroids are estimated
+ * from typical tempos of the modes with about one kick onset per beat, e.g. 2.1 per second for dance
+ * music at 126 bpm, and more onsets for the double kicks of rock and the syncopated kicks of electro.
+ * Better weights are trained on labeled wav files with the ModeClassifierTool of the unit tests and
+ * passed to {@link #ModeClassifier(int[][], int[])}.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class ModeClassifier {
+
+    /**
+     * Indices of the features.
+     */
+    public static final int KICK_RATE = 0, SNARE_RATE = 1, HAT_RATE = 2, TEMPO = 3, LOW_SHARE = 4, HIGH_SHARE = 5, FLUX = 6;
+
+    /**
+     * Number of features.
+     */
+    public static final int FEATURE_COUNT = 7;
+
+    /**
+     * Modes the model decides between, in the order of the rows of the weights.
+     */
+    public static final Modes[] CLASSES = {Modes.POP, Modes.RAP, Modes.ROCK, Modes.DANCE, Modes.ELECTRO, Modes.ROMANTIC};
+
+    /**
+     * Number of fraction bits of the features and the weights. Scores and biases have twice as many.
+     */
+    public static final int FRACTION_BITS = 8;
+
+    /**
+     * Time constant of the moving averages in nanoseconds.
+     */
+    public static final long TIME_CONSTANT = 4000000000L;
+
+    /**
+     * Time between two evaluations of the model in nanoseconds.
+     */
+    public static final long EVALUATION_PERIOD = 1000000000L;
+
+    /**
+     * Time after the reset until the first evaluation in nanoseconds.
+     */
+    public static final long WARM_UP = 8000000000L;
+
+    /**
+     * Number of evaluations in a row a new mode has to win.
+     */
+    public static final int HOLD = 3;
+
+    /**
+     * Minimum lead of a new mode over the current mode, in units of the scores.
+     * For the default model a sixteenth of a squared onset per second.
+     */
+    public static final int MARGIN = 1 << (2 * FRACTION_BITS - 4);
+
+    /**
+     * Maximum interval between two kicks counted for the tempo, and the minimum, in nanoseconds.
+     */
+    private static final long MAX_INTERVAL = 2000000000L, MIN_INTERVAL = 250000000L;
+
+    /**
+     * Weight of a new interval in the average of the tempo.
+     */
+    private static final float TEMPO_WEIGHT = 0.2F;
+
+    /**
+     * Kick rates of the modes in onsets per second, the centroids of the default model:
+     * pop 105 bpm, rap 87 bpm, rock with double kicks, dance 126 bpm, electro with syncopated kicks, romantic 66 bpm.
+     */
+    private static final float[] DEFAULT_CENTROIDS = {1.75F, 1.45F, 2.5F, 2.1F, 3.2F, 1.1F};
+
+    /**
+     * Weights of the model, one row per class, in fixed point.
+     */
+    private final int[][] weights;
+
+    /**
+     * Biases of the model, one per class, in fixed point with twice the fraction bits.
+     */
+    private final int[] biases;
+
+    /**
+     * Current features.
+     */
+    private final float[] features = new float[FEATURE_COUNT];
+
+    /**
+     * Current features in fixed point and the scores of the last evaluation.
+     */
+    private final int[] fixedFeatures = new int[FEATURE_COUNT];
+    private final long[] scores = new long[CLASSES.length];
+
+    /**
+     * Times of the first frame since the reset, of the last frame, of the last kick and of the next evaluation.
+     */
+    private long startTime, lastTime, lastKick, nextEvaluation;
+
+    /**
+     * Logarithm of the energy of the last frame.
+     */
+    private float lastLogEnergy;
+
+    /**
+     * Was a frame seen since the reset, and was a kick.
+     */
+    private boolean started, kicked;
+
+    /**
+     * Index of the winner of the last evaluations and number of evaluations in a row it has won.
+     */
+    private int candidate = -1, wins = 0;
+
+    /**
+     * Classified mode, {@link Modes#AUTOMATIC} until the model has decided.
+     */
+    private volatile Modes mode = Modes.AUTOMATIC;
+
+    /**
+     * Default constructor, with the default model.
+     */
+    public ModeClassifier() {
+        this(defaultWeights(), defaultBiases());
+    }
+
+    /**
+     * Constructor with a trained model.
+     * @param weights one row of {@link #FEATURE_COUNT} weights per class of {@link #CLASSES}, in fixed point
+     * @param biases one bias per class, in fixed point with twice the fraction bits
+     */
+    public ModeClassifier(int[][] weights, int[] biases) {
+        if (weights.length != CLASSES.length || biases.length != CLASSES.length)
+            throw new RuntimeException("Model must have one row per class.");
+        this.weights = new int[CLASSES.length][];
+        for (int c = 0; c < CLASSES.length; c++) {
+            if (weights[c].length != FEATURE_COUNT)
+                throw new RuntimeException("Model must have one weight per feature.");
+            this.weights[c] = weights[c].clone();
+        }
+        this.biases = biases.clone();
+    }
+
+    /**
+     * Weights of the default model: twice the centroid for the kick rate.
+     * @return weights of the default model
+     */
+    private static int[][] defaultWeights() {
+        int[][] weights = new int[CLASSES.length][FEATURE_COUNT];
+        for (int c = 0; c < CLASSES.length; c++) {
+            weights[c][KICK_RATE] = Math.round(2 * DEFAULT_CENTROIDS[c] * (1 << FRACTION_BITS));
+        }
+        return weights;
+    }
+
+    /**
+     * Biases of the default model: the negative square of the centroid,
+     * so the highest score belongs to the nearest centroid.
+     * @return biases of the default model
+     */
+    private static int[] defaultBiases() {
+        int[] biases = new int[CLASSES.length];
+        for (int c = 0; c < CLASSES.length; c++) {
+            biases[c] = -Math.round(DEFAULT_CENTROIDS[c] * DEFAULT_CENTROIDS[c] * (1 << (2 * FRACTION_BITS)));
+        }
+        return biases;
+    }
+
+    /**
+     * Forget the features and the classified mode, e.g. when the automatic mode is selected again.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            features[i] = 0;
+        }
+        started = false;
+        kicked = false;
+        candidate = -1;
+        wins = 0;
+        mode = Modes.AUTOMATIC;
+    }
+
+    /**
+     * Getter method.
+     * @return the classified mode, {@link Modes#AUTOMATIC} until the model has decided
+     */
+    public Modes getMode() {
+        return mode;
+    }
+
+    /**
+     * Getter method.
+     * @param time time of the current frame in nanoseconds
+     * @return true if the features are averaged over enough frames for an evaluation
+     */
+    public synchronized boolean isWarm(long time) {
+        return started && time - startTime >= WARM_UP;
+    }
+
+    /**
+     * Copy the current features.
+     * @param features target of the features, with at least {@link #FEATURE_COUNT} elements
+     */
+    public synchronized void getFeatures(float[] features) {
+        System.arraycopy(this.features, 0, features, 0, FEATURE_COUNT);
+    }
+
+    /**
+     * Update the features with the current frame of a detector.
+     * @param detector the detector after its update
+     */
+    public void update(BeatDetector detector) {
+        update(detector.getFrameTime(),
+                detector.isBeat(BeatDetector.BEAT_TYPE.KICK),
+                detector.isBeat(BeatDetector.BEAT_TYPE.SNARE),
+                detector.isBeat(BeatDetector.BEAT_TYPE.HAT),
+                detector.getBandEnergy(BeatDetector.BEAT_TYPE.KICK),
+                detector.getBandEnergy(BeatDetector.BEAT_TYPE.SNARE),
+                detector.getBandEnergy(BeatDetector.BEAT_TYPE.HAT));
+    }
+
+    /**
+     * Update the features with a frame and evaluate the model when the period is over.
+     *
+     * @param time time of the frame in nanoseconds
+     * @param kick is a kick onset in the frame
+     * @param snare is a snare onset in the frame
+     * @param hat is a hat onset in the frame
+     * @param low energy of the low range
+     * @param mid energy of the middle range
+     * @param high energy of the high range
+     */
+    public synchronized void update(long time, boolean kick, boolean snare, boolean hat, float low, float mid, float high) {
+        float energy = low + mid + high;
+        float logEnergy = (float) Math.log(energy + 1e-6F);
+        if (!started) {
+            started = true;
+            startTime = time;
+            lastTime = time;
+            lastLogEnergy = logEnergy;
+            nextEvaluation = time + WARM_UP;
+            return;
+        }
+
+        long elapsed = time - lastTime;
+        if (elapsed <= 0)
+            return;
+        lastTime = time;
+
+        float seconds = elapsed / 1e9F;
+        float alpha = Math.min(1, (float) elapsed / TIME_CONSTANT);
+        average(KICK_RATE, kick ? 1 / seconds : 0, alpha);
+        average(SNARE_RATE, snare ? 1 / seconds : 0, alpha);
+        average(HAT_RATE, hat ? 1 / seconds : 0, alpha);
+        if (energy > 0) {
+            average(LOW_SHARE, low / energy, alpha);
+            average(HIGH_SHARE, high / energy, alpha);
+        }
+        average(FLUX, Math.abs(logEnergy - lastLogEnergy), alpha);
+        lastLogEnergy = logEnergy;
+
+        if (kick) {
+            long interval = time - lastKick;
+            if (kicked && interval >= MIN_INTERVAL && interval <= MAX_INTERVAL)
+                average(TEMPO, 1e9F / interval, TEMPO_WEIGHT);
+            lastKick = time;
+            kicked = true;
+        }
+
+        if (time >= nextEvaluation) {
+            nextEvaluation = time + EVALUATION_PERIOD;
+            evaluate();
+        }
+    }
+
+    /**
+     * Move a feature towards a value.
+     * @param feature index of the feature
+     * @param value the value
+     * @param alpha weight of the value
+     */
+    private void average(int feature, float value, float alpha) {
+        features[feature] += alpha * (value - features[feature]);
+    }
+
+    /**
+     * Score the current features and change the mode if a new winner has held its lead.
+     */
+    private void evaluate() {
+        int winner = score(features);
+
+        int current = -1;
+        for (int c = 0; c < CLASSES.length; c++) {
+            if (CLASSES[c] == mode)
+                current = c;
+        }
+
+        if (winner == current || (current >= 0 && scores[winner] - scores[current] < MARGIN)) {
+            candidate = -1;
+            wins = 0;
+            return;
+        }
+
+        wins = winner == candidate ? wins + 1 : 1;
+        candidate = winner;
+        if (wins >= HOLD) {
+            mode = CLASSES[winner];
+            candidate = -1;
+            wins = 0;
+        }
+    }
+
+    /**
+     * Classify features with the model, without hysteresis.
+     * @param features the features, e.g. from {@link #getFeatures(float[])}
+     * @return index of the class with the highest score in {@link #CLASSES}
+     */
+    public synchronized int classify(float[] features) {
+        return score(features);
+    }
+
+    /**
+     * Score features in fixed point.
+     * @param features the features
+     * @return index of the class with the highest score
+     */
+    private int score(float[] features) {
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            fixedFeatures[i] = Math.round(features[i] * (1 << FRACTION_BITS));
+        }
+
+        int winner = 0;
+        for (int c = 0; c < CLASSES.length; c++) {
+            long score = biases[c];
+            for (int i = 0; i < FEATURE_COUNT; i++) {
+                score += (long) weights[c][i] * fixedFeatures[i];
+            }
+            scores[c] = score;
+            if (score > scores[winner])
+                winner = c;
+        }
+        return winner;
+    }
+}
@@ -0,0 +1,304 @@
+package de.htwg.moco.bulbdj.detector;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Log;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Class records from microphone in real time with low latency.
+ * Drop-in alternative to {@link AudioRecorder}.
+ *
+ * The recording runs at the native sample rate of the device, so the platform
+ * does not need to resample, and the data is read in chunks of the native burst
+ * size (frames per buffer). The bursts are collected until one block is full,
+ * then the block is transformed and published like in {@link AudioRecorder}.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class NativeAudioRecorder extends AsyncTask<Void, double[], Void> implements AudioSource {
+
+    /**
+     * Sample rate if the device does not report a native one.
+     */
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    /**
+     * Frames per burst if the device does not report a native value.
+     */
+    private static final int DEFAULT_FRAMES_PER_BURST = 256;
+
+    /**
+     * Number of published blocks per second the {@link BeatDetector} is tuned for (22050 / 512).
+     */
+    private static final int BLOCKS_PER_SECOND = 43;
+
+    /**
+     * Instance of {@link AudioSourceListener} class.
+     */
+    private AudioSourceListener listener;
+
+    /**
+     * The native sampling rate.
+     */
+    private int sampleRate;
+
+    /**
+     * The native number of frames per burst.
+     */
+    private int framesPerBurst;
+
+    /**
+     * The block size of the published fft.
+     */
+    private int blockSize;
+
+    /**
+     * The channel configuration of the recording.
+     */
+    private int channelConfig = AudioFormat.CHANNEL_IN_MONO;
+
+    /**
+     * The encoding of the recording.
+     */
+    private int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
+
+    /**
+     * The audio source of the recording.
+     */
+    private int recordSource = MediaRecorder.AudioSource.VOICE_RECOGNITION;
+
+    /**
+     * Exchange of the fft frames with the ui thread.
+     */
+    private FrameExchanger frames;
+
+    /**
+     * Was the recoding started.
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Default constructor. Queries the native sample rate and frames per burst of the device.
+     * @param context to access the system audio service
+     */
+    public NativeAudioRecorder(Context context) {
+        this.listener = null;
+        this.sampleRate = DEFAULT_SAMPLE_RATE;
+        this.framesPerBurst = DEFAULT_FRAMES_PER_BURST;
+
+        android.media.AudioManager systemAudio =
+                (android.media.AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        if (systemAudio != null) {
+            sampleRate = parseProperty(systemAudio.getProperty(
+                    android.media.AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE), DEFAULT_SAMPLE_RATE);
+            framesPerBurst = parseProperty(systemAudio.getProperty(
+                    android.media.AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER), DEFAULT_FRAMES_PER_BURST);
+
+            recordSource = recordSourceFor(Build.VERSION.SDK_INT, systemAudio.getProperty(
+                    android.media.AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED));
+        }
+
+        this.blockSize = blockSizeFor(sampleRate);
+        this.frames = new FrameExchanger(blockSize);
+    }
+
+    /**
+     * Parse an integer audio property.
+     * @param value of the property, may be null
+     * @param defaultValue if the value is missing or invalid
+     * @return the parsed value
+     */
+    static int parseProperty(String value, int defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get the power of two block size for a sample rate, which keeps
+     * the detector at about the same number of blocks per second.
+     * @param sampleRate of the recording
+     * @return the block size
+     */
+    static int blockSizeFor(int sampleRate) {
+        int blockSize = 256;
+        while (blockSize * 2 <= sampleRate / BLOCKS_PER_SECOND + blockSize / 2)
+            blockSize *= 2;
+        return blockSize;
+    }
+
+    /**
+     * Get the audio source of the low latency recording. The unprocessed source
+     * skips noise suppression and AGC of the platform, if the device supports it.
+     * @param sdkVersion of the device
+     * @param unprocessedSupport property of the device, may be null
+     * @return the audio source
+     */
+    static int recordSourceFor(int sdkVersion, String unprocessedSupport) {
+        if (sdkVersion >= Build.VERSION_CODES.N && "true".equals(unprocessedSupport))
+            return MediaRecorder.AudioSource.UNPROCESSED;
+        return MediaRecorder.AudioSource.VOICE_RECOGNITION;
+    }
+
+    /**
+     * Choose the audio source and buffer size of the recording. The low latency recording
+     * uses two bursts of 16 bit samples, but never less than the platform minimum. The fallback
+     * uses the microphone with the platform minimum buffer, like {@link AudioRecorder}.
+     * @param recordSource of the low latency recording
+     * @param minBufferSize of the platform in bytes
+     * @param framesPerBurst the native number of frames per burst
+     * @param fallback true if the low latency recording was rejected
+     * @return the audio source and the buffer size in bytes
+     */
+    static int[] chooseRecording(int recordSource, int minBufferSize, int framesPerBurst, boolean fallback) {
+        if (minBufferSize <= 0)
+            throw new IllegalStateException("Recording is not supported");
+        if (fallback)
+            return new int[]{MediaRecorder.AudioSource.MIC, minBufferSize};
+        return new int[]{recordSource, Math.max(minBufferSize, framesPerBurst * 2 * 2)};
+    }
+
+    @Override
+    public void setAudioSourceListener(AudioSourceListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Getter method.
+     * @return the native number of frames per burst
+     */
+    public int getFramesPerBurst() {
+        return framesPerBurst;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frames.getFrameCount();
+    }
+
+    @Override
+    public int getDroppedFrames() {
+        return frames.getDroppedFrames();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started;
+    }
+
+    /**
+     * Start the recording.
+     *
+     * Runs on the thread pool executor, so the recording is not queued
+     * behind other tasks of the serial executor.
+     */
+    @Override
+    public void start() {
+        started = true;
+        this.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        this.cancel(true);
+    }
+
+    @Override
+    protected Void doInBackground(Void... arg0) {
+
+        try {
+            AudioRecord audioRecord = createAudioRecord();
+
+            short[] burst = new short[framesPerBurst];
+            double[] result = frames.getBackBuffer();
+            DoubleFFT_1D doubleFFT = new DoubleFFT_1D(blockSize);
+            int filled = 0;
+
+            audioRecord.startRecording();
+
+            while (started) {
+                int bufferReadResult = audioRecord.read(burst, 0, framesPerBurst);
+
+                for (int i = 0; i < bufferReadResult; i++) {
+                    result[filled++] = (double) burst[i] / 32768.0;
+
+                    if (filled == blockSize) {
+                        doubleFFT.realForward(result);
+                        if (frames.publish(Clock.SYSTEM.nanoTime()))
+                            publishProgress();
+                        result = frames.getBackBuffer();
+                        filled = 0;
+                    }
+                }
+            }
+
+            audioRecord.stop();
+            audioRecord.release();
+
+        } catch (Throwable t) {
+            t.printStackTrace();
+            Log.e("NativeAudioRecorder", "Record Failed");
+        }
+
+        return null;
+    }
+
+    /**
+     * Create the recording with two bursts of buffer. If the device rejects the source or the
+     * buffer size, the microphone with the platform minimum buffer is used, like {@link AudioRecorder}.
+     * @return the initialized recording
+     */
+    private AudioRecord createAudioRecord() {
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioEncoding);
+        if (minBufferSize <= 0)
+            throw new IllegalStateException("Sample rate " + sampleRate + " is not supported");
+
+        int[] recording = chooseRecording(recordSource, minBufferSize, framesPerBurst, false);
+        AudioRecord audioRecord =
+                new AudioRecord(recording[0], sampleRate, channelConfig, audioEncoding, recording[1]);
+        if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED)
+            return audioRecord;
+
+        audioRecord.release();
+        Log.w("NativeAudioRecorder", "Low latency recording rejected, using the default recording");
+        recording = chooseRecording(recordSource, minBufferSize, framesPerBurst, true);
+        audioRecord = new AudioRecord(recording[0], sampleRate, channelConfig, audioEncoding, recording[1]);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            throw new IllegalStateException("Recording could not be initialized");
+        }
+        return audioRecord;
+    }
+
+    @Override
+    protected void onProgressUpdate(double[]... result) {
+        // Always the newest frame, older frames were dropped
+        double[] frame = frames.take();
+        if (listener != null && frame != null) {
+            listener.onUpdate(frame, frames.getFrameTime());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package de.htwg.moco.bulbdj.detector;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Class records a stereo input (e.g. line in) in real time.
+ * Result are FFT Data Arrays of the left channel, the right channel and their mix.
+ *
+ * The interleaved samples are transformed as one complex signal, with the left channel
+ * as real and the right channel as imaginary part, and the spectra of both channels are
+ * separated by the symmetry of real signals. The spectrum of the mix is the average of
+ * the channel spectra (the FFT is linear), so three spectra cost one complex transform.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class StereoAudioRecorder extends AsyncTask<Void, double[], Void> implements AudioSource {
+
+    /**
+     * Index of the left channel.
+     */
+    public static final int LEFT = 0;
+
+    /**
+     * Index of the right channel.
+     */
+    public static final int RIGHT = 1;
+
+    /**
+     * Interface of {@link StereoAudioRecorder} class.
+     *
+     * @author Daniel Steidinger
+     * @version 1.0
+     */
+    public interface StereoListener {
+
+        /**
+         * FFT update of both channels.
+         * @param left the raw fft data of the left channel.
+         * @param right the raw fft data of the right channel.
+         * @param time capture time of the block in nanoseconds, like {@link Clock#nanoTime()}
+         */
+        void onStereoUpdate(double[] left, double[] right, long time);
+    }
+
+    /**
+     * Instance of {@link AudioSourceListener} class.
+     */
+    private AudioSourceListener listener;
+
+    /**
+     * Instance of {@link StereoListener} class.
+     */
+    private StereoListener stereoListener;
+
+    /**
+     * The sampling rate.
+     */
+    private int sampleRate;
+
+    /**
+     * The block size of the buffer.
+     */
+    private int blockSize;
+
+    /**
+     * The channel configuration of the recording.
+     */
+    private int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
+
+    /**
+     * The encoding of the recording.
+     */
+    private int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
+
+    /**
+     * Exchange of the fft frames with the ui thread.
+     * One frame holds the mix, the left and the right spectrum one after another.
+     */
+    private FrameExchanger frames;
+
+    /**
+     * Spectra handed to the listeners.
+     */
+    private double[] mix, left, right;
+
+    /**
+     * Was the recoding started.
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Default constructor.
+     * @param sampleRate of the recording
+     * @param blockSize of the buffer
+     */
+    public StereoAudioRecorder(int sampleRate, int blockSize) {
+        this.listener = null;
+        this.stereoListener = null;
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        this.frames = new FrameExchanger(blockSize * 3);
+        this.mix = new double[blockSize];
+        this.left = new double[blockSize];
+        this.right = new double[blockSize];
+    }
+
+    @Override
+    public void setAudioSourceListener(AudioSourceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Setter method.
+     * @param stereoListener sets the listener of {@link StereoListener} class.
+     */
+    public void setStereoListener(StereoListener stereoListener) {
+        this.stereoListener = stereoListener;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frames.getFrameCount();
+    }
+
+    @Override
+    public int getDroppedFrames() {
+        return frames.getDroppedFrames();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started;
+    }
+
+    @Override
+    public void start() {
+        started = true;
+        this.execute();
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        this.cancel(true);
+    }
+
+    @Override
+    protected Void doInBackground(Void... arg0) {
+
+        try {
+            int bufferSize =
+                    AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioEncoding);
+
+            AudioRecord audioRecord =
+                    new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                            channelConfig, audioEncoding, Math.max(bufferSize, blockSize * 2 * 2));
+
+            short[] buffer = new short[blockSize * 2];
+            double[] work = new double[blockSize * 2];
+            DoubleFFT_1D doubleFFT = new DoubleFFT_1D(blockSize);
+
+            audioRecord.startRecording();
+
+            while (started) {
+                int bufferReadResult = audioRecord.read(buffer, 0, blockSize * 2);
+
+                transform(buffer, bufferReadResult, doubleFFT, work, frames.getBackBuffer());
+
+                if (frames.publish(Clock.SYSTEM.nanoTime()))
+                    publishProgress();
+            }
+
+            audioRecord.stop();
+            audioRecord.release();
+
+        } catch (Throwable t) {
+            t.printStackTrace();
+            Log.e("StereoAudioRecorder", "Record Failed");
+        }
+
+        return null;
+    }
+
+    /**
+     * Transform one block of interleaved stereo samples into the spectra of the mix,
+     * the left and the right channel, in the format of {@link DoubleFFT_1D#realForward(double[])}.
+     *
+     * The spectra X of the left and Y of the right channel are separated from the
+     * spectrum Z of the complex signal by X[k] = (Z[k] + conj(Z[n-k])) / 2
+     * and Y[k] = (Z[k] - conj(Z[n-k])) / 2i.
+     * @param samples interleaved 16 bit samples, left channel first
+     * @param length number of read samples, missing samples are silent
+     * @param fft plan of the block size
+     * @param work buffer of twice the block size for the complex signal
+     * @param result mix, left and right spectrum one after another, three times the block size
+     */
+    public static void transform(short[] samples, int length, DoubleFFT_1D fft, double[] work, double[] result) {
+        int n = work.length / 2;
+        int offsetLeft = n;
+        int offsetRight = n * 2;
+
+        // Short to double, the interleaved samples already are a complex signal
+        int valid = Math.max(0, Math.min(length, n * 2)) & ~1;
+        for (int i = 0; i < valid; i++) {
+            work[i] = (double) samples[i] / 32768.0;
+        }
+        for (int i = valid; i < n * 2; i++) {
+            work[i] = 0;
+        }
+
+        fft.complexForward(work);
+
+        // Frequency 0 and n/2 are real in both channels
+        result[offsetLeft] = work[0];
+        result[offsetRight] = work[1];
+        result[offsetLeft + 1] = work[n];
+        result[offsetRight + 1] = work[n + 1];
+
+        for (int k = 1; k < n / 2; k++) {
+            double zr = work[2 * k], zi = work[2 * k + 1];
+            double wr = work[2 * (n - k)], wi = work[2 * (n - k) + 1];
+            result[offsetLeft + 2 * k] = (zr + wr) * 0.5;
+            result[offsetLeft + 2 * k + 1] = (zi - wi) * 0.5;
+            result[offsetRight + 2 * k] = (zi + wi) * 0.5;
+            result[offsetRight + 2 * k + 1] = (wr - zr) * 0.5;
+        }
+
+        for (int i = 0; i < n; i++) {
+            result[i] = (result[offsetLeft + i] + result[offsetRight + i]) * 0.5;
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(double[]... result) {
+        // Always the newest frame, older frames were dropped
+        double[] frame = frames.take();
+        if (frame == null)
+            return;
+
+        System.arraycopy(frame, 0, mix, 0, blockSize);
+        System.arraycopy(frame, blockSize, left, 0, blockSize);
+        System.arraycopy(frame, blockSize * 2, right, 0, blockSize);
+
+        long time = frames.getFrameTime();
+        if (stereoListener != null) {
+            stereoListener.onStereoUpdate(left, right, time);
+        }
+        if (listener != null) {
+            listener.onUpdate(mix, time);
+        }
+    }
+}
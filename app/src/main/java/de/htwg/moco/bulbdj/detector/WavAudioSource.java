@@ -0,0 +1,315 @@
+package de.htwg.moco.bulbdj.detector;
+
+import android.util.Log;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Class plays a 16 bit PCM WAV file as audio source.
+ * Result is an FFT Data Array, like in {@link AudioRecorder}.
+ *
+ * Used for loopback tests and offline replays. The file is read on its own thread,
+ * either paced in real time or as fast as possible. Multi channel files are mixed down to mono.
+ * The listener is called on the reading thread. In real time, blocks which are already
+ * more than one block late are skipped, so a slow listener always gets the newest block.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class WavAudioSource implements AudioSource {
+
+    /**
+     * Instance of {@link AudioSourceListener} class.
+     */
+    private AudioSourceListener listener;
+
+    /**
+     * The WAV file.
+     */
+    private File file;
+
+    /**
+     * The block size of the published fft.
+     */
+    private int blockSize;
+
+    /**
+     * Is the file played in real time.
+     */
+    private boolean realTime;
+
+    /**
+     * The sampling rate of the file.
+     */
+    private int sampleRate;
+
+    /**
+     * The number of channels of the file.
+     */
+    private int channels;
+
+    /**
+     * The number of bytes of sample data.
+     */
+    private int dataLength;
+
+    /**
+     * Count of produced frames.
+     */
+    private volatile int frameCount = 0;
+
+    /**
+     * Count of frames skipped because the listener fell behind the real time.
+     */
+    private volatile int droppedFrames = 0;
+
+    /**
+     * Clock of the pacing in real time.
+     */
+    private Clock clock = Clock.SYSTEM;
+
+    /**
+     * The reading thread.
+     */
+    private Thread thread;
+
+    /**
+     * Was the playback started.
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Default constructor. Reads the header of the file.
+     * @param file the 16 bit PCM WAV file
+     * @param blockSize of the published fft
+     * @param realTime true if the blocks are paced like a live recording
+     * @throws IOException if the file can not be read or is not a 16 bit PCM WAV file
+     */
+    public WavAudioSource(File file, int blockSize, boolean realTime) throws IOException {
+        this.listener = null;
+        this.file = file;
+        this.blockSize = blockSize;
+        this.realTime = realTime;
+
+        try (DataInputStream in = open()) {
+            readHeader(in);
+        }
+    }
+
+    @Override
+    public void setAudioSourceListener(AudioSourceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Setter method.
+     * @param clock sets the clock of the pacing in real time
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Getter method.
+     * @return number of samples per channel in the file
+     */
+    public int getSampleCount() {
+        return dataLength / (2 * channels);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started;
+    }
+
+    @Override
+    public void start() {
+        reset();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "WavAudioSource");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Wait until the whole file was played or the source was stopped.
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void join() throws InterruptedException {
+        if (thread != null)
+            thread.join();
+    }
+
+    /**
+     * Play the whole file on the calling thread instead of a thread of the source, e.g. in a pool of batch jobs.
+     * @throws IOException if the file can not be read
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the next block
+     */
+    public void playBlocking() throws IOException, InterruptedException {
+        reset();
+        try {
+            publishBlocks();
+        } finally {
+            started = false;
+        }
+    }
+
+    /**
+     * Reset the counts before the playback.
+     */
+    private void reset() {
+        started = true;
+        frameCount = 0;
+        droppedFrames = 0;
+    }
+
+    /**
+     * Read all blocks of the file and publish them, on the thread of the source.
+     */
+    private void play() {
+        try {
+            publishBlocks();
+        } catch (InterruptedException e) {
+            // Stopped while waiting for the next block
+        } catch (IOException e) {
+            Log.e("WavAudioSource", "Could not read " + file.getName());
+        }
+        started = false;
+    }
+
+    /**
+     * Read all blocks of the file and publish them.
+     * @throws IOException if the file can not be read
+     * @throws InterruptedException if the thread was interrupted while waiting for the next block
+     */
+    private void publishBlocks() throws IOException, InterruptedException {
+        try (DataInputStream in = open()) {
+            readHeader(in);
+
+            double[] result = new double[blockSize];
+            DoubleFFT_1D doubleFFT = new DoubleFFT_1D(blockSize);
+            double blockNanos = blockSize * 1e9 / sampleRate;
+            long startTime = clock.nanoTime();
+            int frames = getSampleCount();
+            int block = 0;
+
+            for (int frame = 0; started && frame + blockSize <= frames; frame += blockSize) {
+                for (int i = 0; i < blockSize; i++) {
+                    int sum = 0;
+                    for (int c = 0; c < channels; c++) {
+                        sum += Short.reverseBytes(in.readShort());
+                    }
+                    result[i] = (double) sum / channels / 32768.0;
+                }
+
+                // Media time of the end of the block, on the clock in real time
+                long time = (realTime ? startTime : 0) + (long) ((frame + blockSize) * 1e9 / sampleRate);
+
+                frameCount++;
+                if (realTime) {
+                    long due = startTime + (long) (++block * blockNanos);
+                    long wait = due - clock.nanoTime();
+                    if (wait > 0) {
+                        clock.sleep(wait);
+                    } else if (-wait > blockNanos) {
+                        droppedFrames++;
+                        continue;
+                    }
+                }
+
+                doubleFFT.realForward(result);
+                if (listener != null)
+                    listener.onUpdate(result, time);
+            }
+        }
+    }
+
+    /**
+     * Open the file for reading.
+     * @return stream of the file
+     * @throws IOException if the file can not be opened
+     */
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Read the RIFF header and position the stream at the start of the sample data.
+     * @param in stream of the file
+     * @throws IOException if the file is not a 16 bit PCM WAV file
+     */
+    private void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != 0x52494646)     // "RIFF"
+            throw new IOException("Not a RIFF file.");
+        in.readInt();
+        if (in.readInt() != 0x57415645)     // "WAVE"
+            throw new IOException("Not a WAVE file.");
+
+        boolean formatRead = false;
+        try {
+            while (true) {
+                int chunkId = in.readInt();
+                int chunkLength = Integer.reverseBytes(in.readInt());
+
+                if (chunkId == 0x666d7420) {    // "fmt "
+                    int format = Short.reverseBytes(in.readShort());
+                    channels = Short.reverseBytes(in.readShort());
+                    sampleRate = Integer.reverseBytes(in.readInt());
+                    in.skipBytes(6);
+                    int bitsPerSample = Short.reverseBytes(in.readShort());
+                    in.skipBytes(chunkLength - 16);
+
+                    if (format != 1 || bitsPerSample != 16 || channels < 1)
+                        throw new IOException("Only 16 bit PCM is supported.");
+                    formatRead = true;
+                } else if (chunkId == 0x64617461) {     // "data"
+                    if (!formatRead)
+                        throw new IOException("Missing format chunk.");
+                    dataLength = chunkLength;
+                    return;
+                } else {
+                    in.skipBytes(chunkLength + (chunkLength & 1));
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Missing data chunk.");
+        }
+    }
+}
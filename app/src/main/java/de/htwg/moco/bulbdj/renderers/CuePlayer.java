@@ -0,0 +1,256 @@
+package de.htwg.moco.bulbdj.renderers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.htwg.moco.bulbdj.detector.Clock;
+
+/**
+ * Class replays a cue file of a {@link CueRecorder}.
+ * <p>
+ * The file is mapped into memory and decoded frame by frame on a thread of the player, so the
+ * replay neither reads the file with system calls nor allocates. Each frame is due at its recorded
+ * time after the start, on a monotonic {@link Clock}, so a replay has the timing of the recording.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class CuePlayer {
+
+    /**
+     * Interface of {@link CuePlayer} class.
+     *
+     * @author Daniel Steidinger
+     * @version 1.0
+     */
+    public interface CuePlayerListener {
+
+        /**
+         * A frame is due.
+         * @param time time of the frame since the start in milliseconds
+         * @param flags flags of the frame, e.g. {@link CueRecorder#KICK} and {@link CueRecorder#BRIGHTNESS}
+         * @param changed mask of the lights which changed, bit i for light i
+         * @param colors colors of all lights, reused for the next frame
+         */
+        void onCue(long time, int flags, long changed, int[] colors);
+
+        /**
+         * All frames were replayed or the player was stopped.
+         */
+        void onFinished();
+    }
+
+    /**
+     * Instance of {@link CuePlayerListener} class.
+     */
+    private volatile CuePlayerListener listener;
+
+    /**
+     * The mapped cue file.
+     */
+    private final MappedByteBuffer cues;
+
+    /**
+     * Number of lights and frames of the cue file.
+     */
+    private final int lightCount, frameCount;
+
+    /**
+     * Colors of all lights of the current frame.
+     */
+    private final int[] colors;
+
+    /**
+     * Should the frames be paced like the recording, false to replay as fast as possible.
+     */
+    private final boolean realTime;
+
+    /**
+     * Monotonic clock of the pacing.
+     */
+    private Clock clock = Clock.SYSTEM;
+
+    /**
+     * Thread of the replay.
+     */
+    private Thread thread;
+
+    /**
+     * Is the replay started.
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Number of replayed frames.
+     */
+    private volatile int playedFrames = 0;
+
+    /**
+     * Default constructor.
+     * @param file the cue file
+     * @param realTime true if the frames are paced like the recording
+     * @throws IOException if the file could not be mapped or is not a cue file
+     */
+    public CuePlayer(File file, boolean realTime) throws IOException {
+        this.realTime = realTime;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed
+            FileChannel channel = in.getChannel();
+            cues = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+
+        if (cues.remaining() < CueRecorder.HEADER_SIZE || cues.getInt() != CueRecorder.MAGIC ||
+                cues.getInt() != CueRecorder.VERSION)
+            throw new IOException("Invalid cue file");
+        lightCount = cues.getInt();
+        frameCount = cues.getInt();
+        if (lightCount < 0 || lightCount > CueRecorder.MAX_LIGHTS || frameCount < 0)
+            throw new IOException("Invalid cue file");
+        colors = new int[lightCount];
+    }
+
+    /**
+     * Setter method.
+     * @param listener sets the listener of {@link CuePlayerListener} class.
+     */
+    public void setCuePlayerListener(CuePlayerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Setter method.
+     * @param clock sets the clock of the pacing
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Getter method.
+     * @return number of lights of the cue file
+     */
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * Getter method.
+     * @return number of frames of the cue file
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Getter method.
+     * @return number of replayed frames
+     */
+    public int getPlayedFrames() {
+        return playedFrames;
+    }
+
+    /**
+     * Is the replay running.
+     * @return true if the replay is started and not finished
+     */
+    public boolean isRunning() {
+        return started;
+    }
+
+    /**
+     * Start the replay from the first frame.
+     */
+    public void start() {
+        started = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "CuePlayer");
+        thread.start();
+    }
+
+    /**
+     * Stop the replay.
+     */
+    public void stop() {
+        started = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Wait until all frames were replayed or the player was stopped.
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void join() throws InterruptedException {
+        if (thread != null)
+            thread.join();
+    }
+
+    /**
+     * Decode all frames and hand them to the listener when they are due.
+     */
+    private void play() {
+        try {
+            cues.position(CueRecorder.HEADER_SIZE);
+            for (int i = 0; i < lightCount; i++)
+                colors[i] = 0;
+            playedFrames = 0;
+
+            long startTime = clock.nanoTime();
+            long time = 0;
+            for (int frame = 0; started && frame < frameCount; frame++) {
+                time += readVarint();
+                int flags = cues.get() & 0xFF;
+                long changed = readVarint();
+                for (int i = 0; i < lightCount; i++) {
+                    if ((changed & (1L << i)) != 0)
+                        colors[i] = cues.getInt();
+                }
+
+                if (realTime) {
+                    clock.sleep(startTime + time * 1000000 - clock.nanoTime());
+                }
+
+                CuePlayerListener listener = this.listener;
+                if (listener != null)
+                    listener.onCue(time, flags, changed, colors);
+                playedFrames++;
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (BufferUnderflowException e) {
+            // Truncated file, the frames so far were replayed
+        } finally {
+            started = false;
+            CuePlayerListener listener = this.listener;
+            if (listener != null)
+                listener.onFinished();
+        }
+    }
+
+    /**
+     * Read an unsigned number with 7 bits per byte.
+     * @return the number
+     */
+    private long readVarint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = cues.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return value;
+    }
+}
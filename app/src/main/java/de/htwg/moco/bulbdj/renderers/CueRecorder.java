@@ -0,0 +1,271 @@
+package de.htwg.moco.bulbdj.renderers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+
+/**
+ * Class records the colors of all lights of a show as cues, which a {@link CuePlayer} replays later.
+ * <p>
+ * The cues are delta encoded: a frame holds the time since the previous frame, the beats and
+ * the colors of the lights which changed since the previous frame. Frames are recorded into memory,
+ * which only allocates when the buffer grows, and saved to a file when the show is over.
+ * <p>
+ * Format of a cue file (big endian):
+ * <br>Header: magic, version, light count, frame count
+ * <br>Frames: time since the previous frame in milliseconds (varint), flags (byte),
+ * mask of the changed lights (varint), colors of the changed lights (int each)
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class CueRecorder {
+
+    /**
+     * Flags of a frame: the beats of the frame.
+     */
+    public static final int KICK = 1, SNARE = 2, HAT = 4;
+
+    /**
+     * Flag of a frame: the alpha of the colors is the brightness of the lights.
+     */
+    public static final int BRIGHTNESS = 0x80;
+
+    /**
+     * Maximum number of lights, one bit per light in the mask of the changed lights.
+     */
+    public static final int MAX_LIGHTS = 64;
+
+    /**
+     * Identifier and version of a cue file.
+     */
+    static final int MAGIC = 0x42444A43;
+    static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Maximum size of the recorded frames in bytes.
+     */
+    private final int maxSize;
+
+    /**
+     * Recorded frames.
+     */
+    private byte[] buffer = new byte[4096];
+
+    /**
+     * Size of the recorded frames in bytes.
+     */
+    private int size = 0;
+
+    /**
+     * Number of recorded frames.
+     */
+    private int frameCount = 0;
+
+    /**
+     * Number of lights of the show, 0 if the recording is not started.
+     */
+    private int lightCount = 0;
+
+    /**
+     * Colors of the previous frame.
+     */
+    private int[] lastColors = new int[0];
+
+    /**
+     * Time of the previous frame in milliseconds.
+     */
+    private long lastTime;
+
+    /**
+     * Is the buffer full, later frames are not recorded.
+     */
+    private boolean full = false;
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum size of the recorded frames in bytes
+     */
+    public CueRecorder(int maxSize) {
+        if (maxSize <= 0)
+            throw new RuntimeException("Size must be positive.");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Flags of detected beats.
+     * @param beats the detected beats, may be null
+     * @return the flags of the beat types
+     */
+    public static int beatFlags(ArrayList<Object[]> beats) {
+        int flags = 0;
+        if (beats != null) {
+            for (Object[] beat : beats) {
+                if (beat == null || beat.length == 0)
+                    continue;
+                if (beat[0] == BeatDetector.BEAT_TYPE.KICK)
+                    flags |= KICK;
+                else if (beat[0] == BeatDetector.BEAT_TYPE.SNARE)
+                    flags |= SNARE;
+                else if (beat[0] == BeatDetector.BEAT_TYPE.HAT)
+                    flags |= HAT;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Forget the recorded frames and start a new show.
+     * @param lightCount number of lights of the show
+     */
+    public synchronized void start(int lightCount) {
+        if (lightCount <= 0 || lightCount > MAX_LIGHTS)
+            throw new RuntimeException("Light count is out of range.");
+        this.lightCount = lightCount;
+        lastColors = new int[lightCount];
+        size = 0;
+        frameCount = 0;
+        full = false;
+    }
+
+    /**
+     * Stop the recording, the recorded frames are kept until the next start.
+     */
+    public synchronized void stop() {
+        lightCount = 0;
+    }
+
+    /**
+     * Is the recording started.
+     * @return true if frames are recorded
+     */
+    public synchronized boolean isRecording() {
+        return lightCount > 0 && !full;
+    }
+
+    /**
+     * Getter method.
+     * @return number of lights of the show
+     */
+    public synchronized int getLightCount() {
+        return lastColors.length;
+    }
+
+    /**
+     * Getter method.
+     * @return number of recorded frames
+     */
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Getter method.
+     * @return size of the recorded frames in bytes
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Record a frame. Lights beyond the light count of the show are not recorded.
+     *
+     * @param time time of the frame in milliseconds
+     * @param flags flags of the frame, e.g. {@link #KICK} and {@link #BRIGHTNESS}
+     * @param colors colors of the lights
+     * @return true if the frame was recorded
+     */
+    public synchronized boolean record(long time, int flags, int[] colors) {
+        if (!isRecording())
+            return false;
+
+        long changed = 0;
+        int changedCount = 0;
+        int count = Math.min(colors.length, lightCount);
+        for (int i = 0; i < count; i++) {
+            if (colors[i] != lastColors[i]) {
+                changed |= 1L << i;
+                changedCount++;
+            }
+        }
+
+        // Time and mask take at most 10 bytes each
+        int frameSize = 10 + 1 + 10 + changedCount * 4;
+        if (size + frameSize > maxSize) {
+            full = true;
+            return false;
+        }
+        if (size + frameSize > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.min(maxSize, Math.max(buffer.length * 2, size + frameSize)));
+
+        long delta = frameCount > 0 ? Math.max(0, time - lastTime) : 0;
+        lastTime = time;
+        writeVarint(delta);
+        buffer[size++] = (byte) flags;
+        writeVarint(changed);
+        for (int i = 0; i < count; i++) {
+            if ((changed & (1L << i)) != 0) {
+                int color = colors[i];
+                buffer[size++] = (byte) (color >>> 24);
+                buffer[size++] = (byte) (color >>> 16);
+                buffer[size++] = (byte) (color >>> 8);
+                buffer[size++] = (byte) color;
+                lastColors[i] = color;
+            }
+        }
+        frameCount++;
+        return true;
+    }
+
+    /**
+     * Write an unsigned number with 7 bits per byte, the highest bit marks a following byte.
+     * @param value the number
+     */
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Write the recorded frames to a cue file.
+     * The frames are copied first, so the recording waits only for the copy, not for the file.
+     *
+     * @param file the file
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        byte[] frames;
+        int lights;
+        int count;
+        synchronized (this) {
+            frames = Arrays.copyOf(buffer, size);
+            lights = lastColors.length;
+            count = frameCount;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lights);
+            out.writeInt(count);
+            out.write(frames);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package de.htwg.moco.bulbdj.renderers;
+
+/**
+ * Class renders spatial effects over lights placed in a line or a grid.
+ *
+ * Every light has a 1D or 2D position in the range 0 to 1. Each frame the selected effect
+ * computes one intensity per light in a single pass over a float buffer. The intensities are
+ * then quantized into the alpha of the light colors, which are sent as bridge commands.
+ * All buffers are allocated when the light count changes, so a frame does not allocate.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class EffectsEngine {
+
+    /**
+     * Enum of effects.
+     */
+    public enum Effect { NONE, CHASE, RIPPLE, SWEEP }
+
+    /**
+     * All effects, indexed by {@link Effect#ordinal()}.
+     */
+    private static final Effect[] EFFECTS = Effect.values();
+
+    /**
+     * Maximum number of ripples at the same time.
+     */
+    private static final int MAX_RIPPLES = 4;
+
+    /**
+     * Width of the chase head and ripple ring (in positions).
+     */
+    private float width = 0.25F;
+
+    /**
+     * Speed of the chase and the ripples (in positions per second).
+     */
+    private float speed = 1F;
+
+    /**
+     * Lifetime of a ripple in milliseconds.
+     */
+    private int rippleDuration = 1000;
+
+    /**
+     * Selected effect.
+     */
+    private Effect effect = Effect.NONE;
+
+    /**
+     * Number of lights.
+     */
+    private int lightCount = 0;
+
+    /**
+     * Positions of the lights.
+     */
+    private float[] x = new float[0], y = new float[0];
+
+    /**
+     * Intensity of each light in the current frame, from 0 to 1.
+     */
+    private float[] intensity = new float[0];
+
+    /**
+     * Colors of the lights in the current frame.
+     */
+    private int[] output = new int[0];
+
+    /**
+     * First fft bin and the bin after the last of each light for the spectrum sweep.
+     */
+    private int[] binStart = new int[0], binEnd = new int[0];
+
+    /**
+     * Number of bins the sweep bins were computed for.
+     */
+    private int binCount = -1;
+
+    /**
+     * Start time, energy and origin of the ripples, used as ring buffer.
+     */
+    private long[] rippleStart = new long[MAX_RIPPLES];
+    private float[] rippleEnergy = new float[MAX_RIPPLES];
+    private float[] rippleX = new float[MAX_RIPPLES], rippleY = new float[MAX_RIPPLES];
+    private int nextRipple = 0;
+
+    /**
+     * Origin of new ripples.
+     */
+    private float originX = 0.5F, originY = 0.5F;
+
+    /**
+     * Get the effect of a stored index.
+     * @param index index of the effect, e.g. from the settings
+     * @return the effect, {@link Effect#NONE} if the index is out of range
+     */
+    public static Effect effectOf(int index) {
+        return index >= 0 && index < EFFECTS.length ? EFFECTS[index] : Effect.NONE;
+    }
+
+    /**
+     * Setter method.
+     * @param effect sets the selected effect
+     */
+    public void setEffect(Effect effect) {
+        this.effect = effect;
+    }
+
+    /**
+     * Getter method.
+     * @return the selected effect
+     */
+    public Effect getEffect() {
+        return effect;
+    }
+
+    /**
+     * Getter method.
+     * @return number of lights
+     */
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * Setter method. Places the lights in a line.
+     * @param lightCount sets the number of lights
+     */
+    public void setLightCount(int lightCount) {
+        if (lightCount < 0)
+            throw new RuntimeException("Light count is negative.");
+
+        this.lightCount = lightCount;
+        x = new float[lightCount];
+        y = new float[lightCount];
+        intensity = new float[lightCount];
+        output = new int[lightCount];
+        binStart = new int[lightCount];
+        binEnd = new int[lightCount];
+        setLayoutLine();
+    }
+
+    /**
+     * Place the lights evenly in a line.
+     */
+    public void setLayoutLine() {
+        for (int i = 0; i < lightCount; i++) {
+            x[i] = lightCount > 1 ? (float) i / (lightCount - 1) : 0.5F;
+            y[i] = 0.5F;
+        }
+        binCount = -1;
+    }
+
+    /**
+     * Place the lights evenly in a grid, row by row.
+     * @param columns number of columns of the grid
+     */
+    public void setLayoutGrid(int columns) {
+        if (columns <= 0)
+            throw new RuntimeException("Invalid column count.");
+
+        int rows = (lightCount + columns - 1) / columns;
+        for (int i = 0; i < lightCount; i++) {
+            x[i] = columns > 1 ? (float) (i % columns) / (columns - 1) : 0.5F;
+            y[i] = rows > 1 ? (float) (i / columns) / (rows - 1) : 0.5F;
+        }
+        binCount = -1;
+    }
+
+    /**
+     * Setter method.
+     * @param light index of the light
+     * @param x sets the horizontal position from 0 to 1
+     * @param y sets the vertical position from 0 to 1
+     */
+    public void setPosition(int light, float x, float y) {
+        this.x[light] = x;
+        this.y[light] = y;
+        binCount = -1;
+    }
+
+    /**
+     * Setter method.
+     * @param x sets the horizontal position of new ripples from 0 to 1
+     * @param y sets the vertical position of new ripples from 0 to 1
+     */
+    public void setRippleOrigin(float x, float y) {
+        this.originX = x;
+        this.originY = y;
+    }
+
+    /**
+     * Setter method.
+     * @param speed sets the speed of the chase and the ripples in positions per second
+     */
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Start a ripple on a kick onset.
+     * @param energy of the kick, from 0 to 1
+     * @param time of the onset in milliseconds
+     */
+    public void onKick(float energy, long time) {
+        rippleStart[nextRipple] = time;
+        rippleEnergy[nextRipple] = Math.min(1F, Math.max(0F, energy));
+        rippleX[nextRipple] = originX;
+        rippleY[nextRipple] = originY;
+        nextRipple = (nextRipple + 1) % MAX_RIPPLES;
+    }
+
+    /**
+     * Render the selected effect.
+     * @param colors colors of the lights, the alpha is replaced by the effect
+     * @param fft the raw fft data, used by the spectrum sweep
+     * @param time of the frame in milliseconds
+     * @return colors of the lights, the array is reused by the next call
+     */
+    public int[] render(int[] colors, double[] fft, long time) {
+        switch (effect) {
+            case CHASE:
+                renderChase(time);
+                break;
+            case RIPPLE:
+                renderRipples(time);
+                break;
+            case SWEEP:
+                renderSweep(fft);
+                break;
+            case NONE:
+            default:
+                System.arraycopy(colors, 0, output, 0, lightCount);
+                return output;
+        }
+
+        // Quantize
+        for (int i = 0; i < lightCount; i++) {
+            int alpha = (int) (Math.min(1F, intensity[i]) * 255F);
+            output[i] = (alpha << 24) | (colors[i] & 0xFFFFFF);
+        }
+        return output;
+    }
+
+    /**
+     * A head running along the x axis.
+     * @param time of the frame in milliseconds
+     */
+    private void renderChase(long time) {
+        float head = (time % 1000000L) / 1000F * speed;
+        head -= (float) Math.floor(head);
+        for (int i = 0; i < lightCount; i++) {
+            float d = Math.abs(x[i] - head);
+            d = Math.min(d, 1F - d);    // Wrap around
+            intensity[i] = Math.max(0F, 1F - d / width);
+        }
+    }
+
+    /**
+     * Rings growing from the origin on every kick, fading out over their lifetime.
+     * @param time of the frame in milliseconds
+     */
+    private void renderRipples(long time) {
+        for (int i = 0; i < lightCount; i++) {
+            intensity[i] = 0F;
+        }
+
+        for (int r = 0; r < MAX_RIPPLES; r++) {
+            long age = time - rippleStart[r];
+            if (rippleEnergy[r] <= 0 || age < 0 || age > rippleDuration)
+                continue;
+
+            float radius = age / 1000F * speed;
+            float level = rippleEnergy[r] * (1F - (float) age / rippleDuration);
+            float cx = rippleX[r], cy = rippleY[r];
+            for (int i = 0; i < lightCount; i++) {
+                float dx = x[i] - cx, dy = y[i] - cy;
+                float d = Math.abs((float) Math.sqrt(dx * dx + dy * dy) - radius);
+                intensity[i] += level * Math.max(0F, 1F - d / width);
+            }
+        }
+    }
+
+    /**
+     * The spectrum spread along the x axis, low frequencies on the left.
+     * Each light shows the average magnitude of all bins between the middles to its neighbours,
+     * so no part of the spectrum is skipped with few lights.
+     * @param fft the raw fft data
+     */
+    private void renderSweep(double[] fft) {
+        if (fft == null) {
+            for (int i = 0; i < lightCount; i++) {
+                intensity[i] = 0F;
+            }
+            return;
+        }
+
+        int count = fft.length / 2;
+        if (binCount != count) {
+            binCount = count;
+            setSweepBins(count);
+        }
+
+        for (int i = 0; i < lightCount; i++) {
+            float sum = 0F;
+            for (int k = binStart[i]; k < binEnd[i]; k++) {
+                double rfk = fft[2 * k];
+                double ifk = fft[2 * k + 1];
+                // Same magnitude as in the beat detector, about 0 to 4 for music
+                sum += (float) Math.sqrt(2 * Math.sqrt(rfk * rfk + ifk * ifk));
+            }
+            intensity[i] = binEnd[i] > binStart[i] ? sum / (binEnd[i] - binStart[i]) / 4F : 0F;
+        }
+    }
+
+    /**
+     * Calculate the bins of each light for the spectrum sweep. A light covers the positions between
+     * the middles to the next lights on the x axis, on a logarithmic scale without the dc bin.
+     * Lights at the same position share their bins.
+     * @param count number of bins
+     */
+    private void setSweepBins(int count) {
+        for (int i = 0; i < lightCount; i++) {
+            float position = Math.min(1F, Math.max(0F, x[i]));
+            float low = 0F, high = 1F;
+            for (int j = 0; j < lightCount; j++) {
+                float other = Math.min(1F, Math.max(0F, x[j]));
+                if (other < position)
+                    low = Math.max(low, (other + position) / 2);
+                else if (other > position)
+                    high = Math.min(high, (other + position) / 2);
+            }
+            binStart[i] = Math.max(1, Math.min(count - 1, (int) Math.pow(count, low)));
+            binEnd[i] = Math.min(count, Math.max(binStart[i] + 1, (int) Math.pow(count, high)));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package de.htwg.moco.bulbdj.renderers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Class records the events of a show in a ring of binary records.
+ * <p>
+ * The ring is allocated once: writing a record only copies numbers into the buffer, so it neither
+ * allocates nor blocks on the system log. When the ring is full, the oldest records are overwritten.
+ * The ring can be dumped to a file at any time and printed as text later.
+ * <p>
+ * Format of a dump (big endian):
+ * <br>Header: magic, version, record size, record count
+ * <br>Records, oldest first: time (long), type, mode, value, color count, {@link #MAX_COLORS} colors
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class EventLog {
+
+    /**
+     * Type of a record: colors sent to the listener, value is the number of beats.
+     */
+    public static final int UPDATE = 1;
+
+    /**
+     * Type of a record: automatic mode change, value is the number of beats.
+     */
+    public static final int MODE_CHANGE = 2;
+
+    /**
+     * Maximum number of colors of a record, more colors are cut.
+     */
+    public static final int MAX_COLORS = 8;
+
+    /**
+     * Size of a record in bytes.
+     */
+    public static final int RECORD_SIZE = 8 + 4 * 4 + MAX_COLORS * 4;
+
+    /**
+     * Identifier and version of a dump.
+     */
+    private static final int MAGIC = 0x42444A45;
+    private static final int VERSION = 1;
+
+    /**
+     * The records.
+     */
+    private final ByteBuffer ring;
+
+    /**
+     * Number of records the ring holds.
+     */
+    private final int capacity;
+
+    /**
+     * Number of records written since the creation or the last clear.
+     */
+    private long written = 0;
+
+    /**
+     * Default constructor.
+     * @param capacity number of records the ring holds
+     */
+    public EventLog(int capacity) {
+        if (capacity <= 0)
+            throw new RuntimeException("Capacity must be positive.");
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocate(capacity * RECORD_SIZE);
+    }
+
+    /**
+     * Getter method.
+     * @return number of records the ring holds
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Getter method.
+     * @return number of records in the ring
+     */
+    public synchronized int getCount() {
+        return (int) Math.min(written, capacity);
+    }
+
+    /**
+     * Getter method.
+     * @return number of records written since the creation or the last clear, including overwritten records
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * Record an event. Does not allocate.
+     *
+     * @param time time of the event in milliseconds
+     * @param type type of the event, e.g. {@link #UPDATE}
+     * @param mode display mode
+     * @param value value of the event, depending on the type
+     * @param colors colors of the event, may be null
+     */
+    public synchronized void write(long time, int type, int mode, int value, int[] colors) {
+        int position = (int) (written % capacity) * RECORD_SIZE;
+        int count = colors != null ? Math.min(colors.length, MAX_COLORS) : 0;
+
+        ring.putLong(position, time);
+        ring.putInt(position + 8, type);
+        ring.putInt(position + 12, mode);
+        ring.putInt(position + 16, value);
+        ring.putInt(position + 20, count);
+        for (int i = 0; i < MAX_COLORS; i++) {
+            ring.putInt(position + 24 + i * 4, i < count ? colors[i] : 0);
+        }
+        written++;
+    }
+
+    /**
+     * Forget all records.
+     */
+    public synchronized void clear() {
+        written = 0;
+    }
+
+    /**
+     * Write the records to a file, oldest first.
+     * The records are copied first, so the recording waits only for the copy, not for the file.
+     *
+     * @param file the file
+     * @throws IOException if the file could not be written
+     */
+    public void dump(File file) throws IOException {
+        byte[] records;
+        int count;
+        synchronized (this) {
+            count = getCount();
+            records = new byte[count * RECORD_SIZE];
+            int oldest = (int) ((written - count) % capacity) * RECORD_SIZE;
+            int firstPart = Math.min(records.length, capacity * RECORD_SIZE - oldest);
+            System.arraycopy(ring.array(), oldest, records, 0, firstPart);
+            System.arraycopy(ring.array(), 0, records, firstPart, records.length - firstPart);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(RECORD_SIZE);
+            out.writeInt(count);
+            out.write(records);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Print a dump as text, one record per line: time, type, mode, value and colors in hex.
+     *
+     * @param file the dump
+     * @param writer target of the text
+     * @throws IOException if the dump could not be read or is invalid
+     */
+    public static void print(File file, Writer writer) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        PrintWriter out = new PrintWriter(writer);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != RECORD_SIZE)
+                throw new IOException("Invalid event log");
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                long time = in.readLong();
+                int type = in.readInt();
+                int mode = in.readInt();
+                int value = in.readInt();
+                int colorCount = in.readInt();
+                out.print(time);
+                out.print(type == UPDATE ? " update" : type == MODE_CHANGE ? " mode" : " " + type);
+                out.print(" " + mode + " " + value);
+                for (int i = 0; i < MAX_COLORS; i++) {
+                    int color = in.readInt();
+                    if (i < colorCount)
+                        out.print(" " + Integer.toHexString(color));
+                }
+                out.println();
+            }
+        } catch (EOFException e) {
+            throw new IOException("Event log is truncated");
+        } finally {
+            out.flush();
+            in.close();
+        }
+    }
+}
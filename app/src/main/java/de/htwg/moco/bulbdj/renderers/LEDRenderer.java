@@ -1,9 +1,8 @@
 package de.htwg.moco.bulbdj.renderers;
 
-import android.graphics.Color;
-import android.util.Log;
-
 import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.detector.Clock;
+import de.htwg.moco.bulbdj.detector.ModeClassifier;
 import de.htwg.moco.bulbdj.detector.Modes;
 
 import java.util.ArrayList;
@@ -64,32 +63,39 @@ public class LEDRenderer {
     /**
      * The delay of the updates.
      */
-    private int delay = 50; // In milliseconds
+    private volatile int delay = 50; // In milliseconds
 
     /**
-     * Check mode delay
+     * Number of color channels (kick, snare, hat) to display. Default is 3.
+     * The channels are mapped to any number of lights by a {@link LightMapper}.
      */
-    private int checkModeDelay = 15000; // In milliseconds
+    private int bulbCount = 3;
 
     /**
-     * Number of bulbs to display. Default is 3.
+     * Monotonic clock of the timing, in milliseconds.
      */
-    private int bulbCount = 3;
+    private Clock clock = Clock.SYSTEM;
 
     /**
-     * Value of the last updated time.
+     * Time of an event which did not happen yet. The clock may start at any value, even 0.
+     */
+    private static final long NEVER = Long.MIN_VALUE / 2;
+
+    /**
+     * Beat types of the kick, snare and hat bulbs, in the order of the bulbs.
      */
-    private long lastUpdateTime = 0;
+    private static final BeatDetector.BEAT_TYPE[] BEAT_BULBS = {
+            BeatDetector.BEAT_TYPE.KICK, BeatDetector.BEAT_TYPE.SNARE, BeatDetector.BEAT_TYPE.HAT};
 
     /**
-     * Value of last checked automatic mode
+     * Value of the last updated time.
      */
-    private long lastModeChecked = 0;
+    private long lastUpdateTime = NEVER;
 
     /**
      * Value of the last color change.
      */
-    private long lastColorChange = 0;
+    private long lastColorChange = NEVER;
 
     /**
      * Last colors.
@@ -97,20 +103,71 @@ public class LEDRenderer {
     private int [] lastColors;
 
     /**
-     * Value of the max DB.
+     * Value of the max DB, the followed peak of the frequency mode which is shown at full brightness.
+     */
+    private float maxDbValue = 30;
+
+    /**
+     * Time of the last update of the max DB.
+     */
+    private long maxDbTime = NEVER;
+
+    /**
+     * Smallest value of the max DB, so noise is not shown at full brightness.
      */
-    private int maxDbValue = 30;
+    private static final float MIN_DB_RANGE = 10;
 
     /**
-     * Time of the max DB.
+     * Time constant of a falling max DB in milliseconds.
      */
-    private long maxDbTime = 0;
+    private static final long PEAK_RELEASE = 5000;
+
+    /**
+     * Maximum number of channels of the frequency mode.
+     */
+    public static final int MAX_FREQUENCY_CHANNELS = 32;
+
+    /**
+     * Number of channels of the frequency mode, one band of the spectrum per channel. Default is 3.
+     */
+    private int frequencyChannels = 3;
+
+    /**
+     * First bin and the bin after the last bin of each band, logarithmically spaced over the spectrum.
+     * The tables are calculated once per length of the spectrum and number of channels.
+     */
+    private int[] bandStart, bandEnd;
+
+    /**
+     * Length of the spectrum of the band tables, -1 if the tables are invalid.
+     */
+    private int bandSpectrumLength = -1;
+
+    /**
+     * Smoothed DB values of the bands.
+     */
+    private float[] bandLevels;
+
+    /**
+     * Reused buffer of the colors of the frequency mode.
+     */
+    private int[] frequencyFrame;
+
+    /**
+     * Time constants of a rising and a falling band in milliseconds.
+     */
+    private static final long BAND_ATTACK = 30, BAND_RELEASE = 300;
 
     /**
      * Red, Green, Blue
      */
     private int bulbs[];
 
+    /**
+     * Reused buffers of the next colors in mono and stereo mode.
+     */
+    private int frame[], stereoFrame[];
+
     /**
      * Display mode
      */
@@ -126,27 +183,42 @@ public class LEDRenderer {
      */
     private boolean autoMode = true;
 
+    /**
+     * Classifier of the automatic mode, null if the mode is not classified.
+     */
+    private ModeClassifier modeClassifier;
+
+    /**
+     * Last mode of the classifier applied in automatic mode.
+     */
+    private Modes classifiedMode = Modes.AUTOMATIC;
+
+    /**
+     * Events of the show, instead of the system log.
+     */
+    private final EventLog eventLog = new EventLog(4096);
+
     /**
      * Possible colors for all modes.
      */
-    private final int [][] allColors = {{Color.parseColor("#C40D00"), Color.parseColor("#BAA702"), Color.parseColor("#0078C4"), Color.parseColor("#00AD1D")},  // DEFAULT / AUTOMATICAL
-                                    {Color.parseColor("#C40D00"), Color.parseColor("#BAA702"), Color.parseColor("#0078C4"), Color.parseColor("#00AD1D")},    //POP
-                                    {Color.parseColor("#BA9F02"), Color.parseColor("#C41C0A"), Color.parseColor("#AAAAAA")}, // RAP
-                                    {Color.parseColor("#BA9C02"), Color.parseColor("#C48C0A"), Color.parseColor("#C44D0A"), Color.parseColor("#BA2509")},    // ROCK
-                                    {Color.parseColor("#BA0276"), Color.parseColor("#04B1BA"), Color.parseColor("#0A59C4")},   // DANCE
-                                    {Color.parseColor("#0039AD"), Color.parseColor("#8C03BA"), Color.parseColor("#0AAAC4"), Color.parseColor("#04BA5A")},   // ELECTRO
-                                    {Color.parseColor("#FF24DB"), Color.parseColor("#E8680C"), Color.parseColor("#FF4839"), Color.parseColor("#F3FF97")}};  // ROMATIC
+    private final int [][] allColors = {{0xFFC40D00, 0xFFBAA702, 0xFF0078C4, 0xFF00AD1D},  // DEFAULT / AUTOMATICAL
+                                    {0xFFC40D00, 0xFFBAA702, 0xFF0078C4, 0xFF00AD1D},    //POP
+                                    {0xFFBA9F02, 0xFFC41C0A, 0xFFAAAAAA}, // RAP
+                                    {0xFFBA9C02, 0xFFC48C0A, 0xFFC44D0A, 0xFFBA2509},    // ROCK
+                                    {0xFFBA0276, 0xFF04B1BA, 0xFF0A59C4},   // DANCE
+                                    {0xFF0039AD, 0xFF8C03BA, 0xFF0AAAC4, 0xFF04BA5A},   // ELECTRO
+                                    {0xFFFF24DB, 0xFFE8680C, 0xFFFF4839, 0xFFF3FF97}};  // ROMATIC
 
     /**
      * Colors when the lights are off (background colors).
      */
-    private final int [] offColors = {Color.parseColor("#FFFFFF"),
-            Color.parseColor("#FFDC00"),
-            Color.parseColor("#FF9B0C"),
-            Color.parseColor("#FF6E4D"),
-            Color.parseColor("#396FFF"),
-            Color.parseColor("#3799FF"),
-            Color.parseColor("#E8478A")};
+    private final int [] offColors = {0xFFFFFFFF,
+            0xFFFFDC00,
+            0xFFFF9B0C,
+            0xFFFF6E4D,
+            0xFF396FFF,
+            0xFF3799FF,
+            0xFFE8478A};
 
     /**
      * Different interval for all modes
@@ -171,12 +243,23 @@ public class LEDRenderer {
     }
 
     /**
-     * Default constructor.
+     * Default constructor. The app renders with the instance of {@link #getInstance()},
+     * offline jobs create a renderer per job.
      */
-    private LEDRenderer() {
+    public LEDRenderer() {
         this.listener = null;
         bulbs = new int[bulbCount];
-        lastColors = new int[bulbCount];
+        frame = new int[bulbCount];
+        stereoFrame = new int[bulbCount * 2];
+        lastColors = new int[bulbCount * 2];
+    }
+
+    /**
+     * Getter method.
+     * @return the delay of the updates in milliseconds
+     */
+    public int getDelay() {
+        return delay;
     }
 
     public void setDelay(int delay) {
@@ -186,6 +269,77 @@ public class LEDRenderer {
             throw new RuntimeException("Delay is out of range.");
     }
 
+    /**
+     * Getter method.
+     * @return the number of channels of the frequency mode
+     */
+    public int getFrequencyChannels() {
+        return frequencyChannels;
+    }
+
+    /**
+     * Setter method. The band tables are calculated again with the next spectrum if the number changed.
+     * @param channels sets the number of channels of the frequency mode, e.g. the number of lights
+     */
+    public void setFrequencyChannels(int channels) {
+        if (channels < 1 || channels > MAX_FREQUENCY_CHANNELS)
+            throw new RuntimeException("Channel count is out of range.");
+        if (channels == frequencyChannels)
+            return;
+
+        frequencyChannels = channels;
+        bandSpectrumLength = -1;
+        if (lastColors.length < channels)
+            lastColors = Arrays.copyOf(lastColors, channels);
+    }
+
+    /**
+     * Setter method. All times of the renderer are taken from this clock.
+     * @param clock sets the clock, e.g. a {@link Clock.Manual} clock in replays
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        lastUpdateTime = NEVER;
+        lastColorChange = NEVER;
+        maxDbTime = NEVER;
+    }
+
+    /**
+     * Setter method.
+     * @param modeClassifier sets the classifier of the automatic mode
+     */
+    public void setModeClassifier(ModeClassifier modeClassifier) {
+        this.modeClassifier = modeClassifier;
+    }
+
+    /**
+     * Getter method.
+     * @return the updates and mode changes of the show
+     */
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Getter method.
+     * @return all colors of all modes, including the background colors
+     */
+    public int[] getPaletteColors() {
+        int count = offColors.length;
+        for (int[] colors : allColors) {
+            count += colors.length;
+        }
+
+        int[] palette = new int[count];
+        int i = 0;
+        for (int[] colors : allColors) {
+            System.arraycopy(colors, 0, palette, i, colors.length);
+            i += colors.length;
+        }
+        System.arraycopy(offColors, 0, palette, i, offColors.length);
+        return palette;
+    }
+
     /**
      * Setter method.
      *
@@ -213,7 +367,9 @@ public class LEDRenderer {
                 modeI = 6;
                 break;
             case AUTOMATIC:
-                lastModeChecked = System.currentTimeMillis();
+                classifiedMode = Modes.AUTOMATIC;
+                if (modeClassifier != null)
+                    modeClassifier.reset();
             default:
                 modeI = 0;
         }
@@ -234,118 +390,169 @@ public class LEDRenderer {
      * @param beatsObjs the detected beats.
      */
     public void updateBeats(ArrayList<Object[]> beatsObjs) {
-        int [] bulbs = new int[bulbCount];
-        bulbs = calcColors(bulbs);
-
-        ArrayList<BeatDetector.BEAT_TYPE> beats = new ArrayList<BeatDetector.BEAT_TYPE>();
-        for (Object[] beatsObj : beatsObjs) {
-            if (beatsObj != null && beatsObj.length > 0)
-                beats.add((BeatDetector.BEAT_TYPE) beatsObj[0]);
-        }
+        int [] bulbs = calcColors(frame);
+        applyBeats(bulbs, 0, beatsObjs);
+        doUpdate(bulbs);
+    }
 
-        if (beats == null || !beats.contains(BeatDetector.BEAT_TYPE.KICK))
-            bulbs[0] = offColors[mode];
-        if (beats == null || !beats.contains(BeatDetector.BEAT_TYPE.SNARE))
-            bulbs[1] = offColors[mode];
-        if (beats == null || !beats.contains(BeatDetector.BEAT_TYPE.HAT))
-            bulbs[2] = offColors[mode];
+    /**
+     * Renders the beats of both stereo channels as colors output.
+     * The first three bulbs show kick, snare and hat of the left channel,
+     * the next three bulbs of the right channel.
+     * @param left the detected beats of the left channel.
+     * @param right the detected beats of the right channel.
+     */
+    public void updateStereoBeats(ArrayList<Object[]> left, ArrayList<Object[]> right) {
+        int [] bulbs = calcColors(stereoFrame);
+        applyBeats(bulbs, 0, left);
+        applyBeats(bulbs, bulbCount, right);
+        doUpdate(bulbs);
+    }
 
-        if (beats != null) {
+    /**
+     * Sets kick, snare and hat bulbs depending on the detected beats.
+     * @param bulbs are the different colors of the bulbs.
+     * @param offset index of the kick bulb, followed by snare and hat.
+     * @param beatsObjs the detected beats, may be null.
+     */
+    private void applyBeats(int[] bulbs, int offset, ArrayList<Object[]> beatsObjs) {
+        int beats = 0;
+        if (beatsObjs != null) {
             for (Object[] beatObj : beatsObjs) {
-                int energy = (int) (((float) beatObj[1]) * 110) + 80;
-                energy = Math.min(255, energy);
-                energy = Math.max(0, energy);
-                if (beatObj[0].equals(BeatDetector.BEAT_TYPE.KICK))
-                    bulbs[0] = Color.argb(energy, Color.red(bulbs[0]), Color.green(bulbs[0]), Color.blue(bulbs[0]));
-                if (beatObj[0].equals(BeatDetector.BEAT_TYPE.SNARE))
-                    bulbs[1] = Color.argb(energy, Color.red(bulbs[1]), Color.green(bulbs[1]), Color.blue(bulbs[1]));
-                if (beatObj[0].equals(BeatDetector.BEAT_TYPE.HAT))
-                    bulbs[2] = Color.argb(energy, Color.red(bulbs[2]), Color.green(bulbs[2]), Color.blue(bulbs[2]));
+                if (beatObj == null || beatObj.length < 2)
+                    continue;
+                for (int i = 0; i < BEAT_BULBS.length; i++) {
+                    if (beatObj[0] == BEAT_BULBS[i]) {
+                        int energy = (int) (((float) beatObj[1]) * 110) + 80;
+                        energy = Math.min(255, energy);
+                        energy = Math.max(0, energy);
+                        bulbs[offset + i] = withAlpha(energy, bulbs[offset + i]);
+                        beats |= 1 << i;
+                    }
+                }
             }
         }
 
-        doUpdate(bulbs);
+        for (int i = 0; i < BEAT_BULBS.length; i++) {
+            if ((beats & (1 << i)) == 0)
+                bulbs[offset + i] = offColors[mode];
+        }
     }
 
     /**
-     * Renders the raw fft data as colors output.
+     * Renders the raw fft data as colors output, one channel per band of the spectrum.
+     * The energy of all bins of a band is summed in one pass over the spectrum, without allocation.
      * @param data the fft data.
      */
     public void updateFrequency(double[] data) {
-        int r = 0, g = 0, b = 0;
-        int limit = data.length / 2;
-        int limitThird = limit / 3;
-
-        for (int i = 0; i < limit; i+=limitThird) {
-            double rfk = data[2 * i];
-            double ifk = data[2 * i + 1];
-            double magnitude = (rfk * rfk + ifk * ifk);
-            int dbValueRaw = (int) (10 * Math.log10(magnitude));
-            dbValueRaw += 20;               // Sensitivity. Lowest db Value is -30db.
-            int dbValuePositive = Math.max(0, dbValueRaw);
-            float dbValue = (float) dbValuePositive / maxDbValue * 255;
-            dbValue = Math.min(dbValue, 255);
-
-            if (i < limitThird)
-                r+= dbValue;
-            else if (i < limitThird * 2)
-                g+= dbValue;
-            else
-                b+= dbValue;
-        }
+        if (bandSpectrumLength != data.length)
+            setBands(data.length);
+
+        long now = clock.millis();
+        float elapsed = maxDbTime != NEVER ? now - maxDbTime : Float.MAX_VALUE;
+        float attack = Math.min(1, elapsed / BAND_ATTACK);
+        float release = Math.min(1, elapsed / BAND_RELEASE);
+
+        float peak = 0;
+        for (int band = 0; band < bandLevels.length; band++) {
+            double energy = 0;
+            for (int i = bandStart[band]; i < bandEnd[band]; i++) {
+                double rfk = data[2 * i];
+                double ifk = data[2 * i + 1];
+                energy += rfk * rfk + ifk * ifk;
+            }
+            double magnitude = energy / (bandEnd[band] - bandStart[band]);
+            float dbValue = (float) (10 * Math.log10(magnitude + 1e-12));
+            dbValue += 20;                  // Sensitivity. Lowest db Value is -30db.
+            dbValue = Math.max(0, dbValue);
 
-        if (r > maxDbValue) {
-            maxDbValue = r;
-            maxDbTime = System.currentTimeMillis();
+            bandLevels[band] += (dbValue > bandLevels[band] ? attack : release) * (dbValue - bandLevels[band]);
+            peak = Math.max(peak, bandLevels[band]);
         }
-        if (g > maxDbValue) {
-            maxDbValue = g;
-            maxDbTime = System.currentTimeMillis();
-        }
-        if (b > maxDbValue) {
-            maxDbValue = b;
-            maxDbTime = System.currentTimeMillis();
+
+        // The max DB follows a new peak at once and falls slowly, like the gain of the recording
+        if (peak > maxDbValue)
+            maxDbValue = peak;
+        else if (maxDbTime != NEVER)
+            maxDbValue += Math.min(1, (float) (now - maxDbTime) / PEAK_RELEASE) * (peak - maxDbValue);
+        maxDbValue = Math.max(MIN_DB_RANGE, maxDbValue);
+        maxDbTime = now;
+
+        int[] bulbs = calcColors(frequencyFrame);
+        for (int band = 0; band < bulbs.length; band++) {
+            int alpha = (int) Math.min(255, bandLevels[band] / maxDbValue * 255);
+            int bulb = bulbs[band];
+            bulbs[band] = withAlpha(alpha, bulb);
         }
+        doUpdate(bulbs);
+    }
 
-        if (maxDbTime > System.currentTimeMillis() - 5000)
-            maxDbValue = 10;
+    /**
+     * Calculate the bin tables of the bands, logarithmically spaced from the first bin above DC
+     * to the highest bin, at least one bin per band.
+     * @param length length of the fft data
+     */
+    private void setBands(int length) {
+        int bins = length / 2;
+        int count = Math.max(1, Math.min(frequencyChannels, bins - 1));
+        bandStart = new int[count];
+        bandEnd = new int[count];
+        bandLevels = new float[count];
+        frequencyFrame = new int[count];
+
+        int start = 1;
+        for (int band = 0; band < count; band++) {
+            int end = (int) Math.round(Math.pow(bins, (band + 1) / (double) count));
+            end = Math.max(end, start + 1);
+            end = Math.min(end, bins - (count - 1 - band));
+            bandStart[band] = start;
+            bandEnd[band] = end;
+            start = end;
+        }
+        bandSpectrumLength = length;
+    }
 
-        int [] bulbs = new int[bulbCount];
-        bulbs = calcColors(bulbs);
-        doUpdate(new int[]{Color.argb(r, Color.red(bulbs[0]), Color.green(bulbs[0]), Color.blue(bulbs[0])), Color.argb(g, Color.red(bulbs[1]), Color.green(bulbs[1]), Color.blue(bulbs[1])), Color.argb(b, Color.red(bulbs[2]), Color.green(bulbs[2]), Color.blue(bulbs[2]))});
+    /**
+     * Replace the alpha of a color.
+     * @param alpha the new alpha from 0 to 255
+     * @param color the color
+     * @return the color with the new alpha
+     */
+    private static int withAlpha(int alpha, int color) {
+        return (alpha << 24) | (color & 0xFFFFFF);
     }
 
     /**
      * Call the final update function considering the delay.
+     * The colors are copied, so the caller can reuse its buffer.
      * @param bulbs are the different colors of the bulbs.
      */
     private void doUpdate(int[] bulbs) {
         if (!Arrays.equals(bulbs, this.bulbs)) {
-            if (bulbs.length > 0 && Color.alpha(bulbs[0]) > 0) {
+            if (bulbs.length > 0 && (bulbs[0] >>> 24) > 0) {
                 countBeats++;
             }
         }
 
-        if (listener != null && System.currentTimeMillis() - delay > lastUpdateTime && !Arrays.equals(bulbs, this.bulbs)) {
-            this.bulbs = bulbs;
-
-            lastUpdateTime = System.currentTimeMillis();
-
-            if (autoMode && lastModeChecked > 0 && lastUpdateTime - checkModeDelay > lastModeChecked) {
-                lastModeChecked = 0;
-                changeMode();
-                countBeats = 0;
+        long now = clock.millis();
+        if (listener != null && now - delay > lastUpdateTime && !Arrays.equals(bulbs, this.bulbs)) {
+            if (this.bulbs.length != bulbs.length)
+                this.bulbs = new int[bulbs.length];
+            System.arraycopy(bulbs, 0, this.bulbs, 0, bulbs.length);
+            bulbs = this.bulbs;
+
+            lastUpdateTime = now;
+
+            if (autoMode && modeClassifier != null) {
+                Modes classified = modeClassifier.getMode();
+                if (classified != Modes.AUTOMATIC && classified != classifiedMode) {
+                    classifiedMode = classified;
+                    changeMode(classified);
+                    countBeats = 0;
+                }
             }
 
-            // Log
-            String s = "";
-            for (int color: bulbs) {
-                if (Color.alpha(color) <= 0)
-                    s +=  "0 ";
-                else
-                    s +=  String.valueOf(color) + " ";
-            }
-            Log.d("LED update", s);
+            eventLog.write(lastUpdateTime, EventLog.UPDATE, mode, countBeats, bulbs);
 
             // Call onUpdate
             listener.onUpdate(bulbs);
@@ -353,27 +560,12 @@ public class LEDRenderer {
     }
 
     /**
-     * Change the mode depending on beat counts.
+     * Change the mode to the mode of the classifier.
+     * @param mode the classified mode
      */
-    private void changeMode() {
-        Modes mode = Modes.AUTOMATIC;
-
-        if (countBeats > 0 && countBeats < 150) {
-            mode = Modes.RAP;
-        } else if (countBeats < 200) {
-            mode = Modes.ROCK;
-        } else if (countBeats < 280) {
-            mode = Modes.ROMANTIC;
-        } else if (countBeats < 300) {
-            mode = Modes.POP;
-        } else if (countBeats < 320) {
-            mode = Modes.DANCE;
-        } else if (countBeats < 450) {
-            mode = Modes.ELECTRO;
-        }
-
+    private void changeMode(Modes mode) {
         setMode(mode);
-        Log.d("Mode change", "Mode change to: " + mode.name() + " (detected " + countBeats + " beats)");
+        eventLog.write(clock.millis(), EventLog.MODE_CHANGE, this.mode, countBeats, null);
         if (listener != null) {
             listener.onAutoModeChanged(this.mode);
         }
@@ -388,8 +580,9 @@ public class LEDRenderer {
      */
     private int[] calcColors(int[] bulbs) {
 
-        if (System.currentTimeMillis() - colorInterval[mode] > lastColorChange) {
-            lastColorChange = System.currentTimeMillis();
+        long now = clock.millis();
+        if (now - colorInterval[mode] > lastColorChange) {
+            lastColorChange = now;
             for (int i = 0; i < bulbs.length; i++) {
                 bulbs[i] = nextColor(i);
                 lastColors[i] = bulbs[i];
@@ -427,7 +620,7 @@ public class LEDRenderer {
      * Call the stop function.
      */
     public void stop() {
-        lastModeChecked = 0;
+        classifiedMode = Modes.AUTOMATIC;
         if(listener != null) {
             listener.onStop();
             if (autoMode) {
@@ -0,0 +1,148 @@
+package de.htwg.moco.bulbdj.renderers;
+
+/**
+ * Class maps the color channels of the {@link LEDRenderer} (e.g. kick, snare, hat) to any number of lights.
+ *
+ * The mapping is a matrix of weights with one row per light and one column per channel.
+ * A light takes the color of the channel with the highest weighted alpha, and the sum of all
+ * weighted alphas as its alpha. Lights without any weight are off (0).
+ * The output array is allocated once, so mapping a frame does not allocate.
+ *
+ * @author Daniel Steidinger
+ * @version 1.0
+ */
+public class LightMapper {
+
+    /**
+     * Number of lights.
+     */
+    private final int lightCount;
+
+    /**
+     * Number of color channels.
+     */
+    private final int channelCount;
+
+    /**
+     * Weights, row major with one row per light.
+     */
+    private final float[] matrix;
+
+    /**
+     * Colors of the lights.
+     */
+    private final int[] output;
+
+    /**
+     * Default constructor. Each light cycles through all channels.
+     * @param lightCount number of lights
+     * @param channelCount number of color channels
+     */
+    public LightMapper(int lightCount, int channelCount) {
+        if (lightCount < 0 || channelCount <= 0)
+            throw new RuntimeException("Invalid light or channel count.");
+
+        this.lightCount = lightCount;
+        this.channelCount = channelCount;
+        this.matrix = new float[lightCount * channelCount];
+        this.output = new int[lightCount];
+        setGrouped(1);
+    }
+
+    /**
+     * Getter method.
+     * @return number of lights
+     */
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * Getter method.
+     * @return number of color channels
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Split the lights into equal groups in a row, one group per group of channels
+     * (e.g. left and right in stereo mode). The lights of a group cycle through the channels of the group.
+     * @param groups number of groups, the channel count has to be a multiple of it
+     */
+    public void setGrouped(int groups) {
+        if (groups <= 0 || channelCount % groups != 0)
+            throw new RuntimeException("Channels can not be split into " + groups + " groups.");
+
+        int channelsPerGroup = channelCount / groups;
+        for (int light = 0; light < lightCount; light++) {
+            int group = light * groups / lightCount;
+            int channel = group * channelsPerGroup + light % channelsPerGroup;
+            for (int c = 0; c < channelCount; c++) {
+                matrix[light * channelCount + c] = c == channel ? 1F : 0F;
+            }
+        }
+    }
+
+    /**
+     * Setter method.
+     * @param matrix sets the weights, one row per light with one column per channel
+     */
+    public void setMatrix(float[][] matrix) {
+        if (matrix.length != lightCount)
+            throw new RuntimeException("Matrix needs " + lightCount + " rows.");
+
+        for (int light = 0; light < lightCount; light++) {
+            if (matrix[light].length != channelCount)
+                throw new RuntimeException("Matrix needs " + channelCount + " columns.");
+            System.arraycopy(matrix[light], 0, this.matrix, light * channelCount, channelCount);
+        }
+    }
+
+    /**
+     * Setter method.
+     * @param light index of the light
+     * @param channel index of the channel
+     * @param weight sets the weight of the channel for the light, 0 if not mapped
+     */
+    public void setWeight(int light, int channel, float weight) {
+        if (weight < 0)
+            throw new RuntimeException("Weight is negative.");
+        matrix[light * channelCount + channel] = weight;
+    }
+
+    /**
+     * Map the channel colors to the lights.
+     * @param channels colors of the channels
+     * @return colors of the lights, the array is reused by the next call
+     */
+    public int[] map(int[] channels) {
+        if (channels.length != channelCount)
+            throw new RuntimeException("Expected " + channelCount + " channels.");
+
+        for (int light = 0, row = 0; light < lightCount; light++, row += channelCount) {
+            int best = -1;
+            float bestAlpha = -1;
+            float alpha = 0;
+            for (int c = 0; c < channelCount; c++) {
+                float weight = matrix[row + c];
+                if (weight <= 0)
+                    continue;
+                float weighted = weight * (channels[c] >>> 24);
+                alpha += weighted;
+                if (weighted > bestAlpha) {
+                    bestAlpha = weighted;
+                    best = c;
+                }
+            }
+
+            if (best < 0) {
+                output[light] = 0;
+            } else {
+                int a = Math.min(255, Math.round(alpha));
+                output[light] = (a << 24) | (channels[best] & 0xFFFFFF);
+            }
+        }
+        return output;
+    }
+}
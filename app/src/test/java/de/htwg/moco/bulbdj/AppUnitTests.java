@@ -1,18 +1,82 @@
 package de.htwg.moco.bulbdj;
 
+import org.jtransforms.fft.DoubleFFT_1D;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.hue.sdk.PHAccessPoint;
+import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.hue.sdk.notification.impl.PHNotificationManagerImpl;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeConfiguration;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.htwg.moco.bulbdj.bridge.BridgeConnector;
 import de.htwg.moco.bulbdj.bridge.BridgeController;
+import de.htwg.moco.bulbdj.bridge.BridgeDiscovery;
+import de.htwg.moco.bulbdj.bridge.BridgeHealth;
+import de.htwg.moco.bulbdj.bridge.BridgeLink;
+import de.htwg.moco.bulbdj.bridge.ColorCache;
 import de.htwg.moco.bulbdj.data.AppProperties;
+import de.htwg.moco.bulbdj.data.ConnectionProperties;
+import de.htwg.moco.bulbdj.data.SettingsStore;
 import de.htwg.moco.bulbdj.detector.AudioManager;
+import de.htwg.moco.bulbdj.detector.AudioSource;
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.detector.Clock;
+import de.htwg.moco.bulbdj.detector.DetectorParameters;
+import de.htwg.moco.bulbdj.detector.GainControl;
+import de.htwg.moco.bulbdj.detector.ModeClassifier;
 import de.htwg.moco.bulbdj.detector.Modes;
+import de.htwg.moco.bulbdj.detector.StereoAudioRecorder;
+import de.htwg.moco.bulbdj.detector.WavAudioSource;
+import de.htwg.moco.bulbdj.renderers.CuePlayer;
+import de.htwg.moco.bulbdj.renderers.CueRecorder;
+import de.htwg.moco.bulbdj.renderers.EffectsEngine;
+import de.htwg.moco.bulbdj.renderers.EventLog;
+import de.htwg.moco.bulbdj.renderers.LEDRenderer;
+import de.htwg.moco.bulbdj.renderers.LightMapper;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit tests which will execute on the development machine (host).
@@ -75,4 +139,1570 @@ public class AppUnitTests {
             assertEquals(null, BridgeController.getInstance().getAllLights());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Test the conversion of <<code>{@link ColorCache}</code>.
+     */
+    @Test
+    public void colorCache() {
+        ColorCache cache = new ColorCache(16);
+
+        int red = cache.indexOf(0xFFFF0000);
+        assertEquals(0, cache.getHue(red));
+        assertEquals(254, cache.getSaturation(red));
+
+        int blue = cache.indexOf(0x800000FF);
+        assertEquals(Math.round(240F / 360 * 65534), cache.getHue(blue));
+
+        // Alpha does not matter, the second lookup is cached
+        assertEquals(blue, cache.indexOf(0xFF0000FF));
+        assertEquals(2, cache.getMisses());
+        assertSame(cache.getColorState(blue), cache.getColorState(cache.indexOf(0x100000FF)));
+
+        int white = cache.indexOf(0xFFFFFFFF);
+        assertEquals(0, cache.getSaturation(white));
+    }
+
+    /**
+     * Test that a <<code>{@link BridgeLink}</code> skips a command for a light which already has the state.
+     * @throws Exception
+     */
+    @Test
+    public void lightShadowSkip() throws Exception {
+        RecordingBridge bridge = new RecordingBridge();
+        ColorCache cache = new ColorCache(16);
+        Clock.Manual clock = new Clock.Manual(10000 * MILLIS);
+        BridgeLink link = startLink(bridge, cache, clock);
+        try {
+            int red = cache.indexOf(0xFFFF0000);
+
+            link.submit("1", red, 100);
+            awaitCommands(link, 1);
+            PHLightState state = bridge.getState(0);
+            assertEquals(Integer.valueOf(cache.getHue(red)), state.getHue());
+            assertEquals(Integer.valueOf(cache.getSaturation(red)), state.getSaturation());
+            assertEquals(Integer.valueOf(100), state.getBrightness());
+
+            clock.advance(50 * MILLIS);
+            link.submit("1", red, 100);
+            awaitCommands(link, 2);
+            assertEquals(1, link.getSentCommands());
+            assertEquals(1, link.getSkippedCommands());
+            assertEquals(1, bridge.getStateCount());
+        } finally {
+            link.stop();
+        }
+    }
+
+    /**
+     * Test that a <<code>{@link BridgeLink}</code> sends only the hue or only the brightness if nothing else changed.
+     * @throws Exception
+     */
+    @Test
+    public void lightShadowPartial() throws Exception {
+        RecordingBridge bridge = new RecordingBridge();
+        ColorCache cache = new ColorCache(16);
+        Clock.Manual clock = new Clock.Manual(10000 * MILLIS);
+        BridgeLink link = startLink(bridge, cache, clock);
+        try {
+            int red = cache.indexOf(0xFFFF0000);
+            int blue = cache.indexOf(0xFF0000FF);
+            assertEquals(cache.getSaturation(red), cache.getSaturation(blue));
+
+            link.submit("1", red, 100);
+            awaitCommands(link, 1);
+
+            // Same saturation and brightness, only the hue is sent
+            clock.advance(50 * MILLIS);
+            link.submit("1", blue, 100);
+            awaitCommands(link, 2);
+            PHLightState state = bridge.getState(1);
+            assertEquals(Integer.valueOf(cache.getHue(blue)), state.getHue());
+            assertEquals(null, state.getSaturation());
+            assertEquals(null, state.getBrightness());
+
+            // Only the brightness, as shared state
+            clock.advance(50 * MILLIS);
+            link.submit("1", -1, 150);
+            awaitCommands(link, 3);
+            state = bridge.getState(2);
+            assertSame(BRIGHTNESS_STATES[150], state);
+            assertEquals(null, state.getHue());
+
+            clock.advance(50 * MILLIS);
+            link.submit("1", blue, 150);
+            awaitCommands(link, 4);
+            assertEquals(3, link.getSentCommands());
+            assertEquals(1, link.getSkippedCommands());
+        } finally {
+            link.stop();
+        }
+    }
+
+    /**
+     * Test that a <<code>{@link BridgeLink}</code> sends the complete state again after the shadow refresh.
+     * @throws Exception
+     */
+    @Test
+    public void lightShadowRefresh() throws Exception {
+        RecordingBridge bridge = new RecordingBridge();
+        ColorCache cache = new ColorCache(16);
+        Clock.Manual clock = new Clock.Manual(10000 * MILLIS);
+        BridgeLink link = startLink(bridge, cache, clock);
+        try {
+            int red = cache.indexOf(0xFFFF0000);
+
+            link.submit("1", red, 100);
+            awaitCommands(link, 1);
+
+            // Unchanged within 5 s, sent completely after
+            clock.advance(4900 * MILLIS);
+            link.submit("1", red, 100);
+            awaitCommands(link, 2);
+            assertEquals(1, bridge.getStateCount());
+
+            clock.advance(200 * MILLIS);
+            link.submit("1", red, 100);
+            awaitCommands(link, 3);
+            assertEquals(2, bridge.getStateCount());
+            PHLightState state = bridge.getState(1);
+            assertEquals(Integer.valueOf(cache.getHue(red)), state.getHue());
+            assertEquals(Integer.valueOf(cache.getSaturation(red)), state.getSaturation());
+            assertEquals(Integer.valueOf(100), state.getBrightness());
+        } finally {
+            link.stop();
+        }
+    }
+
+    /**
+     * Nanoseconds of a millisecond on the manual clock.
+     */
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * Shared brightness states of the link tests.
+     */
+    private static final PHLightState[] BRIGHTNESS_STATES = new PHLightState[256];
+
+    static {
+        for (int brightness = 0; brightness < BRIGHTNESS_STATES.length; brightness++) {
+            BRIGHTNESS_STATES[brightness] = new PHLightState();
+            BRIGHTNESS_STATES[brightness].setBrightness(brightness);
+        }
+    }
+
+    /**
+     * Start a link of light "1" to a recording bridge.
+     * @param bridge the recording bridge
+     * @param cache the color cache
+     * @param clock the clock of the link
+     * @return the started link
+     */
+    private static BridgeLink startLink(RecordingBridge bridge, ColorCache cache, Clock clock) {
+        BridgeLink link = new BridgeLink(bridge.getBridge(), cache, BRIGHTNESS_STATES);
+        link.setClock(clock);
+        link.setKnownLights(Arrays.asList("1"));
+        link.start();
+        return link;
+    }
+
+    /**
+     * Wait until the worker of a link processed a number of commands.
+     * @param link the link
+     * @param count sent and skipped commands
+     * @throws InterruptedException if the test was interrupted
+     */
+    private static void awaitCommands(BridgeLink link, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (link.getSentCommands() + link.getSkippedCommands() < count) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Commands were not processed");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Bridge which records the sent light states and accepts each at once.
+     * Without lights its resource cache is empty, so the lights are addressed by identifier.
+     */
+    static class RecordingBridge implements InvocationHandler {
+        private final List<PHLightState> states = new ArrayList<>();
+        private final List<String> stateLights = new ArrayList<>();
+        private final Map<String, PHLight> lights = new LinkedHashMap<>();
+        private final PHBridgeConfiguration configuration = new PHBridgeConfiguration();
+        private final PHBridge bridge;
+        private final PHBridgeResourcesCache cache;
+
+        RecordingBridge(String ipAddress, String... lightIds) {
+            this();
+            configuration.setIpAddress(ipAddress);
+            for (String lightId : lightIds) {
+                lights.put(lightId, new PHLight("Light " + lightId, lightId, "1", "LCT007"));
+            }
+        }
+
+        RecordingBridge() {
+            bridge = (PHBridge) Proxy.newProxyInstance(PHBridge.class.getClassLoader(),
+                    new Class<?>[]{PHBridge.class}, this);
+            cache = (PHBridgeResourcesCache) Proxy.newProxyInstance(PHBridgeResourcesCache.class.getClassLoader(),
+                    new Class<?>[]{PHBridgeResourcesCache.class}, this);
+        }
+
+        PHBridge getBridge() {
+            return bridge;
+        }
+
+        synchronized int getStateCount() {
+            return states.size();
+        }
+
+        synchronized PHLightState getState(int index) {
+            return states.get(index);
+        }
+
+        synchronized String getStateLight(int index) {
+            return stateLights.get(index);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getResourceCache":
+                    return cache;
+                case "getLights":
+                    return new HashMap<>(lights);
+                case "getBridgeConfiguration":
+                    return configuration;
+                case "updateLightState":
+                    synchronized (this) {
+                        states.add((PHLightState) args[1]);
+                        stateLights.add(args[0] instanceof PHLight ? ((PHLight) args[0]).getIdentifier() : (String) args[0]);
+                    }
+                    ((PHLightListener) args[2]).onSuccess();
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "RecordingBridge " + configuration.getIpAddress();
+                default:
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class)
+                        return false;
+                    return type.isPrimitive() && type != void.class ? 0 : null;
+            }
+        }
+    }
+
+    /**
+     * Test the routes of <<code>{@link BridgeController}</code> to the lights of two bridges,
+     * and the dropping of the bridge whose connection was lost.
+     * @throws Exception
+     */
+    @Test
+    public void bridgeRoutes() throws Exception {
+        RecordingBridge first = new RecordingBridge("10.0.0.2", "1", "2");
+        RecordingBridge second = new RecordingBridge("10.0.0.3", "1");
+        PHHueSDK sdk = PHHueSDK.getInstance();
+        sdk.addBridge(first.getBridge());
+        sdk.addBridge(second.getBridge());
+        sdk.setSelectedBridge(first.getBridge());
+
+        BridgeController controller = BridgeController.getInstance();
+        controller.setConnected(true);
+        try {
+            // The lights of the second bridge are prefixed by its number
+            List<String> lights = controller.getAllLights();
+            assertEquals(2, controller.getBridgeCount());
+            assertEquals(Arrays.asList("1", "2", "2/1"), lights);
+            assertSame(lights, controller.getAllLights());
+
+            // Each command goes to the bridge of its light, by the identifier on that bridge
+            controller.setLightBrightness("2/1", 100);
+            controller.setLightBrightness("2", 50);
+            awaitStates(second, 1);
+            awaitStates(first, 1);
+            assertEquals("1", second.getStateLight(0));
+            assertEquals(Integer.valueOf(100), second.getState(0).getBrightness());
+            assertEquals("2", first.getStateLight(0));
+            assertEquals(Integer.valueOf(50), first.getState(0).getBrightness());
+
+            // The link of a lost bridge is dropped until the connection is resumed
+            PHNotificationManagerImpl.getNotificationManager().notifyConnectionLost(new PHAccessPoint("10.0.0.3", null, null));
+            assertEquals(1, controller.getBridgeCount());
+            assertEquals(Arrays.asList("1", "2"), controller.getAllLights());
+            controller.setConnected(true);
+            assertEquals(1, controller.getBridgeCount());
+            PHNotificationManagerImpl.getNotificationManager().notifyConnectionResumed(second.getBridge());
+            assertEquals(Arrays.asList("1", "2", "2/1"), controller.getAllLights());
+        } finally {
+            controller.setConnected(false);
+            sdk.removeBridge(first.getBridge());
+            sdk.removeBridge(second.getBridge());
+        }
+    }
+
+    /**
+     * Wait until a recording bridge received a number of light states.
+     * @param bridge the recording bridge
+     * @param count received light states
+     * @throws InterruptedException if the test was interrupted
+     */
+    private static void awaitStates(RecordingBridge bridge, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.getStateCount() < count) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Light states were not received");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Test the stored list of paired bridges of <<code>{@link ConnectionProperties}</code>.
+     */
+    @Test
+    public void pairedBridges() {
+        List<PHAccessPoint> bridges = Arrays.asList(
+                new PHAccessPoint("10.0.0.3", "user3", "00:17:88:20:04:ab"),
+                new PHAccessPoint("10.0.0.4", "user4", null));
+        List<PHAccessPoint> parsed = ConnectionProperties.parseBridges(ConnectionProperties.formatBridges(bridges));
+        assertEquals(2, parsed.size());
+        assertEquals("10.0.0.3", parsed.get(0).getIpAddress());
+        assertEquals("user3", parsed.get(0).getUsername());
+        assertTrue("00:17:88:20:04:ab".equalsIgnoreCase(parsed.get(0).getMacAddress()));
+        assertNull(parsed.get(1).getMacAddress());
+        assertTrue(ConnectionProperties.parseBridges(null).isEmpty());
+        assertEquals(1, ConnectionProperties.parseBridges("10.0.0.5,,user5;broken;10.0.0.6,,").size());
+    }
+
+    /**
+     * Test the throttling of <<code>{@link BridgeHealth}</code> for a slow bridge.
+     */
+    @Test
+    public void bridgeHealth() {
+        BridgeHealth health = new BridgeHealth();
+        long interval = health.getInterval();
+
+        // In flight limit
+        int acquired = 0;
+        while (health.tryAcquire(acquired * interval))
+            acquired++;
+        assertEquals(acquired, health.getInFlight());
+        assertTrue(health.getThrottledCommands() > 0);
+
+        // Slow responses raise the interval
+        long now = 0;
+        for (int i = 0; i < 40; i++) {
+            now += 100;
+            health.onResponse(now - 500, now, true);
+        }
+        assertTrue(health.getLatency() > 150);
+        assertTrue(health.getInterval() > interval);
+        assertTrue(health.tryAcquire(now));
+        assertFalse(health.tryAcquire(now + interval));
+
+        // Unanswered commands time out
+        now += 5000;
+        assertTrue(health.tryAcquire(now));
+        assertEquals(1, health.getFailedCommands());
+        assertTrue(health.tryAcquire(now + 3000));
+        assertEquals(2, health.getFailedCommands());
+        assertEquals(1, health.getInFlight());
+    }
+
+    /**
+     * Test that a response arriving after the timeout of its command changes neither the commands
+     * in flight nor the interval of <code>{@link BridgeHealth}</code>.
+     */
+    @Test
+    public void bridgeHealthLateResponse() {
+        BridgeHealth health = new BridgeHealth();
+        int stamp = health.acquire(0);
+        assertTrue(stamp != BridgeHealth.THROTTLED);
+
+        // The first command times out, the next one starts a new generation
+        int next = health.acquire(2500);
+        assertTrue(next != BridgeHealth.THROTTLED);
+        assertTrue(next != stamp);
+        assertEquals(1, health.getFailedCommands());
+        assertEquals(1, health.getInFlight());
+        long interval = health.getInterval();
+        float latency = health.getLatency();
+
+        // Late response of the expired command after the adapt period
+        health.onResponse(stamp, 0, 3000, true);
+        health.release(stamp);
+        assertEquals(1, health.getInFlight());
+        assertEquals(interval, health.getInterval());
+        assertEquals(latency, health.getLatency(), 0);
+        assertEquals(0, health.getAnsweredCommands());
+        assertEquals(1, health.getLateResponses());
+
+        // Response of the command in flight
+        health.onResponse(next, 2500, 3000, true);
+        assertEquals(0, health.getInFlight());
+        assertEquals(1, health.getAnsweredCommands());
+    }
+
+    /**
+     * Test the mapping of <<code>{@link LightMapper}</code> for more lights than channels.
+     */
+    @Test
+    public void lightMapping() {
+        int[] channels = {0xFF110000, 0x80002200, 0x00000033, 0xFF440000, 0xFF005500, 0xFF000066};
+
+        LightMapper mapper = new LightMapper(24, 6);
+        mapper.setGrouped(2);
+        int[] lights = mapper.map(channels);
+        assertEquals(24, lights.length);
+        assertEquals(channels[0], lights[0]);
+        assertEquals(channels[1], lights[1]);
+        assertEquals(channels[2], lights[11]);
+        assertEquals(channels[3], lights[12]);
+        assertEquals(channels[5], lights[23]);
+        assertSame(lights, mapper.map(channels));
+
+        mapper.setMatrix(new float[24][6]);
+        mapper.setWeight(0, 0, 0.5F);
+        mapper.setWeight(0, 1, 1F);
+        lights = mapper.map(channels);
+        assertEquals(0, lights[1]);
+        assertEquals(0xFF002200, lights[0]);
+    }
+
+    /**
+     * Test the import and the binary round trip of <<code>{@link SettingsStore}</code>.
+     * @throws Exception
+     */
+    @Test
+    public void settingsStore() throws Exception {
+        File directory = File.createTempFile("settings", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        File legacy = new File(directory, "AppProp.properties");
+        try (FileOutputStream out = new FileOutputStream(legacy)) {
+            out.write("brightness=99\nmode_switch=false\nstereo=".getBytes("UTF-8"));
+        }
+
+        // Import of the old properties file
+        SettingsStore store = new SettingsStore();
+        store.load(directory);
+        AppProperties properties = new AppProperties(store);
+        assertEquals(99, properties.getBrightness());
+        assertFalse(properties.isModeSwitch());
+        assertFalse(properties.isStereo());
+        assertEquals(200, properties.getDelay());
+        assertFalse(legacy.exists());
+
+        // Round trip
+        properties.setEffect(2);
+        store.putString("user_name", "äbc=1");
+        properties.saveProperties();
+        store.flush();
+        SettingsStore reloaded = new SettingsStore();
+        reloaded.load(directory);
+        assertEquals(2, reloaded.getInt("effect", 0));
+        assertEquals(99, reloaded.getInt("brightness", 0));
+        assertEquals("äbc=1", reloaded.getString("user_name", null));
+
+        new File(directory, "settings.bin").delete();
+        directory.delete();
+    }
+
+    /**
+     * Test the parsing of the probe of <<code>{@link BridgeConnector}</code>.
+     */
+    @Test
+    public void bridgeProbe() {
+        List<String> lights = BridgeConnector.parseLights("{\"1\":{\"name\":\"a\"},\"7\":{\"name\":\"b\"}}");
+        assertEquals(2, lights.size());
+        assertTrue(lights.contains("1") && lights.contains("7"));
+        assertEquals(null, BridgeConnector.parseLights("[{\"error\":{\"type\":1}}]"));
+        assertEquals(null, BridgeConnector.probe("", "user"));
+    }
+
+    /**
+     * Test the <<code>{@link BridgeDiscovery}</code> against a local portal and a local UPnP responder.
+     * @throws Exception
+     */
+    @Test
+    public void bridgeDiscovery() throws Exception {
+        final ServerSocket portal = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final DatagramSocket upnp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Thread responders = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = portal.accept();
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+                    byte[] body = "[{\"id\":\"001788fffe100491\",\"internalipaddress\":\"10.0.0.2\"}]".getBytes("UTF-8");
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                    out.write(body);
+                    socket.close();
+
+                    DatagramPacket request = new DatagramPacket(new byte[1024], 1024);
+                    upnp.receive(request);
+                    byte[] response = ("HTTP/1.1 200 OK\r\nSERVER: Linux/3.14.0 UPnP/1.0 IpBridge/1.26.0\r\n" +
+                            "hue-bridgeid: 001788FFFE2004AB\r\nLOCATION: http://10.0.0.3:80/description.xml\r\n\r\n").getBytes("UTF-8");
+                    upnp.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                } catch (IOException e) {
+                }
+            }
+        });
+        responders.start();
+
+        List<BridgeDiscovery.Strategy> strategies = new ArrayList<>();
+        strategies.add(new BridgeDiscovery.PortalStrategy("http://127.0.0.1:" + portal.getLocalPort() + "/", 1000));
+        strategies.add(new BridgeDiscovery.UpnpStrategy("127.0.0.1", upnp.getLocalPort(), 500));
+        strategies.add(new BridgeDiscovery.AddressStrategy("127.0.0.1:1", 200));
+        BridgeDiscovery discovery = new BridgeDiscovery(strategies);
+
+        final List<List<PHAccessPoint>> batches = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        BridgeDiscovery.DiscoveryListener listener = new BridgeDiscovery.DiscoveryListener() {
+            @Override
+            public void onAccessPointsFound(List<PHAccessPoint> accessPoints) {
+                synchronized (batches) {
+                    batches.add(accessPoints);
+                }
+            }
+
+            @Override
+            public void onDiscoveryFinished(List<PHAccessPoint> accessPoints) {
+                finished.countDown();
+            }
+        };
+        discovery.search(listener, false);
+        assertTrue(finished.await(3, TimeUnit.SECONDS));
+        responders.join();
+        portal.close();
+        upnp.close();
+
+        // One batch per answering strategy, the last contains both bridges
+        assertEquals(2, batches.size());
+        List<PHAccessPoint> found = discovery.getCachedAccessPoints();
+        assertEquals(2, found.size());
+        List<String> macAddresses = new ArrayList<>();
+        for (PHAccessPoint accessPoint : found) {
+            macAddresses.add(accessPoint.getMacAddress().toLowerCase());
+        }
+        assertTrue(macAddresses.contains("00:17:88:10:04:91"));
+        assertTrue(macAddresses.contains("00:17:88:20:04:ab"));
+
+        // The second search is answered from the cache, the responders are closed
+        batches.clear();
+        long start = System.nanoTime();
+        discovery.search(listener, false);
+        assertTrue(System.nanoTime() - start < 50000000);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+
+        // A removed listener, e.g. of a destroyed activity, is not called by the running search
+        batches.clear();
+        final CountDownLatch removedFinished = new CountDownLatch(1);
+        BridgeDiscovery.DiscoveryListener removed = new BridgeDiscovery.DiscoveryListener() {
+            @Override
+            public void onAccessPointsFound(List<PHAccessPoint> accessPoints) {
+            }
+
+            @Override
+            public void onDiscoveryFinished(List<PHAccessPoint> accessPoints) {
+                removedFinished.countDown();
+            }
+        };
+        discovery.search(removed, true);
+        discovery.removeListener(listener);
+        discovery.removeListener(removed);
+        assertFalse(removedFinished.await(1500, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test the ring and the dump of the <<code>{@link EventLog}</code>.
+     * @throws Exception
+     */
+    @Test
+    public void eventLog() throws Exception {
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 6; i++) {
+            log.write(1000 + i, EventLog.UPDATE, 2, i, new int[]{0xFF000000 | i, i});
+        }
+        log.write(2000, EventLog.MODE_CHANGE, 3, 150, null);
+        assertEquals(4, log.getCount());
+        assertEquals(7, log.getWritten());
+
+        File file = File.createTempFile("events", ".bin");
+        log.dump(file);
+        assertEquals(16 + 4 * EventLog.RECORD_SIZE, file.length());
+
+        // The oldest records are overwritten
+        StringWriter text = new StringWriter();
+        EventLog.print(file, text);
+        String[] lines = text.toString().split("\\r?\\n");
+        assertEquals(4, lines.length);
+        assertEquals("1003 update 2 3 ff000003 3", lines[0]);
+        assertEquals("2000 mode 3 150", lines[3]);
+        file.delete();
+    }
+
+    /**
+     * Test the copy on write of the <<code>{@link DetectorParameters}</code>.
+     */
+    @Test
+    public void detectorParameters() {
+        BeatDetector detector = new BeatDetector(22050, 512);
+        DetectorParameters before = detector.getParameters();
+        assertSame(DetectorParameters.DEFAULT, before);
+
+        detector.setSensitivity(1.6F);
+        detector.setManualRange(0, 100);
+        DetectorParameters after = detector.getParameters();
+        assertEquals(1.35F, before.getSensitivity(), 0);
+        assertFalse(before.hasManualRange());
+        assertEquals(1.6F, after.getSensitivity(), 0);
+        assertEquals(63, after.getManualHigh());
+
+        detector.clearManualRange();
+        assertFalse(detector.getParameters().hasManualRange());
+        assertEquals(1.6F, detector.getParameters().getSensitivity(), 0);
+    }
+
+    /**
+     * Test the refractory periods per beat type of the <<code>{@link BeatDetector}</code>.
+     */
+    @Test
+    public void beatRefractory() {
+        BeatDetector detector = new BeatDetector(22050, 512);
+        detector.setRefractory(BeatDetector.BEAT_TYPE.KICK, 100);
+        double[] silence = new double[512];
+        double[] loud = new double[512];
+        Arrays.fill(loud, 1);
+
+        long frame = 23000000;
+        long time = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.update(silence, time += frame);
+        }
+
+        // A broadband hit is a kick, a snare and a hat at once
+        detector.update(loud, time += frame);
+        assertTrue(detector.isKick() && detector.isSnare() && detector.isHat());
+
+        // The refractory period of the kick does not suppress the snare
+        detector.update(loud, time += frame);
+        assertFalse(detector.isKick());
+        assertTrue(detector.isSnare());
+    }
+
+    /**
+     * Test the classification and the hysteresis of the <<code>{@link ModeClassifier}</code>
+     * with the default model, which decides by the rate of the kicks.
+     */
+    @Test
+    public void modeClassifier() {
+        ModeClassifier classifier = new ModeClassifier();
+        long frame = 23000000;
+        long time = 0;
+
+        // A kick on every beat at 120 bpm, two kicks per second
+        int frames = 0;
+        while (classifier.getMode() == Modes.AUTOMATIC && frames < 2000) {
+            classifier.update(time += frame, isBeat(time, frame, 120), false, false, 1, 1, 1);
+            frames++;
+        }
+        assertEquals(Modes.DANCE, classifier.getMode());
+        assertTrue(frames * frame >= ModeClassifier.WARM_UP + (ModeClassifier.HOLD - 1) * ModeClassifier.EVALUATION_PERIOD);
+
+        // The mode holds for the whole song
+        for (int i = 0; i < 2000; i++) {
+            classifier.update(time += frame, isBeat(time, frame, 120), false, false, 1, 1, 1);
+            assertEquals(Modes.DANCE, classifier.getMode());
+        }
+
+        // A kick on every beat at 87 bpm, the mode holds until a new mode has won several evaluations
+        long change = time;
+        long firstChange = 0;
+        while (classifier.getMode() != Modes.RAP && frames < 6000) {
+            classifier.update(time += frame, isBeat(time, frame, 87), false, false, 1, 1, 1);
+            frames++;
+            if (firstChange == 0 && classifier.getMode() != Modes.DANCE)
+                firstChange = time;
+        }
+        assertEquals(Modes.RAP, classifier.getMode());
+        assertTrue(firstChange - change >= ModeClassifier.HOLD * ModeClassifier.EVALUATION_PERIOD);
+
+        // Fast syncopated kicks and a slow ballad
+        assertEquals(Modes.ELECTRO, classifyKicks(140 * 3 / 2));
+        assertEquals(Modes.ROMANTIC, classifyKicks(66));
+
+        // The same frames give the same features and the same mode
+        ModeClassifier other = new ModeClassifier();
+        float[] features = new float[ModeClassifier.FEATURE_COUNT];
+        float[] otherFeatures = new float[ModeClassifier.FEATURE_COUNT];
+        classifier.reset();
+        assertEquals(Modes.AUTOMATIC, classifier.getMode());
+        time = 0;
+        for (int i = 0; i < 1000; i++) {
+            classifier.update(time += frame, i % 3 == 0, i % 4 == 0, i % 2 == 0, 3, 2, 1);
+            other.update(time, i % 3 == 0, i % 4 == 0, i % 2 == 0, 3, 2, 1);
+        }
+        classifier.getFeatures(features);
+        other.getFeatures(otherFeatures);
+        assertTrue(Arrays.equals(features, otherFeatures));
+        assertEquals(other.getMode(), classifier.getMode());
+        assertEquals(0.5F, features[ModeClassifier.LOW_SHARE], 0.01F);
+
+        // A frame has to cost less than 0.1 ms
+        long start = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            classifier.update(time += frame, i % 3 == 0, false, i % 2 == 0, 3, 2, 1);
+        }
+        assertTrue((System.nanoTime() - start) / 100000 < 100000);
+    }
+
+    /**
+     * Is there a beat in a frame.
+     * @param time end of the frame in nanoseconds
+     * @param frame length of the frame in nanoseconds
+     * @param bpm beats per minute
+     * @return true if a beat falls into the frame
+     */
+    private static boolean isBeat(long time, long frame, int bpm) {
+        long period = 60000000000L / bpm;
+        return time / period != (time - frame) / period;
+    }
+
+    /**
+     * Classify kicks of a tempo with a new default classifier.
+     * @param bpm kicks per minute
+     * @return the classified mode after a minute
+     */
+    private static Modes classifyKicks(int bpm) {
+        ModeClassifier classifier = new ModeClassifier();
+        long frame = 23000000;
+        long time = 0;
+        while (time < 60000000000L) {
+            classifier.update(time += frame, isBeat(time, frame, bpm), false, false, 1, 1, 1);
+        }
+        return classifier.getMode();
+    }
+
+    /**
+     * Test the detection with the <<code>{@link GainControl}</code> and the adaptive noise floors
+     * of the <<code>{@link BeatDetector}</code> over a range of 40 dB.
+     */
+    @Test
+    public void gainControl() {
+        int loud = countKicks(0.5, true);
+        int quiet = countKicks(0.005, true);
+
+        // Two kicks per second for 20 seconds, the first seconds the history fills
+        assertTrue(loud >= 30 && loud <= 40);
+        assertTrue(Math.abs(loud - quiet) <= 2);
+
+        // The gain brings the level to the target
+        GainControl gainControl = new GainControl();
+        double[] frame = new double[512];
+        frame[20] = 0.01 * 256;
+        long time = 0;
+        for (int i = 0; i < 1000; i++) {
+            gainControl.update(GainControl.level(frame), time += 23000000);
+        }
+        assertEquals(-40F, GainControl.level(frame), 0.1F);
+        assertEquals(GainControl.TARGET_LEVEL + 40F, gainControl.getGainDb(), 0.1F);
+
+        // Silence is not amplified
+        gainControl.reset();
+        gainControl.process(new double[512], time);
+        assertEquals(1F, gainControl.getGain(), 0);
+    }
+
+    /**
+     * Detect the kicks of a synthetic track: a decaying 60 Hz tone twice per second over faint noise.
+     * @param amplitude of the kicks
+     * @param gain true to normalize the frames with a {@link GainControl}
+     * @return number of detected kicks
+     */
+    private static int countKicks(double amplitude, boolean gain) {
+        int sampleRate = 22050;
+        int blockSize = 512;
+        BeatDetector detector = new BeatDetector(sampleRate, blockSize);
+        detector.setRefractory(BeatDetector.BEAT_TYPE.KICK, 250);
+        GainControl gainControl = new GainControl();
+        DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+        Random random = new Random(1);
+        double[] frame = new double[blockSize];
+        int kicks = 0;
+        for (int block = 0; block < sampleRate * 20 / blockSize; block++) {
+            for (int i = 0; i < blockSize; i++) {
+                int n = block * blockSize + i;
+                double t = (double) (n % (sampleRate / 2)) / sampleRate;
+                frame[i] = amplitude * (Math.sin(2 * Math.PI * 60 * t) * Math.exp(-t / 0.05) + 0.01 * random.nextGaussian());
+            }
+            fft.realForward(frame);
+            long time = (long) ((block + 1) * blockSize * 1e9 / sampleRate);
+            if (gain)
+                gainControl.process(frame, time);
+            detector.update(frame, time);
+            if (detector.isKick())
+                kicks++;
+        }
+        return kicks;
+    }
+
+    /**
+     * Tests that a restored detector state detects like the warm detector, without a warm up.
+     * @throws Exception
+     */
+    @Test
+    public void detectorState() throws Exception {
+        int sampleRate = 22050;
+        int blockSize = 512;
+        BeatDetector warm = new BeatDetector(sampleRate, blockSize);
+        assertNull(warm.saveState());
+
+        double[][] frames = kickFrames(sampleRate, blockSize, 15);
+        int warmUp = sampleRate * 10 / blockSize;
+        for (int block = 0; block < warmUp; block++)
+            warm.update(frames[block].clone(), frameTime(block, sampleRate, blockSize));
+
+        // Through the state file like a restart of the app
+        File file = File.createTempFile("detector", ".bin");
+        try {
+            long now = System.currentTimeMillis();
+            float[] saved = warm.saveState();
+            AudioManager.writeStates(file, new float[][]{saved, null}, now);
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+            assertNull(AudioManager.readStates(file, now + AudioManager.MAX_STATE_AGE + 1));
+            float[][] states = AudioManager.readStates(file, now + 1000);
+            assertEquals(2, states.length);
+            assertArrayEquals(saved, states[0], 1e-6F);
+            assertNull(states[1]);
+
+            assertFalse(new BeatDetector(sampleRate, 1024).restoreState(states[0]));
+            BeatDetector restored = new BeatDetector(sampleRate, blockSize);
+            assertTrue(restored.restoreState(states[0]));
+            assertArrayEquals(saved, restored.saveState(), 1e-6F);
+            BeatDetector cold = new BeatDetector(sampleRate, blockSize);
+
+            int warmKicks = 0, restoredKicks = 0, coldKicks = 0;
+            for (int block = warmUp; block < frames.length; block++) {
+                long time = frameTime(block, sampleRate, blockSize);
+                warm.update(frames[block].clone(), time);
+                restored.update(frames[block].clone(), time);
+                cold.update(frames[block].clone(), time);
+                assertEquals(warm.isKick(), restored.isKick());
+                warmKicks += warm.isKick() ? 1 : 0;
+                restoredKicks += restored.isKick() ? 1 : 0;
+                coldKicks += cold.isKick() ? 1 : 0;
+            }
+            assertEquals(warmKicks, restoredKicks);
+            assertTrue(warmKicks > 0);
+            assertTrue(coldKicks != warmKicks);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * Tests that the onset time of a kick is located within its frame, far more exact than the frame time.
+     */
+    @Test
+    public void onsetTime() {
+        int sampleRate = 22050;
+        int blockSize = 512;
+        BeatDetector detector = new BeatDetector(sampleRate, blockSize);
+        detector.setRefractory(BeatDetector.BEAT_TYPE.KICK, 250);
+        final List<Long> onsets = new ArrayList<>();
+        detector.setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
+            @Override
+            public void onBeatDetected(ArrayList<Object[]> beats) {
+                for (Object[] beat : beats) {
+                    if (beat[0] == BeatDetector.BEAT_TYPE.KICK)
+                        onsets.add((Long) beat[2]);
+                }
+            }
+        });
+
+        double[][] frames = kickFrames(sampleRate, blockSize, 15);
+        double sumError = 0, maxError = 0, maxFrameError = 0;
+        int kicks = 0;
+        for (int block = 0; block < frames.length; block++) {
+            long time = frameTime(block, sampleRate, blockSize);
+            detector.update(frames[block], time);
+            if (!detector.isKick() || block * blockSize < sampleRate)
+                continue;
+
+            // A kick starts every half second
+            long onset = onsets.get(onsets.size() - 1);
+            assertEquals(onset, detector.getOnsetTime(BeatDetector.BEAT_TYPE.KICK));
+            long sample = Math.round((double) (block + 1) * blockSize / (sampleRate / 2)) * (sampleRate / 2);
+            double expected = sample * 1e9 / sampleRate;
+            sumError += Math.abs(onset - expected) / 1e6;
+            maxError = Math.max(maxError, Math.abs(onset - expected) / 1e6);
+            maxFrameError = Math.max(maxFrameError, Math.abs(time - expected) / 1e6);
+            kicks++;
+        }
+
+        // Onsets at the end of a frame are cut off before their peak and located a bit early
+        assertTrue(kicks >= 20);
+        assertTrue(sumError / kicks < 1);
+        assertTrue(maxError < 2.5);
+        assertTrue(maxFrameError > 10);
+    }
+
+    /**
+     * Spectra of a kick every half second with some noise.
+     * @param sampleRate sample rate in Hz
+     * @param blockSize samples per frame
+     * @param seconds length in seconds
+     * @return the fft frames
+     */
+    private static double[][] kickFrames(int sampleRate, int blockSize, int seconds) {
+        DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+        Random random = new Random(1);
+        double[][] frames = new double[sampleRate * seconds / blockSize][blockSize];
+        for (int block = 0; block < frames.length; block++) {
+            for (int i = 0; i < blockSize; i++) {
+                int n = block * blockSize + i;
+                double t = (double) (n % (sampleRate / 2)) / sampleRate;
+                frames[block][i] = 0.5 * (Math.sin(2 * Math.PI * 60 * t) * Math.exp(-t / 0.05) + 0.01 * random.nextGaussian());
+            }
+            fft.realForward(frames[block]);
+        }
+        return frames;
+    }
+
+    /**
+     * Capture time of a frame.
+     * @param block index of the frame
+     * @param sampleRate sample rate in Hz
+     * @param blockSize samples per frame
+     * @return time after the last sample of the frame in nanoseconds
+     */
+    private static long frameTime(int block, int sampleRate, int blockSize) {
+        return (long) ((block + 1) * blockSize * 1e9 / sampleRate);
+    }
+
+    /**
+     * Test the selection of the <<code>{@link EffectsEngine}</code>: stored indices out of range select no effect,
+     * and without an effect the colors are passed through.
+     */
+    @Test
+    public void effectSelection() {
+        assertEquals(EffectsEngine.Effect.RIPPLE, EffectsEngine.effectOf(2));
+        assertEquals(EffectsEngine.Effect.NONE, EffectsEngine.effectOf(-1));
+        assertEquals(EffectsEngine.Effect.NONE, EffectsEngine.effectOf(EffectsEngine.Effect.values().length));
+
+        EffectsEngine engine = new EffectsEngine();
+        engine.setLightCount(3);
+        int[] colors = {0x80FF0000, 0x8000FF00, 0x800000FF};
+        assertTrue(Arrays.equals(colors, engine.render(colors, null, 0)));
+    }
+
+    /**
+     * Test the chase of the <<code>{@link EffectsEngine}</code>: the head runs along the line and wraps around.
+     */
+    @Test
+    public void effectChase() {
+        EffectsEngine engine = new EffectsEngine();
+        engine.setLightCount(5);
+        engine.setEffect(EffectsEngine.Effect.CHASE);
+        int[] colors = {0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000};
+
+        int[] output = engine.render(colors, null, 0);
+        assertEquals(0xFFFF0000, output[0]);
+        assertEquals(0x00FF0000, output[2]);
+        assertEquals(0xFFFF0000, output[4]);
+
+        // Half way after half a second at one position per second
+        output = engine.render(colors, null, 500);
+        assertEquals(0x00FF0000, output[0]);
+        assertEquals(0xFFFF0000, output[2]);
+        assertEquals(0x00FF0000, output[4]);
+    }
+
+    /**
+     * Test the ripples of the <<code>{@link EffectsEngine}</code>: a ring grows from the origin on a kick
+     * and fades out over its lifetime.
+     */
+    @Test
+    public void effectRipple() {
+        EffectsEngine engine = new EffectsEngine();
+        engine.setLightCount(5);
+        engine.setEffect(EffectsEngine.Effect.RIPPLE);
+        engine.setRippleOrigin(0F, 0.5F);
+        int[] colors = {0xFF00, 0xFF00, 0xFF00, 0xFF00, 0xFF00};
+
+        int[] output = engine.render(colors, null, 1000);
+        for (int color : output)
+            assertEquals(0x0000FF00, color);
+
+        engine.onKick(1F, 1000);
+        output = engine.render(colors, null, 1000);
+        assertEquals(0xFF00FF00, output[0]);
+        assertEquals(0x0000FF00, output[2]);
+
+        // The ring reached the middle at half of its lifetime
+        output = engine.render(colors, null, 1500);
+        assertEquals(0x0000FF00, output[0]);
+        assertEquals(127, output[2] >>> 24);
+        assertEquals(0x0000FF00, output[4]);
+
+        output = engine.render(colors, null, 2100);
+        for (int color : output)
+            assertEquals(0x0000FF00, color);
+    }
+
+    /**
+     * Test the sweep of the <<code>{@link EffectsEngine}</code>: each light shows the bins between its neighbours,
+     * a tone between the middles of two lights is not skipped.
+     */
+    @Test
+    public void effectSweep() {
+        EffectsEngine engine = new EffectsEngine();
+        engine.setLightCount(4);
+        engine.setEffect(EffectsEngine.Effect.SWEEP);
+        int[] colors = {0xFF, 0xFF, 0xFF, 0xFF};
+
+        int[] output = engine.render(colors, null, 0);
+        for (int color : output)
+            assertEquals(0xFF, color);
+
+        // 256 bins on a logarithmic scale: the third light covers bins 16 to 100, the fourth 101 to 255
+        int[] tones = {50, 200};
+        int[] lights = {2, 3};
+        for (int t = 0; t < tones.length; t++) {
+            double[] fft = new double[512];
+            fft[2 * tones[t]] = 100;
+            output = engine.render(colors, fft, 0);
+            for (int i = 0; i < 4; i++) {
+                if (i == lights[t])
+                    assertTrue(output[i] >>> 24 > 0);
+                else
+                    assertEquals(0xFF, output[i]);
+            }
+        }
+    }
+
+    /**
+     * Test the bands of the frequency mode of the <<code>{@link LEDRenderer}</code>:
+     * one channel per light, the tone in the right band and a smooth release.
+     */
+    @Test
+    public void frequencyBands() {
+        LEDRenderer renderer = LEDRenderer.getInstance();
+        Clock.Manual clock = new Clock.Manual(0);
+        renderer.setClock(clock);
+        renderer.setFrequencyChannels(5);
+        final List<int[]> updates = new ArrayList<>();
+        renderer.setLEDRendererListener(new LEDRenderer.LEDRendererListener() {
+            @Override
+            public void onUpdate(int[] bulbs) {
+                updates.add(bulbs.clone());
+            }
+
+            @Override
+            public void onStop() {
+            }
+
+            @Override
+            public void onAutoModeChanged(int mode) {
+            }
+        });
+
+        try {
+            // A tone in bin 200 of 256, in the highest of the logarithmic bands
+            double[] tone = new double[512];
+            tone[400] = 100;
+            for (int i = 0; i < 10; i++) {
+                clock.advance(60000000);
+                renderer.updateFrequency(tone);
+            }
+            int[] bulbs = updates.get(updates.size() - 1);
+            assertEquals(5, bulbs.length);
+            assertEquals(255, bulbs[4] >>> 24);
+            assertEquals(0, bulbs[0] >>> 24);
+
+            // The band falls smoothly after the tone
+            clock.advance(60000000);
+            renderer.updateFrequency(new double[512]);
+            int alpha = updates.get(updates.size() - 1)[4] >>> 24;
+            assertTrue(alpha > 0 && alpha < 255);
+        } finally {
+            renderer.setLEDRendererListener(null);
+            renderer.setFrequencyChannels(3);
+            renderer.setClock(Clock.SYSTEM);
+        }
+    }
+
+    /**
+     * Test the <<code>{@link StereoAudioRecorder}</code>: both channel spectra of one complex transform
+     * match the transforms of each channel, and the mix is their average.
+     */
+    @Test
+    public void stereoTransform() {
+        int blockSize = 512;
+        Random random = new Random(2);
+        short[] samples = new short[blockSize * 2];
+        double[] left = new double[blockSize];
+        double[] right = new double[blockSize];
+        for (int i = 0; i < blockSize; i++) {
+            samples[2 * i] = (short) (10000 * Math.sin(2 * Math.PI * 5 * i / blockSize) + 1000 * random.nextGaussian());
+            samples[2 * i + 1] = (short) (3000 * Math.cos(2 * Math.PI * 40 * i / blockSize) + 500);
+            left[i] = samples[2 * i] / 32768.0;
+            right[i] = samples[2 * i + 1] / 32768.0;
+        }
+        DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+        fft.realForward(left);
+        fft.realForward(right);
+
+        double[] result = new double[blockSize * 3];
+        StereoAudioRecorder.transform(samples, samples.length, fft, new double[blockSize * 2], result);
+        assertArrayEquals(left, Arrays.copyOfRange(result, blockSize, blockSize * 2), 1e-9);
+        assertArrayEquals(right, Arrays.copyOfRange(result, blockSize * 2, blockSize * 3), 1e-9);
+        for (int i = 0; i < blockSize; i++) {
+            assertEquals((left[i] + right[i]) / 2, result[i], 1e-9);
+        }
+
+        // Samples missing after a short read are silent
+        double[] shortLeft = new double[blockSize];
+        for (int i = 0; i < blockSize / 2; i++) {
+            shortLeft[i] = samples[2 * i] / 32768.0;
+        }
+        fft.realForward(shortLeft);
+        StereoAudioRecorder.transform(samples, blockSize, fft, new double[blockSize * 2], result);
+        assertArrayEquals(shortLeft, Arrays.copyOfRange(result, blockSize, blockSize * 2), 1e-9);
+    }
+
+    /**
+     * Test the stereo mode: a detector per channel of the <<code>{@link StereoAudioRecorder}</code>
+     * finds the kicks of its own channel only, and the <<code>{@link LEDRenderer}</code> shows
+     * the beats of the left channel on the first and of the right channel on the second group of bulbs.
+     */
+    @Test
+    public void stereoBeats() {
+        int sampleRate = 22050;
+        int blockSize = 512;
+        BeatDetector[] detectors = {new BeatDetector(sampleRate, blockSize), new BeatDetector(sampleRate, blockSize)};
+        final List<ArrayList<Object[]>> beats = new ArrayList<>();
+        beats.add(new ArrayList<Object[]>());
+        beats.add(new ArrayList<Object[]>());
+        for (int c = 0; c < detectors.length; c++) {
+            final int channel = c;
+            detectors[c].setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
+                @Override
+                public void onBeatDetected(ArrayList<Object[]> detected) {
+                    beats.set(channel, new ArrayList<>(detected));
+                }
+            });
+        }
+
+        // Kicks only on the left channel, quiet noise on both
+        Random random = new Random(3);
+        DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+        short[] samples = new short[blockSize * 2];
+        double[] work = new double[blockSize * 2];
+        double[] result = new double[blockSize * 3];
+        int[] kicks = new int[2];
+        ArrayList<Object[]> leftKick = null;
+        for (int block = 0; block < sampleRate * 10 / blockSize; block++) {
+            for (int i = 0; i < blockSize; i++) {
+                int n = block * blockSize + i;
+                double t = (double) (n % (sampleRate / 2)) / sampleRate;
+                double kick = Math.sin(2 * Math.PI * 60 * t) * Math.exp(-t / 0.05);
+                samples[2 * i] = (short) (16000 * kick + 160 * random.nextGaussian());
+                samples[2 * i + 1] = (short) (160 * random.nextGaussian());
+            }
+            StereoAudioRecorder.transform(samples, samples.length, fft, work, result);
+
+            long time = frameTime(block, sampleRate, blockSize);
+            detectors[StereoAudioRecorder.LEFT].update(Arrays.copyOfRange(result, blockSize, blockSize * 2), time);
+            detectors[StereoAudioRecorder.RIGHT].update(Arrays.copyOfRange(result, blockSize * 2, blockSize * 3), time);
+            if (block * blockSize < sampleRate)
+                continue;
+            for (int c = 0; c < detectors.length; c++) {
+                if (detectors[c].isKick())
+                    kicks[c]++;
+            }
+            if (detectors[StereoAudioRecorder.LEFT].isKick())
+                leftKick = beats.get(StereoAudioRecorder.LEFT);
+        }
+        assertTrue(kicks[StereoAudioRecorder.LEFT] >= 15);
+        assertEquals(0, kicks[StereoAudioRecorder.RIGHT]);
+        assertNotNull(leftKick);
+
+        LEDRenderer renderer = LEDRenderer.getInstance();
+        Clock.Manual clock = new Clock.Manual(0);
+        renderer.setClock(clock);
+        final List<int[]> updates = new ArrayList<>();
+        renderer.setLEDRendererListener(new LEDRenderer.LEDRendererListener() {
+            @Override
+            public void onUpdate(int[] bulbs) {
+                updates.add(bulbs.clone());
+            }
+
+            @Override
+            public void onStop() {
+            }
+
+            @Override
+            public void onAutoModeChanged(int mode) {
+            }
+        });
+
+        try {
+            // Kick, snare and hat of the left channel, then of the right channel
+            clock.advance(1000000000L);
+            renderer.updateStereoBeats(leftKick, new ArrayList<Object[]>());
+            int[] bulbs = updates.get(updates.size() - 1);
+            assertEquals(6, bulbs.length);
+            assertNotEquals(bulbs[3], bulbs[0]);
+            assertEquals(bulbs[3], bulbs[4]);
+            assertEquals(bulbs[3], bulbs[5]);
+
+            clock.advance(1000000000L);
+            renderer.updateStereoBeats(new ArrayList<Object[]>(), leftKick);
+            bulbs = updates.get(updates.size() - 1);
+            assertNotEquals(bulbs[0], bulbs[3]);
+            assertEquals(bulbs[0], bulbs[1]);
+            assertEquals(bulbs[0], bulbs[2]);
+        } finally {
+            renderer.setLEDRendererListener(null);
+            renderer.setClock(Clock.SYSTEM);
+        }
+    }
+
+    /**
+     * Test the recording and the replay of cues with the <<code>{@link CueRecorder}</code>
+     * and the <<code>{@link CuePlayer}</code>.
+     * @throws Exception
+     */
+    @Test
+    public void cueReplay() throws Exception {
+        CueRecorder recorder = new CueRecorder(1024 * 1024);
+        assertFalse(recorder.record(0, 0, new int[3]));
+
+        recorder.start(3);
+        final List<int[]> recorded = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Only the first light changes with every frame
+            int[] colors = {0xFF000000 | i, 0x80FF0000, i < 500 ? 0x4000FF00 : 0x4000FF01};
+            recorded.add(colors);
+            assertTrue(recorder.record(1000 + i * 50, i % 4 == 0 ? CueRecorder.KICK : 0, colors));
+        }
+        recorder.stop();
+        assertEquals(1000, recorder.getFrameCount());
+
+        // Time, flags, mask and one color per frame, plus the changes of the other lights
+        assertTrue(recorder.getSize() < 1000 * 8 + 2 * 4);
+
+        File file = File.createTempFile("cues", ".bin");
+        file.deleteOnExit();
+        recorder.save(file);
+
+        CuePlayer player = new CuePlayer(file, false);
+        assertEquals(3, player.getLightCount());
+        assertEquals(1000, player.getFrameCount());
+        final List<int[]> replayed = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        final int[] kicks = {0};
+        final CountDownLatch finished = new CountDownLatch(1);
+        player.setCuePlayerListener(new CuePlayer.CuePlayerListener() {
+            @Override
+            public void onCue(long time, int flags, long changed, int[] colors) {
+                replayed.add(colors.clone());
+                times.add(time);
+                if ((flags & CueRecorder.KICK) != 0)
+                    kicks[0]++;
+            }
+
+            @Override
+            public void onFinished() {
+                finished.countDown();
+            }
+        });
+        player.start();
+        player.join();
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertEquals(1000, player.getPlayedFrames());
+        assertEquals(250, kicks[0]);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(Arrays.equals(recorded.get(i), replayed.get(i)));
+            assertEquals(i * 50, (long) times.get(i));
+        }
+
+        // In real time each frame is handed over when it is due on the clock
+        final Clock.Manual clock = new Clock.Manual(0);
+        final List<Long> dueTimes = new ArrayList<>();
+        CuePlayer realTimePlayer = new CuePlayer(file, true);
+        realTimePlayer.setClock(clock);
+        realTimePlayer.setCuePlayerListener(new CuePlayer.CuePlayerListener() {
+            @Override
+            public void onCue(long time, int flags, long changed, int[] colors) {
+                dueTimes.add(clock.nanoTime());
+            }
+
+            @Override
+            public void onFinished() {
+            }
+        });
+        realTimePlayer.start();
+        realTimePlayer.join();
+
+        assertEquals(1000, realTimePlayer.getPlayedFrames());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 50 * 1000000L, (long) dueTimes.get(i));
+        }
+
+        // Other files are rejected
+        File other = File.createTempFile("other", ".bin");
+        other.deleteOnExit();
+        writeWav(other, new short[16], 22050);
+        try {
+            new CuePlayer(other, false);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test the batch rendering of cue files with the <<code>{@link ShowRenderTool}</code>.
+     * @throws Exception
+     */
+    @Test
+    public void batchRender() throws Exception {
+        int sampleRate = 22050;
+        File music = Files.createTempDirectory("music").toFile();
+        File cues = Files.createTempDirectory("cues").toFile();
+        List<File> files = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            // Clicks with another tempo in each file
+            short[] samples = new short[sampleRate * 5];
+            for (int click = 0; click < samples.length - 64; click += sampleRate / (2 + n)) {
+                for (int i = 0; i < 64; i++) {
+                    samples[click + i] = (short) (i % 2 == 0 ? 30000 : -30000);
+                }
+            }
+            File file = new File(music, "track" + n + ".wav");
+            writeWav(file, samples, sampleRate);
+            files.add(file);
+        }
+
+        List<ShowRenderTool.Result> results = ShowRenderTool.renderAll(files, cues, 4, 2);
+        assertEquals(3, results.size());
+        for (int n = 0; n < 3; n++) {
+            ShowRenderTool.Result result = results.get(n);
+            assertSame(files.get(n), result.file);
+            assertEquals(null, result.error);
+            assertEquals(5, result.audioSeconds, 0.1);
+            assertTrue(result.cueFrames > 0);
+
+            File cueFile = new File(cues, "track" + n + ".cues");
+            CuePlayer player = new CuePlayer(cueFile, false);
+            assertEquals(4, player.getLightCount());
+            assertEquals(result.cueFrames, player.getFrameCount());
+            cueFile.delete();
+            files.get(n).delete();
+        }
+        music.delete();
+        cues.delete();
+    }
+
+    /**
+     * Test the capture times of the frames of an offline <<code>{@link WavAudioSource}</code>.
+     * The times are the media times of the blocks, independent of the speed of the replay.
+     * @throws Exception
+     */
+    @Test
+    public void frameTimes() throws Exception {
+        final int sampleRate = 22050;
+        final int blockSize = 512;
+        File file = File.createTempFile("frames", ".wav");
+        file.deleteOnExit();
+        writeWav(file, new short[sampleRate], sampleRate);
+
+        final BeatDetector detector = new BeatDetector(sampleRate, blockSize);
+        detector.setClock(new Clock.Manual(-1));
+        final List<Long> times = new ArrayList<>();
+        WavAudioSource source = new WavAudioSource(file, blockSize, false);
+        source.setAudioSourceListener(new AudioSource.AudioSourceListener() {
+            @Override
+            public void onUpdate(double[] result, long time) {
+                detector.update(result, time);
+                times.add(detector.getFrameTime());
+            }
+        });
+        source.start();
+        source.join();
+
+        assertEquals(sampleRate / blockSize, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals((long) ((i + 1) * blockSize * 1e9 / sampleRate), (long) times.get(i));
+        }
+
+        // Without a capture time the frame is stamped by the clock
+        detector.update(new double[blockSize]);
+        assertEquals(-1, detector.getFrameTime());
+    }
+
+    /**
+     * Loopback test of the <<code>{@link WavAudioSource}</code>.
+     * Plays clicks in real time on a manual clock and checks the time from each click to the published fft block.
+     * @throws Exception
+     */
+    @Test
+    public void wavLoopbackLatency() throws Exception {
+        final int sampleRate = 22050;
+        final int blockSize = 512;
+        int[] clicks = {sampleRate / 4, sampleRate * 3 / 4, sampleRate * 5 / 4, sampleRate * 7 / 4};
+
+        File file = writeClicks(clicks, sampleRate * 2, sampleRate);
+
+        final long startTime = 1000000000L;
+        final Clock.Manual clock = new Clock.Manual(startTime);
+        final List<Long> arrivals = new ArrayList<>();
+        final List<Long> frameTimes = new ArrayList<>();
+        WavAudioSource source = new WavAudioSource(file, blockSize, true);
+        source.setClock(clock);
+        source.setAudioSourceListener(new AudioSource.AudioSourceListener() {
+            boolean inClick = false;
+
+            @Override
+            public void onUpdate(double[] result, long time) {
+                double energy = 0;
+                for (double value : result) {
+                    energy += value * value;
+                }
+                if (energy > 1 && !inClick) {
+                    arrivals.add(clock.nanoTime());
+                    frameTimes.add(time);
+                }
+                inClick = energy > 1;
+            }
+        });
+
+        source.start();
+        source.join();
+
+        // The click arrives at the end of the block that contains it, at the capture time of the block
+        double blockNanos = blockSize * 1e9 / sampleRate;
+        assertEquals(clicks.length, arrivals.size());
+        assertEquals(0, source.getDroppedFrames());
+        for (int i = 0; i < clicks.length; i++) {
+            double latency = arrivals.get(i) - startTime - clicks[i] * 1e9 / sampleRate;
+            assertTrue(latency >= 0);
+            assertTrue(latency < blockNanos);
+            assertEquals(arrivals.get(i), frameTimes.get(i), 1000);
+        }
+    }
+
+    /**
+     * Loopback test of the <<code>{@link WavAudioSource}</code>.
+     * Plays clicks in real time on the system clock and measures the time from each click to its listener call.
+     * @throws Exception
+     */
+    @Test
+    public void wavLoopbackLatencyMeasured() throws Exception {
+        final int sampleRate = 22050;
+        final int blockSize = 512;
+        int[] clicks = {sampleRate / 4, sampleRate * 3 / 4, sampleRate * 5 / 4, sampleRate * 7 / 4};
+        File file = writeClicks(clicks, sampleRate * 2, sampleRate);
+
+        final double blockNanos = blockSize * 1e9 / sampleRate;
+        final double[] playStart = {-1};
+        final List<Long> arrivals = new ArrayList<>();
+        final List<Long> frameTimes = new ArrayList<>();
+        WavAudioSource source = new WavAudioSource(file, blockSize, true);
+        source.setAudioSourceListener(new AudioSource.AudioSourceListener() {
+            boolean inClick = false;
+
+            @Override
+            public void onUpdate(double[] result, long time) {
+                // The first block was captured one block after the playback started
+                if (playStart[0] < 0)
+                    playStart[0] = time - blockNanos;
+
+                double energy = 0;
+                for (double value : result) {
+                    energy += value * value;
+                }
+                if (energy > 1 && !inClick) {
+                    arrivals.add(Clock.SYSTEM.nanoTime());
+                    frameTimes.add(time);
+                }
+                inClick = energy > 1;
+            }
+        });
+
+        source.start();
+        source.join();
+
+        // Measured on the system clock from the playback of each click to its listener call
+        double slackNanos = 30e6;
+        assertEquals(clicks.length, arrivals.size());
+        double totalLatency = 0;
+        for (int i = 0; i < clicks.length; i++) {
+            double latency = arrivals.get(i) - playStart[0] - clicks[i] * 1e9 / sampleRate;
+            assertTrue(latency >= 0);
+            assertTrue(latency < blockNanos + slackNanos);
+            // The listener is called shortly after the capture time of the block
+            assertTrue(arrivals.get(i) >= frameTimes.get(i));
+            assertTrue(arrivals.get(i) - frameTimes.get(i) < slackNanos);
+            totalLatency += latency;
+        }
+        // On average the click is in the middle of its block
+        double meanLatency = totalLatency / clicks.length;
+        assertEquals(blockNanos / 2, meanLatency, blockNanos / 2 + slackNanos / 2);
+    }
+
+    /**
+     * Write a WAV file of silence with short clicks.
+     * @param clicks sample positions of the clicks
+     * @param length number of samples of the file
+     * @param sampleRate of the file
+     * @return the temporary file
+     * @throws IOException
+     */
+    private static File writeClicks(int[] clicks, int length, int sampleRate) throws IOException {
+        short[] samples = new short[length];
+        for (int click : clicks) {
+            for (int i = 0; i < 32; i++) {
+                samples[click + i] = (short) (i % 2 == 0 ? 30000 : -30000);
+            }
+        }
+        File file = File.createTempFile("loopback", ".wav");
+        file.deleteOnExit();
+        writeWav(file, samples, sampleRate);
+        return file;
+    }
+
+    /**
+     * Write a mono 16 bit PCM WAV file.
+     * @param file to write
+     * @param samples of the file
+     * @param sampleRate of the file
+     * @throws IOException
+     */
+    private static void writeWav(File file, short[] samples, int sampleRate) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + samples.length * 2));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeInt(Integer.reverseBytes(sampleRate));
+            out.writeInt(Integer.reverseBytes(sampleRate * 2));
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(samples.length * 2));
+            for (short sample : samples) {
+                out.writeShort(Short.reverseBytes(sample));
+            }
+        }
+    }
+}
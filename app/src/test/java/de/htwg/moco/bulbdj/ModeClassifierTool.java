@@ -0,0 +1,279 @@
+package de.htwg.moco.bulbdj;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import de.htwg.moco.bulbdj.detector.AudioSource;
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.detector.ModeClassifier;
+import de.htwg.moco.bulbdj.detector.Modes;
+import de.htwg.moco.bulbdj.detector.WavAudioSource;
+
+/**
+ * Offline training and evaluation of the <code>{@link ModeClassifier}</code> on wav files.
+ * <p>
+ * The wav files are labeled by their directory: one directory per mode, named like the mode,
+ * e.g. <code>music/rock/*.wav</code>. The files are replayed offline through a
+ * <code>{@link BeatDetector}</code> and the features are sampled once per evaluation period.
+ * <p>
+ * Usage:
+ * <br><code>train &lt;music&gt; &lt;model&gt;</code> trains a softmax regression, quantizes it and writes the model.
+ * <br><code>evaluate &lt;music&gt; [model]</code> prints the confusion matrix of the samples and the
+ * final mode of each file, with the default model if no model is given.
+ * <p>
+ * A model file has one line per class of <code>{@link ModeClassifier#CLASSES}</code>:
+ * the mode, the bias and the weights in fixed point.
+ */
+public class ModeClassifierTool {
+
+    /**
+     * Size of the blocks of the replay, like the recorder.
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Parameters of the training.
+     */
+    private static final int EPOCHS = 2000;
+    private static final double LEARNING_RATE = 0.5;
+    private static final double REGULARIZATION = 1e-3;
+
+    /**
+     * Features of one evaluation period of a file.
+     */
+    static class Sample {
+        final float[] features;
+        final int label;
+
+        Sample(float[] features, int label) {
+            this.features = features;
+            this.label = label;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("train")) {
+            List<Sample> samples = extract(new File(args[1]), null);
+            ModeClassifier model = train(samples, new File(args[2]));
+            printConfusion(samples, model, new PrintWriter(System.out, true));
+        } else if (args.length >= 2 && args[0].equals("evaluate")) {
+            ModeClassifier model = args.length >= 3 ? load(new File(args[2])) : new ModeClassifier();
+            List<Sample> samples = extract(new File(args[1]), args.length >= 3 ? new File(args[2]) : null);
+            printConfusion(samples, model, new PrintWriter(System.out, true));
+        } else {
+            System.err.println("Usage: train <music> <model> | evaluate <music> [model]");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Extract the samples of all labeled wav files of a directory.
+     * @param music directory with one directory per mode
+     * @param model model to report the final mode of each file, null for the default model
+     * @return the samples
+     */
+    static List<Sample> extract(File music, File model) throws Exception {
+        List<Sample> samples = new ArrayList<>();
+        for (int c = 0; c < ModeClassifier.CLASSES.length; c++) {
+            File directory = new File(music, ModeClassifier.CLASSES[c].name().toLowerCase(Locale.ROOT));
+            File[] files = directory.listFiles();
+            if (files == null)
+                continue;
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().toLowerCase(Locale.ROOT).endsWith(".wav"))
+                    continue;
+                ModeClassifier classifier = model != null ? load(model) : new ModeClassifier();
+                int count = extract(file, c, classifier, samples);
+                System.out.println(String.format("%s: %s, %d samples, classified %s",
+                        file.getPath(), ModeClassifier.CLASSES[c], count, classifier.getMode()));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Replay a wav file and sample its features.
+     * @param file the wav file
+     * @param label index of the mode of the file
+     * @param classifier classifier fed with the frames
+     * @param samples target of the samples
+     * @return number of samples of the file
+     */
+    static int extract(File file, final int label, final ModeClassifier classifier, final List<Sample> samples) throws Exception {
+        WavAudioSource source = new WavAudioSource(file, BLOCK_SIZE, false);
+        final BeatDetector detector = new BeatDetector(source.getSampleRate(), BLOCK_SIZE);
+        final int[] count = {0};
+        source.setAudioSourceListener(new AudioSource.AudioSourceListener() {
+            long nextSample = Long.MIN_VALUE;
+
+            @Override
+            public void onUpdate(double[] result, long time) {
+                detector.update(result, time);
+                classifier.update(detector);
+                if (classifier.isWarm(time) && time >= nextSample) {
+                    nextSample = time + ModeClassifier.EVALUATION_PERIOD;
+                    float[] features = new float[ModeClassifier.FEATURE_COUNT];
+                    classifier.getFeatures(features);
+                    samples.add(new Sample(features, label));
+                    count[0]++;
+                }
+            }
+        });
+        source.start();
+        source.join();
+        return count[0];
+    }
+
+    /**
+     * Train a softmax regression by gradient descent on standardized features,
+     * fold the standardization into the weights, quantize them and write the model.
+     * @param samples the samples
+     * @param file target of the model
+     * @return the quantized model
+     */
+    static ModeClassifier train(List<Sample> samples, File file) throws IOException {
+        int classes = ModeClassifier.CLASSES.length;
+        int features = ModeClassifier.FEATURE_COUNT;
+        if (samples.isEmpty())
+            throw new RuntimeException("No samples.");
+
+        double[] mean = new double[features];
+        double[] deviation = new double[features];
+        for (Sample sample : samples) {
+            for (int i = 0; i < features; i++)
+                mean[i] += sample.features[i] / samples.size();
+        }
+        for (Sample sample : samples) {
+            for (int i = 0; i < features; i++)
+                deviation[i] += Math.pow(sample.features[i] - mean[i], 2) / samples.size();
+        }
+        for (int i = 0; i < features; i++)
+            deviation[i] = Math.max(Math.sqrt(deviation[i]), 1e-3);
+
+        double[][] w = new double[classes][features];
+        double[] b = new double[classes];
+        double[] x = new double[features];
+        double[] p = new double[classes];
+        for (int epoch = 0; epoch < EPOCHS; epoch++) {
+            double[][] gw = new double[classes][features];
+            double[] gb = new double[classes];
+            for (Sample sample : samples) {
+                for (int i = 0; i < features; i++)
+                    x[i] = (sample.features[i] - mean[i]) / deviation[i];
+                double max = Double.NEGATIVE_INFINITY;
+                for (int c = 0; c < classes; c++) {
+                    p[c] = b[c];
+                    for (int i = 0; i < features; i++)
+                        p[c] += w[c][i] * x[i];
+                    max = Math.max(max, p[c]);
+                }
+                double sum = 0;
+                for (int c = 0; c < classes; c++) {
+                    p[c] = Math.exp(p[c] - max);
+                    sum += p[c];
+                }
+                for (int c = 0; c < classes; c++) {
+                    double error = p[c] / sum - (c == sample.label ? 1 : 0);
+                    gb[c] += error;
+                    for (int i = 0; i < features; i++)
+                        gw[c][i] += error * x[i];
+                }
+            }
+            for (int c = 0; c < classes; c++) {
+                b[c] -= LEARNING_RATE * gb[c] / samples.size();
+                for (int i = 0; i < features; i++)
+                    w[c][i] -= LEARNING_RATE * (gw[c][i] / samples.size() + REGULARIZATION * w[c][i]);
+            }
+        }
+
+        int[][] weights = new int[classes][features];
+        int[] biases = new int[classes];
+        for (int c = 0; c < classes; c++) {
+            double bias = b[c];
+            for (int i = 0; i < features; i++) {
+                double weight = w[c][i] / deviation[i];
+                bias -= weight * mean[i];
+                weights[c][i] = (int) Math.round(weight * (1 << ModeClassifier.FRACTION_BITS));
+            }
+            biases[c] = (int) Math.round(bias * (1 << (2 * ModeClassifier.FRACTION_BITS)));
+        }
+
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try {
+            for (int c = 0; c < classes; c++) {
+                StringBuilder line = new StringBuilder(ModeClassifier.CLASSES[c].name()).append(' ').append(biases[c]);
+                for (int weight : weights[c])
+                    line.append(' ').append(weight);
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+        return new ModeClassifier(weights, biases);
+    }
+
+    /**
+     * Read a model.
+     * @param file the model
+     * @return classifier with the model
+     */
+    static ModeClassifier load(File file) throws IOException {
+        int classes = ModeClassifier.CLASSES.length;
+        int[][] weights = new int[classes][ModeClassifier.FEATURE_COUNT];
+        int[] biases = new int[classes];
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] values = line.trim().split("\\s+");
+                if (values.length != ModeClassifier.FEATURE_COUNT + 2)
+                    continue;
+                int c = Arrays.asList(ModeClassifier.CLASSES).indexOf(Modes.valueOf(values[0]));
+                biases[c] = Integer.parseInt(values[1]);
+                for (int i = 0; i < ModeClassifier.FEATURE_COUNT; i++)
+                    weights[c][i] = Integer.parseInt(values[i + 2]);
+            }
+        } finally {
+            in.close();
+        }
+        return new ModeClassifier(weights, biases);
+    }
+
+    /**
+     * Print the confusion matrix of the samples, rows are the labels, columns the classifications.
+     * @param samples the samples
+     * @param model the model
+     * @param out target of the matrix
+     */
+    static void printConfusion(List<Sample> samples, ModeClassifier model, PrintWriter out) {
+        int classes = ModeClassifier.CLASSES.length;
+        int[][] confusion = new int[classes][classes];
+        int correct = 0;
+        for (Sample sample : samples) {
+            int classified = model.classify(sample.features);
+            confusion[sample.label][classified]++;
+            if (classified == sample.label)
+                correct++;
+        }
+
+        out.print(String.format("%-9s", ""));
+        for (Modes mode : ModeClassifier.CLASSES)
+            out.print(String.format("%9s", mode));
+        out.println();
+        for (int c = 0; c < classes; c++) {
+            out.print(String.format("%-9s", ModeClassifier.CLASSES[c]));
+            for (int n : confusion[c])
+                out.print(String.format("%9d", n));
+            out.println();
+        }
+        out.println(String.format("Accuracy: %.1f %% of %d samples", samples.isEmpty() ? 0 : 100.0 * correct / samples.size(), samples.size()));
+    }
+}
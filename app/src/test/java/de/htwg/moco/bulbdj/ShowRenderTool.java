@@ -0,0 +1,250 @@
+package de.htwg.moco.bulbdj;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.htwg.moco.bulbdj.detector.AudioManager;
+import de.htwg.moco.bulbdj.detector.AudioSource;
+import de.htwg.moco.bulbdj.detector.BeatDetector;
+import de.htwg.moco.bulbdj.detector.Clock;
+import de.htwg.moco.bulbdj.detector.GainControl;
+import de.htwg.moco.bulbdj.detector.ModeClassifier;
+import de.htwg.moco.bulbdj.detector.Modes;
+import de.htwg.moco.bulbdj.detector.WavAudioSource;
+import de.htwg.moco.bulbdj.renderers.CueRecorder;
+import de.htwg.moco.bulbdj.renderers.LEDRenderer;
+import de.htwg.moco.bulbdj.renderers.LightMapper;
+
+/**
+ * Offline batch rendering of the light shows of a playlist into cue files.
+ * <p>
+ * Each wav file of a directory is replayed offline through its own <code>{@link GainControl}</code>,
+ * <code>{@link BeatDetector}</code>, <code>{@link ModeClassifier}</code> and <code>{@link LEDRenderer}</code>
+ * in automatic mode, on a manual clock at the media time of the blocks. Like the <code>{@link AudioManager}</code>,
+ * the gain is applied before the detection and a mode change sets the sensitivity of the detector. The colors are mapped to the lights and recorded by a
+ * <code>{@link CueRecorder}</code>, so the app can replay the show later. The files are rendered in
+ * parallel by a fork join pool with one worker per core.
+ * <p>
+ * Usage: <code>&lt;music&gt; &lt;cues&gt; [lights] [threads]</code>, run by
+ * <code>gradlew :app:renderShows -Pmusic=&lt;music&gt; -Pcues=&lt;cues&gt; [-Plights=3] [-Pthreads=n]</code>
+ * <br>Writes <code>&lt;cues&gt;/&lt;name&gt;.cues</code> per wav file and prints the throughput of each file.
+ */
+public class ShowRenderTool {
+
+    /**
+     * Size of the blocks of the replay, like the recorder.
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Maximum size of the cues of a file in bytes.
+     */
+    private static final int MAX_CUE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Statistics of a rendered file.
+     */
+    static class Result {
+        File file;
+        double audioSeconds;
+        long wallNanos;
+        int frames;
+        int cueFrames;
+        int cueBytes;
+        Modes mode;
+        String error;
+
+        /**
+         * Getter method.
+         * @return seconds of audio rendered per second of wall time
+         */
+        double getRealTimeFactor() {
+            return wallNanos > 0 ? audioSeconds / (wallNanos / 1e9) : 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: <music> <cues> [lights] [threads]");
+            System.exit(1);
+        }
+        File music = new File(args[0]);
+        File output = new File(args[1]);
+        int lights = args.length >= 3 ? Integer.parseInt(args[2]) : 3;
+        int threads = args.length >= 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        File[] files = music.listFiles();
+        if (files == null) {
+            System.err.println("Not a directory: " + music);
+            System.exit(1);
+        }
+        List<File> wavFiles = new ArrayList<>();
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().toLowerCase(Locale.ROOT).endsWith(".wav"))
+                wavFiles.add(file);
+        }
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.err.println("Can not create " + output);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = renderAll(wavFiles, output, lights, threads);
+        long wallNanos = System.nanoTime() - start;
+
+        double audioSeconds = 0;
+        for (Result result : results) {
+            audioSeconds += result.audioSeconds;
+            if (result.error != null) {
+                System.out.println(String.format("%-32s failed: %s", result.file.getName(), result.error));
+            } else {
+                System.out.println(String.format("%-32s %8.1f s audio %8d ms %8.1fx real time %7d cues %9d bytes %s",
+                        result.file.getName(), result.audioSeconds, result.wallNanos / 1000000,
+                        result.getRealTimeFactor(), result.cueFrames, result.cueBytes, result.mode));
+            }
+        }
+        System.out.println(String.format("%d files, %.1f s audio in %d ms on %d threads: %.1fx real time",
+                results.size(), audioSeconds, wallNanos / 1000000, threads, audioSeconds / (wallNanos / 1e9)));
+    }
+
+    /**
+     * Render files in parallel.
+     * @param files the wav files
+     * @param output directory of the cue files
+     * @param lights number of lights
+     * @param threads parallelism of the pool
+     * @return statistics of the files, in the order of the files
+     */
+    static List<Result> renderAll(List<File> files, File output, int lights, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new RenderTask(files, 0, files.size(), output, lights));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Task renders a range of files, by splitting it until one file is left.
+     */
+    static class RenderTask extends RecursiveTask<List<Result>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final int from, to;
+        private final File output;
+        private final int lights;
+
+        RenderTask(List<File> files, int from, int to, File output, int lights) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.output = output;
+            this.lights = lights;
+        }
+
+        @Override
+        protected List<Result> compute() {
+            if (to - from <= 1) {
+                List<Result> results = new ArrayList<>();
+                if (to > from)
+                    results.add(render(files.get(from), output, lights));
+                return results;
+            }
+
+            int middle = (from + to) / 2;
+            RenderTask left = new RenderTask(files, from, middle, output, lights);
+            left.fork();
+            List<Result> results = new RenderTask(files, middle, to, output, lights).compute();
+            List<Result> leftResults = left.join();
+            leftResults.addAll(results);
+            return leftResults;
+        }
+    }
+
+    /**
+     * Render one file into a cue file, with its own detector and renderer.
+     * @param file the wav file
+     * @param output directory of the cue file
+     * @param lights number of lights
+     * @return statistics of the file
+     */
+    static Result render(File file, File output, int lights) {
+        final Result result = new Result();
+        result.file = file;
+        long start = System.nanoTime();
+        try {
+            WavAudioSource source = new WavAudioSource(file, BLOCK_SIZE, false);
+            final GainControl gainControl = new GainControl();
+            final BeatDetector detector = new BeatDetector(source.getSampleRate(), BLOCK_SIZE);
+            final ModeClassifier classifier = new ModeClassifier();
+            final LEDRenderer renderer = new LEDRenderer();
+            final Clock.Manual clock = new Clock.Manual(0);
+            final LightMapper mapper = new LightMapper(lights, 3);
+            final CueRecorder recorder = new CueRecorder(MAX_CUE_SIZE);
+            final int[] beatFlags = {0};
+
+            detector.setClock(clock);
+            renderer.setClock(clock);
+            renderer.setModeClassifier(classifier);
+            renderer.setMode(Modes.AUTOMATIC);
+            detector.setSensitivity(AudioManager.sensitivityOf(Modes.AUTOMATIC));
+            recorder.start(lights);
+
+            // Like the main activity, without the lights
+            renderer.setLEDRendererListener(new LEDRenderer.LEDRendererListener() {
+                @Override
+                public void onUpdate(int[] bulbs) {
+                    recorder.record(clock.millis(), beatFlags[0], mapper.map(bulbs));
+                }
+
+                @Override
+                public void onStop() {
+                }
+
+                @Override
+                public void onAutoModeChanged(int mode) {
+                    renderer.setMode(Modes.values()[mode]);
+                    detector.setSensitivity(AudioManager.sensitivityOf(Modes.values()[mode]));
+                }
+            });
+            detector.setBeatDetectorListener(new BeatDetector.BeatDetectorListener() {
+                @Override
+                public void onBeatDetected(ArrayList<Object[]> beats) {
+                    beatFlags[0] = CueRecorder.beatFlags(beats);
+                    renderer.updateBeats(beats);
+                }
+            });
+            source.setAudioSourceListener(new AudioSource.AudioSourceListener() {
+                @Override
+                public void onUpdate(double[] fft, long time) {
+                    clock.setTime(time);
+                    gainControl.process(fft, time);
+                    detector.update(fft, time);
+                    classifier.update(detector);
+                }
+            });
+
+            source.playBlocking();
+            recorder.stop();
+            String name = file.getName().replaceAll("(?i)\\.wav$", "");
+            recorder.save(new File(output, name + ".cues"));
+
+            result.frames = source.getFrameCount();
+            result.audioSeconds = (double) source.getFrameCount() * BLOCK_SIZE / source.getSampleRate();
+            result.cueFrames = recorder.getFrameCount();
+            result.cueBytes = recorder.getSize();
+            result.mode = classifier.getMode();
+        } catch (Exception e) {
+            result.error = e.toString();
+        }
+        result.wallNanos = System.nanoTime() - start;
+        return result;
+    }
+}
@@ -0,0 +1,147 @@
+package de.htwg.moco.bulbdj.detector;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of the package private <code>{@link FrameExchanger}</code>, which will execute on the development machine (host).
+ */
+public class FrameExchangerTest {
+
+    /**
+     * Test that nothing is taken before a frame was published or twice.
+     */
+    @Test
+    public void takeWhenEmpty() {
+        FrameExchanger frames = new FrameExchanger(4);
+        assertNull(frames.take());
+        assertEquals(0, frames.getFrameTime());
+
+        fill(frames.getBackBuffer(), 1);
+        assertTrue(frames.publish(10));
+        assertEquals(1.0, frames.take()[0], 0);
+        assertNull(frames.take());
+        assertEquals(10, frames.getFrameTime());
+        assertEquals(1, frames.getFrameCount());
+        assertEquals(0, frames.getDroppedFrames());
+    }
+
+    /**
+     * Test that a waiting frame is replaced by a newer one and counted as dropped.
+     */
+    @Test
+    public void replacePending() {
+        FrameExchanger frames = new FrameExchanger(4);
+        fill(frames.getBackBuffer(), 1);
+        assertTrue(frames.publish(10));
+        fill(frames.getBackBuffer(), 2);
+        assertFalse(frames.publish(20));
+        fill(frames.getBackBuffer(), 3);
+        assertFalse(frames.publish(30));
+
+        double[] frame = frames.take();
+        assertTrue(Arrays.equals(new double[]{3, 3, 3, 3}, frame));
+        assertEquals(30, frames.getFrameTime());
+        assertEquals(3, frames.getFrameCount());
+        assertEquals(2, frames.getDroppedFrames());
+
+        // After the take the next frame notifies again
+        fill(frames.getBackBuffer(), 4);
+        assertTrue(frames.publish(40));
+        assertEquals(2, frames.getDroppedFrames());
+    }
+
+    /**
+     * Test that the times stay with their frames and a taken frame is not written by the recording.
+     */
+    @Test
+    public void timePropagation() {
+        FrameExchanger frames = new FrameExchanger(4);
+        fill(frames.getBackBuffer(), 1);
+        frames.publish(10);
+        double[] first = frames.take();
+        assertEquals(10, frames.getFrameTime());
+
+        // Two frames while the first is read
+        fill(frames.getBackBuffer(), 2);
+        frames.publish(20);
+        assertNotSame(first, frames.getBackBuffer());
+        fill(frames.getBackBuffer(), 3);
+        frames.publish(30);
+        assertNotSame(first, frames.getBackBuffer());
+        assertEquals(1.0, first[0], 0);
+        assertEquals(10, frames.getFrameTime());
+
+        double[] second = frames.take();
+        assertEquals(3.0, second[0], 0);
+        assertEquals(30, frames.getFrameTime());
+
+        fill(frames.getBackBuffer(), 5);
+        frames.publish(50);
+        assertEquals(5.0, frames.take()[0], 0);
+        assertEquals(50, frames.getFrameTime());
+    }
+
+    /**
+     * Test a recording and an analysis thread: each taken frame is complete, matches its time
+     * and is newer than the frame before, and every frame is either taken or dropped.
+     * @throws Exception
+     */
+    @Test
+    public void concurrentExchange() throws Exception {
+        final int count = 100000;
+        final FrameExchanger frames = new FrameExchanger(64);
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        Thread recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= count; i++) {
+                    fill(frames.getBackBuffer(), i);
+                    frames.publish(i);
+                }
+            }
+        });
+        recorder.start();
+
+        int taken = 0;
+        long last = 0;
+        while (recorder.isAlive() || frames.getFrameCount() - frames.getDroppedFrames() > taken) {
+            double[] frame = frames.take();
+            if (frame == null)
+                continue;
+            long time = frames.getFrameTime();
+            for (double value : frame) {
+                if (value != time)
+                    error.compareAndSet(null, "Frame " + time + " has a value of frame " + value);
+            }
+            if (time <= last)
+                error.compareAndSet(null, "Frame " + time + " after frame " + last);
+            last = time;
+            taken++;
+        }
+        recorder.join();
+
+        assertNull(error.get());
+        assertEquals(count, frames.getFrameCount());
+        assertEquals(count, taken + frames.getDroppedFrames());
+        assertEquals(count, last);
+    }
+
+    /**
+     * Fill a frame with a value.
+     * @param frame the frame
+     * @param value the value
+     */
+    private static void fill(double[] frame, double value) {
+        Arrays.fill(frame, value);
+    }
+}
@@ -0,0 +1,84 @@
+package de.htwg.moco.bulbdj.detector;
+
+import android.media.MediaRecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests of the recording choices of <code>{@link NativeAudioRecorder}</code>, which will execute on the development machine (host).
+ */
+public class NativeAudioRecorderTest {
+
+    /**
+     * Test that the block size keeps the detector at about 43 blocks per second.
+     */
+    @Test
+    public void blockSize() {
+        assertEquals(256, NativeAudioRecorder.blockSizeFor(8000));
+        assertEquals(512, NativeAudioRecorder.blockSizeFor(22050));
+        assertEquals(1024, NativeAudioRecorder.blockSizeFor(44100));
+        assertEquals(1024, NativeAudioRecorder.blockSizeFor(48000));
+        assertEquals(2048, NativeAudioRecorder.blockSizeFor(96000));
+
+        for (int sampleRate : new int[]{22050, 44100, 48000, 96000}) {
+            double blocksPerSecond = (double) sampleRate / NativeAudioRecorder.blockSizeFor(sampleRate);
+            assertEquals(43, blocksPerSecond, 5);
+        }
+    }
+
+    /**
+     * Test that the native sample rate and burst size fall back to the defaults if the device does not report them.
+     */
+    @Test
+    public void nativeProperties() {
+        assertEquals(48000, NativeAudioRecorder.parseProperty("48000", 44100));
+        assertEquals(192, NativeAudioRecorder.parseProperty("192", 256));
+        assertEquals(44100, NativeAudioRecorder.parseProperty(null, 44100));
+        assertEquals(44100, NativeAudioRecorder.parseProperty("", 44100));
+        assertEquals(256, NativeAudioRecorder.parseProperty("fast", 256));
+        assertEquals(256, NativeAudioRecorder.parseProperty("0", 256));
+        assertEquals(256, NativeAudioRecorder.parseProperty("-1", 256));
+    }
+
+    /**
+     * Test that the unprocessed source is only used if the device supports it.
+     */
+    @Test
+    public void recordSource() {
+        assertEquals(MediaRecorder.AudioSource.UNPROCESSED, NativeAudioRecorder.recordSourceFor(24, "true"));
+        assertEquals(MediaRecorder.AudioSource.VOICE_RECOGNITION, NativeAudioRecorder.recordSourceFor(24, "false"));
+        assertEquals(MediaRecorder.AudioSource.VOICE_RECOGNITION, NativeAudioRecorder.recordSourceFor(24, null));
+        assertEquals(MediaRecorder.AudioSource.VOICE_RECOGNITION, NativeAudioRecorder.recordSourceFor(23, "true"));
+    }
+
+    /**
+     * Test that the low latency recording uses two bursts of buffer and the fallback the microphone with the platform minimum.
+     */
+    @Test
+    public void fallback() {
+        int source = MediaRecorder.AudioSource.UNPROCESSED;
+
+        // Two bursts of 16 bit samples above the platform minimum
+        assertArrayEquals(new int[]{source, 4096},
+                NativeAudioRecorder.chooseRecording(source, 3528, 1024, false));
+        // Never less than the platform minimum
+        assertArrayEquals(new int[]{source, 3528},
+                NativeAudioRecorder.chooseRecording(source, 3528, 192, false));
+        // Rejected low latency recording
+        assertArrayEquals(new int[]{MediaRecorder.AudioSource.MIC, 3528},
+                NativeAudioRecorder.chooseRecording(source, 3528, 192, true));
+        assertArrayEquals(new int[]{MediaRecorder.AudioSource.MIC, 3528},
+                NativeAudioRecorder.chooseRecording(MediaRecorder.AudioSource.VOICE_RECOGNITION, 3528, 1024, true));
+
+        try {
+            NativeAudioRecorder.chooseRecording(source, -2, 192, false);
+            fail("Unsupported sample rate accepted");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}